@@ -0,0 +1,162 @@
+package ExpressionEval;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An InputStream reading its source on a background thread, so that an
+ * expensive source such as a GZIPInputStream decodes the next chunks while the
+ * caller tokenizes the previous ones.
+ *
+ * The chunks are handed over through a bounded queue, so the decoder is never
+ * more than |queueChunks| chunks ahead of the caller. Any exception or error of
+ * the source is rethrown to the caller when it reaches that point of the
+ * stream, the end of the stream is always queued so the caller never waits on
+ * a dead reader.
+ *
+ */
+public class BackgroundInputStream extends InputStream {
+	private static final byte[] EOF = new byte[0];
+
+	private final InputStream source;
+	private final BlockingQueue<byte[]> queue;
+	private final Thread reader;
+	private volatile Throwable failure;
+	private byte[] chunk;
+	private int chunkLength;
+	private int pos;
+	private boolean eof;
+
+	/**
+	 * Start reading the source in the background.
+	 *
+	 * @param source
+	 *            The stream to read, closed with this stream.
+	 * @param chunkSize
+	 *            Number of bytes read from the source at a time.
+	 * @param queueChunks
+	 *            Number of chunks read ahead of the caller.
+	 */
+	public BackgroundInputStream(InputStream source, int chunkSize, int queueChunks) {
+		this.source = source;
+		this.queue = new ArrayBlockingQueue<byte[]>(queueChunks);
+		this.reader = new Thread(() -> readSource(chunkSize), "BackgroundInputStream");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	private void readSource(int chunkSize) {
+		boolean closed = false;
+		try {
+			while (true) {
+				byte[] buffer = new byte[chunkSize];
+				int length = 0;
+				// Fill the whole chunk, GZIPInputStream returns short reads.
+				while (length < chunkSize) {
+					int read = source.read(buffer, length, chunkSize - length);
+					if (read < 0) {
+						break;
+					}
+					length += read;
+				}
+				if (length > 0) {
+					queue.put(length == chunkSize ? buffer : Arrays.copyOf(buffer, length));
+				}
+				if (length < chunkSize) {
+					break;
+				}
+			}
+		} catch (InterruptedException ex) {
+			// Closed by the caller, nobody waits for the end.
+			closed = true;
+		} catch (Throwable ex) {
+			failure = ex;
+		} finally {
+			if (!closed) {
+				try {
+					queue.put(EOF);
+				} catch (InterruptedException ex) {
+					// Closed by the caller.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper function to move to the next chunk.
+	 *
+	 * @return Whether there is a chunk to read.
+	 */
+	private boolean nextChunk() throws IOException {
+		if (eof) {
+			return false;
+		}
+		if (chunk != null && pos < chunkLength) {
+			return true;
+		}
+		try {
+			chunk = queue.take();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		chunkLength = chunk.length;
+		pos = 0;
+		if (chunk == EOF) {
+			eof = true;
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			} else if (failure instanceof Error) {
+				throw (Error) failure;
+			} else if (failure != null) {
+				throw new IOException(failure);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextChunk()) {
+			return -1;
+		}
+		return chunk[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextChunk()) {
+			return -1;
+		}
+		int rtn = Math.min(len, chunkLength - pos);
+		System.arraycopy(chunk, pos, b, off, rtn);
+		pos += rtn;
+		return rtn;
+	}
+
+	@Override
+	public int available() {
+		return chunk == null ? 0 : chunkLength - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.interrupt();
+		try {
+			reader.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		source.close();
+	}
+}
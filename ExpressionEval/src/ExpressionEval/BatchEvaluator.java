@@ -0,0 +1,181 @@
+package ExpressionEval;
+
+import java.util.List;
+
+/**
+ * Evaluator of expressions held in memory, filling caller provided arrays
+ * instead of writing one output file per expression.
+ *
+ * The value of each expression is written to |results| and its error code to
+ * |errorCodes|: 0 if it is valid, otherwise the code of its
+ * ExpressionCommon.ErrorCode, with NaN as its value. The binary expression
+ * trees are only built if the caller provides an array for them; otherwise
+ * each expression is compiled into a CompiledExpression and evaluated on a
+ * reused stack of doubles, with the same arithmetic and operation cache as
+ * ExpressionScorer.evalRpn, or with the specialized kernels of ^ and log if
+ * the evaluator is created with |specialize|, see CompiledExpression.
+ *
+ * Each expression could be given a time budget, and the whole batch a
+ * deadline, see Deadline. An expression overrunning either gets the TIMEOUT
+ * error code and the batch goes on with the next one, which fails immediately
+ * once the batch deadline expired, so one pathological expression could not
+ * stall the batch.
+ *
+ * An evaluator keeps its scratch state between the calls, so it should be
+ * created once and reused. It is not thread safe, every thread should use its
+ * own evaluator.
+ *
+ */
+public class BatchEvaluator {
+	private final boolean useCachedValue;
+	private final long expressionBudgetNanos;
+	private final boolean specialize;
+	private final ExpressionCommon.ParseError error = new ExpressionCommon.ParseError();
+	private double[] stack = new double[64];
+
+	/**
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 */
+	public BatchEvaluator(boolean useCachedValue) {
+		this(useCachedValue, 0);
+	}
+
+	/**
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @param expressionBudgetNanos
+	 *            Budget of each expression in nanoseconds, or 0 for no time
+	 *            limit.
+	 */
+	public BatchEvaluator(boolean useCachedValue, long expressionBudgetNanos) {
+		this(useCachedValue, expressionBudgetNanos, false);
+	}
+
+	/**
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @param expressionBudgetNanos
+	 *            Budget of each expression in nanoseconds, or 0 for no time
+	 *            limit.
+	 * @param specialize
+	 *            Whether to evaluate ^ with a constant integer exponent and log
+	 *            with a constant base with the specialized kernels of MathKernels
+	 *            when the trees are not needed. Their values could differ from
+	 *            the trees' in the last bits.
+	 */
+	public BatchEvaluator(boolean useCachedValue, long expressionBudgetNanos, boolean specialize) {
+		this.useCachedValue = useCachedValue;
+		this.expressionBudgetNanos = expressionBudgetNanos;
+		this.specialize = specialize;
+	}
+
+	/**
+	 * Evaluate an array of expressions.
+	 *
+	 * @param expressions
+	 *            The expressions, null ones are reported as NULL_FORMULA.
+	 * @param results
+	 *            Filled with the value of each expression.
+	 * @param errorCodes
+	 *            Filled with the error code of each expression, 0 if valid.
+	 * @param trees
+	 *            Filled with the binary expression tree of each expression, or
+	 *            null if the trees are not needed.
+	 * @return Number of invalid expressions.
+	 */
+	public int evaluate(CharSequence[] expressions, double[] results, int[] errorCodes, ExpressionScorer.Node[] trees) {
+		return evaluate(expressions, results, errorCodes, trees, Deadline.NONE);
+	}
+
+	/**
+	 * Same as evaluate(expressions, results, errorCodes, trees) with a deadline
+	 * for the whole batch, which could also be cancelled from another thread.
+	 */
+	public int evaluate(CharSequence[] expressions, double[] results, int[] errorCodes, ExpressionScorer.Node[] trees,
+			Deadline batchDeadline) {
+		checkLengths(expressions.length, results, errorCodes, trees);
+		int rtn = 0;
+		for (int i = 0; i < expressions.length; i++) {
+			if (!evaluate(expressions[i], i, results, errorCodes, trees, batchDeadline)) {
+				rtn++;
+			}
+		}
+		return rtn;
+	}
+
+	/**
+	 * Same as evaluate(CharSequence[], ...) for a list of expressions.
+	 */
+	public int evaluate(List<? extends CharSequence> expressions, double[] results, int[] errorCodes,
+			ExpressionScorer.Node[] trees) {
+		return evaluate(expressions, results, errorCodes, trees, Deadline.NONE);
+	}
+
+	/**
+	 * Same as evaluate(expressions, results, errorCodes, trees) with a deadline
+	 * for the whole batch, which could also be cancelled from another thread.
+	 */
+	public int evaluate(List<? extends CharSequence> expressions, double[] results, int[] errorCodes,
+			ExpressionScorer.Node[] trees, Deadline batchDeadline) {
+		checkLengths(expressions.size(), results, errorCodes, trees);
+		int rtn = 0;
+		for (int i = 0; i < expressions.size(); i++) {
+			if (!evaluate(expressions.get(i), i, results, errorCodes, trees, batchDeadline)) {
+				rtn++;
+			}
+		}
+		return rtn;
+	}
+
+	private static void checkLengths(int size, double[] results, int[] errorCodes, ExpressionScorer.Node[] trees) {
+		if (results.length < size || errorCodes.length < size || (trees != null && trees.length < size)) {
+			throw new IllegalArgumentException("Output arrays should hold at least " + size + " expressions");
+		}
+	}
+
+	/**
+	 * Helper function to evaluate the expression at index |i|.
+	 *
+	 * @return Whether the expression is valid.
+	 */
+	private boolean evaluate(CharSequence expression, int i, double[] results, int[] errorCodes,
+			ExpressionScorer.Node[] trees, Deadline batchDeadline) {
+		error.code = null;
+		Deadline deadline = batchDeadline.within(expressionBudgetNanos);
+		List<ExpressionCommon.Token> tokens = InputHandler.tokenize(expression == null ? null : expression.toString(),
+				error, deadline);
+		if (tokens != null) {
+			if (trees != null) {
+				ExpressionScorer.ExpressionVal val = ExpressionScorer.evalTokens(tokens, useCachedValue, error,
+						deadline);
+				if (val != null) {
+					results[i] = val.value;
+					errorCodes[i] = 0;
+					trees[i] = val.expressionTree;
+					return true;
+				}
+			} else {
+				CompiledExpression compiled = CompiledExpression.compile(tokens, specialize, error, deadline);
+				if (compiled != null) {
+					if (stack.length < compiled.maxStack()) {
+						stack = new double[Math.max(compiled.maxStack(), stack.length * 2)];
+					}
+					try {
+						results[i] = compiled.eval(stack, useCachedValue, deadline);
+						errorCodes[i] = 0;
+						return true;
+					} catch (Deadline.Exceeded ex) {
+						ex.fail(error);
+					}
+				}
+			}
+		}
+		results[i] = Double.NaN;
+		errorCodes[i] = error.code.code;
+		if (trees != null) {
+			trees[i] = null;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,331 @@
+package ExpressionEval;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates many expression files on one work-stealing pool. Every file is
+ * streamed and split into chunks of consecutive lines, each forked as soon as
+ * it is read, and the chunks of all the files go into the same ForkJoinPool,
+ * so idle workers steal chunks of a large file instead of waiting for it once
+ * the small files are done. A file is never held in memory as a whole.
+ *
+ * The output of each file is still the ordered list of output filenames
+ * returned by ExpressionEvaluator.evalExpressionsFromFile.
+ *
+ * If resumable, every file has a ProgressJournal tracking its lines as the
+ * chunks complete them in any order, and a file interrupted by a previous run
+ * resumes from its last checkpoint.
+ *
+ * Each line and each file could be given a time budget, see
+ * ExpressionEvaluator.evalExpressionsFromFile: an overrunning line is written
+ * with the TIMEOUT error, and so is every line reached after the budget of
+ * its file.
+ *
+ */
+public class BatchScheduler {
+	static final int DEFAULT_CHUNK_LINES = 256;
+
+	/**
+	 * Callback notified on the worker threads as soon as a file is done.
+	 */
+	public interface FileCompletionListener {
+		/**
+		 * @param filename
+		 *            The input filename.
+		 * @param outputFilenames
+		 *            Output filenames of the file in line order.
+		 */
+		void onFileComplete(String filename, List<String> outputFilenames);
+
+		/**
+		 * Called instead of onFileComplete if the file could not be read or any
+		 * of its output could not be written.
+		 */
+		void onFileFailed(String filename, Exception ex);
+	}
+
+	private final ForkJoinPool pool;
+	private final int chunkLines;
+	private final ResultCache resultCache;
+	private final boolean resumable;
+	private final boolean forceOutputs;
+	private final long expressionBudgetNanos;
+	private final long fileBudgetNanos;
+
+	public BatchScheduler(int parallelism) {
+		this(parallelism, DEFAULT_CHUNK_LINES, null);
+	}
+
+	public BatchScheduler(int parallelism, ResultCache resultCache) {
+		this(parallelism, DEFAULT_CHUNK_LINES, resultCache);
+	}
+
+	/**
+	 * @param parallelism
+	 *            Number of the worker threads.
+	 * @param chunkLines
+	 *            Number of lines evaluated by one task.
+	 * @param resultCache
+	 *            Cache of whole-expression results shared by the worker threads.
+	 *            Could be null.
+	 */
+	public BatchScheduler(int parallelism, int chunkLines, ResultCache resultCache) {
+		this(parallelism, chunkLines, resultCache, false, false);
+	}
+
+	/**
+	 * @param parallelism
+	 *            Number of the worker threads.
+	 * @param chunkLines
+	 *            Number of lines evaluated by one task.
+	 * @param resultCache
+	 *            Cache of whole-expression results shared by the worker threads.
+	 *            Could be null.
+	 * @param resumable
+	 *            Whether to journal the progress of each file and resume from it.
+	 * @param forceOutputs
+	 *            Whether the journals force the output files to the disk, see
+	 *            ProgressJournal.
+	 */
+	public BatchScheduler(int parallelism, int chunkLines, ResultCache resultCache, boolean resumable,
+			boolean forceOutputs) {
+		this(parallelism, chunkLines, resultCache, resumable, forceOutputs, 0, 0);
+	}
+
+	/**
+	 * @param parallelism
+	 *            Number of the worker threads.
+	 * @param chunkLines
+	 *            Number of lines evaluated by one task.
+	 * @param resultCache
+	 *            Cache of whole-expression results shared by the worker threads.
+	 *            Could be null.
+	 * @param resumable
+	 *            Whether to journal the progress of each file and resume from it.
+	 * @param forceOutputs
+	 *            Whether the journals force the output files to the disk, see
+	 *            ProgressJournal.
+	 * @param expressionBudgetNanos
+	 *            Budget of each line in nanoseconds, or 0 for no time limit.
+	 * @param fileBudgetNanos
+	 *            Budget of each file in nanoseconds from the start of its
+	 *            evaluation, or 0 for no time limit.
+	 */
+	public BatchScheduler(int parallelism, int chunkLines, ResultCache resultCache, boolean resumable,
+			boolean forceOutputs, long expressionBudgetNanos, long fileBudgetNanos) {
+		if (chunkLines <= 0) {
+			throw new IllegalArgumentException("Chunk size should be positive");
+		}
+		this.pool = new ForkJoinPool(parallelism);
+		this.chunkLines = chunkLines;
+		this.resultCache = resultCache;
+		this.resumable = resumable;
+		this.forceOutputs = forceOutputs;
+		this.expressionBudgetNanos = expressionBudgetNanos;
+		this.fileBudgetNanos = fileBudgetNanos;
+	}
+
+	/**
+	 * Evaluate all the files and wait until all of them are done.
+	 *
+	 * @param filenames
+	 *            The input filenames.
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @param listener
+	 *            Notified when each file is done. Could be null.
+	 * @return Output filenames of each file in the order of |filenames|. The entry
+	 *         of a failed file is null.
+	 */
+	public List<List<String>> evalFiles(List<String> filenames, boolean useCachedValue,
+			FileCompletionListener listener) {
+		List<FileTask> tasks = new ArrayList<FileTask>();
+		for (String filename : filenames) {
+			tasks.add(new FileTask(filename, useCachedValue, listener));
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		List<List<String>> rtn = new ArrayList<List<String>>();
+		for (FileTask task : tasks) {
+			rtn.add(task.failure == null ? Arrays.asList(task.outputFilenames) : null);
+		}
+		return rtn;
+	}
+
+	/**
+	 * Stop the worker threads once the submitted files are done.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Reads a file and forks one ChunkTask per range of lines as soon as the range
+	 * is read, so the workers evaluate the first chunks while the rest of the file
+	 * is still being read.
+	 */
+	private class FileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final String filename;
+		final boolean useCachedValue;
+		final FileCompletionListener listener;
+		ProgressJournal journal;
+		Deadline deadline;
+		String[] outputFilenames;
+		volatile Exception failure;
+
+		FileTask(String filename, boolean useCachedValue, FileCompletionListener listener) {
+			this.filename = filename;
+			this.useCachedValue = useCachedValue;
+			this.listener = listener;
+		}
+
+		@Override
+		protected void compute() {
+			deadline = Deadline.after(fileBudgetNanos);
+			long resumeLine = 0;
+			BufferedReader br;
+			try {
+				br = InputHandler.openReader(filename);
+				if (resumable) {
+					try {
+						journal = ProgressJournal.open(filename, forceOutputs);
+					} catch (IOException | RuntimeException ex) {
+						br.close();
+						throw ex;
+					}
+					resumeLine = journal.resumeLine();
+				}
+			} catch (Exception ex) {
+				failure = ex;
+				if (listener != null) {
+					listener.onFileFailed(filename, ex);
+				}
+				return;
+			}
+			List<ChunkTask> chunks = new ArrayList<ChunkTask>();
+			int lineCount = 0;
+			boolean complete = false;
+			try {
+				try {
+					List<String> lines = new ArrayList<String>(chunkLines);
+					String line;
+					while (failure == null && (line = br.readLine()) != null) {
+						if (lineCount++ < resumeLine) {
+							continue;
+						}
+						lines.add(line);
+						if (lines.size() == chunkLines) {
+							chunks.add(fork(lineCount - lines.size(), lines));
+							lines = new ArrayList<String>(chunkLines);
+						}
+					}
+					if (!lines.isEmpty()) {
+						chunks.add(fork(lineCount - lines.size(), lines));
+					}
+					complete = failure == null;
+				} finally {
+					br.close();
+				}
+			} catch (Exception ex) {
+				if (failure == null) {
+					failure = ex;
+				}
+			}
+			for (ChunkTask chunk : chunks) {
+				chunk.join();
+			}
+			outputFilenames = new String[lineCount];
+			for (int i = 0; i < Math.min(resumeLine, lineCount); i++) {
+				outputFilenames[i] = OutputHandler.outputFilename(filename, i);
+			}
+			for (ChunkTask chunk : chunks) {
+				System.arraycopy(chunk.outputFilenames, 0, outputFilenames, chunk.start, chunk.outputFilenames.length);
+			}
+			onFileDone(complete ? lineCount : Long.MAX_VALUE);
+		}
+
+		private ChunkTask fork(int start, List<String> lines) {
+			ChunkTask rtn = new ChunkTask(this, start, lines);
+			rtn.fork();
+			return rtn;
+		}
+
+		/**
+		 * @param lines
+		 *            Number of lines of the file, or Long.MAX_VALUE if it could
+		 *            not be read to the end, so that the journal is kept.
+		 */
+		private void onFileDone(long lines) {
+			if (journal != null) {
+				try {
+					journal.close(lines);
+				} catch (Exception ex) {
+					if (failure == null) {
+						failure = ex;
+					}
+				}
+			}
+			if (listener == null) {
+				return;
+			}
+			if (failure != null) {
+				listener.onFileFailed(filename, failure);
+			} else {
+				listener.onFileComplete(filename, Arrays.asList(outputFilenames));
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the lines starting from line |start| of a file.
+	 */
+	private class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final FileTask file;
+		final int start;
+		final String[] outputFilenames;
+		List<String> lines;
+
+		ChunkTask(FileTask file, int start, List<String> lines) {
+			this.file = file;
+			this.start = start;
+			this.lines = lines;
+			this.outputFilenames = new String[lines.size()];
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				for (int i = 0; i < lines.size() && file.failure == null; i++) {
+					Deadline deadline = file.deadline.within(expressionBudgetNanos);
+					ExpressionScorer.ExpressionVal rtn = resultCache == null
+							? ExpressionEvaluator.evalExpression(lines.get(i), file.useCachedValue, deadline)
+							: resultCache.evalExpression(lines.get(i), file.useCachedValue, deadline);
+					outputFilenames[i] = OutputHandler.writeFile(rtn, file.filename, start + i, file.journal,
+							deadline);
+				}
+			} catch (Exception ex) {
+				file.failure = ex;
+			} finally {
+				// Drop the input lines as early as possible, the outputs are kept for
+				// the caller.
+				lines = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,762 @@
+package ExpressionEval;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Benchmarks of the evaluation modes which could not be measured with the
+ * input files of ExpressionEvaluator.main.
+ *
+ * Usage: Benchmarks <name> [repeat time]
+ *
+ */
+public class Benchmarks {
+	private static final long SEED = 20180305L;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length == 0) {
+			System.out.println("Usage: Benchmarks <parallel-eval|math-kernels|shards|compressed|flow|in-memory|deadlines|virtual-threads|bytecode> [repeat time]");
+			return;
+		}
+		int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		switch (args[0]) {
+		case "parallel-eval":
+			benchmarkParallelEval(repeat);
+			break;
+		case "math-kernels":
+			benchmarkMathKernels(repeat);
+			break;
+		case "shards":
+			benchmarkShards(repeat);
+			break;
+		case "compressed":
+			benchmarkCompressed(repeat);
+			break;
+		case "flow":
+			benchmarkFlow(repeat);
+			break;
+		case "in-memory":
+			benchmarkInMemory(repeat);
+			break;
+		case "deadlines":
+			benchmarkDeadlines(repeat);
+			break;
+		case "virtual-threads":
+			benchmarkVirtualThreads(repeat);
+			break;
+		case "bytecode":
+			benchmarkBytecode(repeat);
+			break;
+		default:
+			System.out.println("Unknown benchmark " + args[0]);
+		}
+	}
+
+	/**
+	 * Evaluate huge sums of products with ParallelEvaluator on 1, 2, 4, ... cores
+	 * and compare with the sequential ExpressionScorer.evalTokens.
+	 */
+	private static void benchmarkParallelEval(int repeat) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int terms = 10000; terms <= 1000000; terms *= 10) {
+			List<ExpressionCommon.Token> tokens = InputHandler.tokenize(sumOfProducts(terms, new Random(SEED)));
+			long before = System.nanoTime();
+			double expected = 0;
+			for (int i = 0; i < repeat; i++) {
+				expected = ExpressionScorer.evalTokens(tokens, false).value;
+			}
+			double sequentialMs = (System.nanoTime() - before) / 1e6 / repeat;
+			System.out.println(terms + " terms, " + tokens.size() + " tokens, sequential: " + sequentialMs + " ms");
+			for (int parallelism = 1; parallelism <= cores; parallelism *= 2) {
+				ForkJoinPool pool = new ForkJoinPool(parallelism);
+				ParallelEvaluator evaluator = new ParallelEvaluator(pool);
+				// Warm up the pool threads.
+				double actual = evaluator.evalTokens(tokens, false).value;
+				before = System.nanoTime();
+				for (int i = 0; i < repeat; i++) {
+					actual = evaluator.evalTokens(tokens, false).value;
+				}
+				double ms = (System.nanoTime() - before) / 1e6 / repeat;
+				pool.shutdown();
+				System.out.println("  parallelism " + parallelism + ": " + ms + " ms, speedup " + sequentialMs / ms
+						+ (Double.doubleToRawLongBits(actual) == Double.doubleToRawLongBits(expected) ? ""
+								: ", MISMATCH " + actual + " != " + expected));
+			}
+		}
+	}
+
+	/**
+	 * Compare the kernels of MathKernels with Math.pow and the general log, then
+	 * compare the compiled expressions with ExpressionScorer.evalTokens.
+	 */
+	private static void benchmarkMathKernels(int repeat) {
+		int count = 1000000;
+		Random random = new Random(SEED);
+		double[] bases = new double[count];
+		int[] exponents = new int[count];
+		for (int i = 0; i < count; i++) {
+			bases[i] = random.nextInt(4) == 0 ? 1 + random.nextInt(99) : 0.5 + random.nextDouble() * 100;
+			exponents[i] = 2 + random.nextInt(MathKernels.MAX_INT_EXPONENT - 1);
+		}
+		double[] expected = new double[count];
+		double[] actual = new double[count];
+		double powMs = 0;
+		double powIntMs = 0;
+		for (int r = 0; r < repeat; r++) {
+			long before = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				expected[i] = Math.pow(bases[i], exponents[i]);
+			}
+			powMs += (System.nanoTime() - before) / 1e6 / repeat;
+			before = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				actual[i] = MathKernels.powInt(bases[i], exponents[i]);
+			}
+			powIntMs += (System.nanoTime() - before) / 1e6 / repeat;
+		}
+		System.out.println("x^n, n in [2, " + MathKernels.MAX_INT_EXPONENT + "]: Math.pow " + powMs + " ms, powInt "
+				+ powIntMs + " ms, speedup " + powMs / powIntMs + ", " + ulpStats(expected, actual));
+
+		for (double base : new double[] { 2, Math.E, 10, 3 }) {
+			double lnBase = Math.log(base);
+			double reciprocal = MathKernels.reciprocalLn(base);
+			double logMs = 0;
+			double kernelMs = 0;
+			for (int r = 0; r < repeat; r++) {
+				long before = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					expected[i] = MathKernels.log(base, bases[i]);
+				}
+				logMs += (System.nanoTime() - before) / 1e6 / repeat;
+				before = System.nanoTime();
+				if (reciprocal != 0) {
+					for (int i = 0; i < count; i++) {
+						actual[i] = MathKernels.logReciprocal(reciprocal, bases[i]);
+					}
+				} else {
+					for (int i = 0; i < count; i++) {
+						actual[i] = MathKernels.logHoisted(lnBase, bases[i]);
+					}
+				}
+				kernelMs += (System.nanoTime() - before) / 1e6 / repeat;
+			}
+			System.out.println("log(" + base + ", x): general " + logMs + " ms, "
+					+ (reciprocal != 0 ? "reciprocal " : "hoisted ") + kernelMs + " ms, speedup " + logMs / kernelMs
+					+ ", " + ulpStats(expected, actual));
+		}
+
+		int lines = 10000;
+		CompiledExpression[] generic = new CompiledExpression[lines];
+		CompiledExpression[] specialized = new CompiledExpression[lines];
+		double[] interpreted = new double[lines];
+		double interpretedMs = 0;
+		for (int i = 0; i < lines; i++) {
+			List<ExpressionCommon.Token> tokens = InputHandler.tokenize(sumOfProducts(8, random));
+			long before = System.nanoTime();
+			interpreted[i] = ExpressionScorer.evalTokens(tokens, false).value;
+			interpretedMs += (System.nanoTime() - before) / 1e6;
+			generic[i] = CompiledExpression.compile(tokens, false);
+			specialized[i] = CompiledExpression.compile(tokens, true);
+		}
+		double[] stack = new double[256];
+		double genericMs = 0;
+		double specializedMs = 0;
+		double[] genericValues = new double[lines];
+		double[] specializedValues = new double[lines];
+		for (int r = 0; r < repeat; r++) {
+			long before = System.nanoTime();
+			for (int i = 0; i < lines; i++) {
+				genericValues[i] = generic[i].eval(stack);
+			}
+			genericMs += (System.nanoTime() - before) / 1e6 / repeat;
+			before = System.nanoTime();
+			for (int i = 0; i < lines; i++) {
+				specializedValues[i] = specialized[i].eval(stack);
+			}
+			specializedMs += (System.nanoTime() - before) / 1e6 / repeat;
+		}
+		System.out.println(lines + " expressions: evalTokens " + interpretedMs + " ms, compiled " + genericMs
+				+ " ms (" + ulpStats(interpreted, genericValues) + "), specialized " + specializedMs + " ms ("
+				+ ulpStats(interpreted, specializedValues) + ")");
+	}
+
+	/**
+	 * Evaluate one generated file of 200000 lines in this JVM, then with 1, 2, 4,
+	 * ... worker JVMs of ShardCoordinator, writing one consolidated results file.
+	 */
+	private static void benchmarkShards(int repeat) throws IOException, InterruptedException {
+		File dir = Files.createTempDirectory("shards").toFile();
+		String filename = new File(dir, "expressions.txt").getPath();
+		writeLines(filename, 200000, new Random(SEED));
+		long before = System.nanoTime();
+		for (int i = 0; i < repeat; i++) {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(filename + ".results"));
+			try {
+				List<String> lines = InputHandler.readFile(filename);
+				for (int j = 0; j < lines.size(); j++) {
+					OutputHandler.writeRecord(bw, ExpressionEvaluator.evalExpression(lines.get(j), true), filename, j);
+				}
+			} finally {
+				bw.close();
+			}
+		}
+		double singleMs = (System.nanoTime() - before) / 1e6 / repeat;
+		byte[] expected = Files.readAllBytes(Paths.get(filename + ".results"));
+		System.out.println("1 JVM: " + singleMs + " ms");
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int workers = 1; workers <= Math.max(2, cores); workers *= 2) {
+			ShardCoordinator coordinator = new ShardCoordinator(workers);
+			before = System.nanoTime();
+			for (int i = 0; i < repeat; i++) {
+				coordinator.evalFile(filename, true, filename + ".results");
+			}
+			double ms = (System.nanoTime() - before) / 1e6 / repeat;
+			boolean same = Arrays.equals(expected, Files.readAllBytes(Paths.get(filename + ".results")));
+			System.out.println(workers + " worker JVMs: " + ms + " ms, speedup " + singleMs / ms
+					+ (same ? "" : ", RESULTS DIFFER"));
+		}
+		new File(filename + ".results").delete();
+		new File(filename).delete();
+		dir.delete();
+	}
+
+	/**
+	 * Measure the end-to-end throughput of evalExpressionsToFile on a generated
+	 * file of 500000 lines, plain and gzip compressed, and the tokenization of
+	 * the compressed file decoded on the same thread and on a background thread.
+	 */
+	private static void benchmarkCompressed(int repeat) throws IOException {
+		File dir = Files.createTempDirectory("compressed").toFile();
+		String plain = new File(dir, "expressions.txt").getPath();
+		String compressed = plain + ".gz";
+		writeLines(plain, 500000, new Random(SEED));
+		InputStream in = new FileInputStream(plain);
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), 64 * 1024);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int length;
+			while ((length = in.read(buffer)) > 0) {
+				out.write(buffer, 0, length);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		double megabytes = new File(plain).length() / 1e6;
+		System.out.println("Input: " + megabytes + " MB, compressed " + new File(compressed).length() / 1e6 + " MB");
+
+		String[][] cases = { { plain, plain + ".results" }, { compressed, plain + ".results" },
+				{ compressed, plain + ".results.gz" } };
+		for (String[] files : cases) {
+			long before = System.nanoTime();
+			long lines = 0;
+			for (int i = 0; i < repeat; i++) {
+				lines = ExpressionEvaluator.evalExpressionsToFile(files[0], files[1], true, null);
+			}
+			double seconds = (System.nanoTime() - before) / 1e9 / repeat;
+			System.out.println(new File(files[0]).getName() + " -> " + new File(files[1]).getName() + ": "
+					+ seconds + " s, " + lines / seconds + " lines/s, " + megabytes / seconds + " MB/s");
+		}
+
+		for (boolean background : new boolean[] { false, true }) {
+			long before = System.nanoTime();
+			for (int i = 0; i < repeat; i++) {
+				BufferedReader br = background ? InputHandler.openReader(compressed)
+						: new BufferedReader(new InputStreamReader(
+								new GZIPInputStream(new FileInputStream(compressed), 64 * 1024)));
+				try {
+					String line;
+					while ((line = br.readLine()) != null) {
+						InputHandler.tokenize(line, new ExpressionCommon.ParseError());
+					}
+				} finally {
+					br.close();
+				}
+			}
+			double seconds = (System.nanoTime() - before) / 1e9 / repeat;
+			System.out.println("Tokenize compressed input, decoding " + (background ? "in background" : "inline")
+					+ ": " + seconds + " s, " + megabytes / seconds + " MB/s");
+		}
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Stream 100000 small expressions through EvaluationProcessor to a fast and
+	 * to a slow subscriber, spending 20 us per result, with ordered and unordered
+	 * delivery. The latency is the time from emitting the i-th expression to
+	 * delivering the i-th result; the publisher time is the longest onNext call,
+	 * which should never block.
+	 */
+	private static void benchmarkFlow(int repeat) throws InterruptedException {
+		Random random = new Random(SEED);
+		List<String> expressions = new ArrayList<String>();
+		for (int i = 0; i < 100000; i++) {
+			expressions.add(sumOfProducts(1 + random.nextInt(8), random));
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(cores);
+		try {
+			for (long consumeNanos : new long[] { 0, 20000 }) {
+				for (boolean ordered : new boolean[] { true, false }) {
+					double seconds = 0;
+					long[] latencies = null;
+					long maxOnNextNanos = 0;
+					for (int i = 0; i < repeat; i++) {
+						FlowSource source = new FlowSource(expressions);
+						FlowSink sink = new FlowSink(expressions.size(), consumeNanos, source.emitNanos);
+						EvaluationProcessor processor = new EvaluationProcessor(executor, 256, ordered, true);
+						processor.subscribe(sink);
+						long before = System.nanoTime();
+						source.subscribe(processor);
+						sink.done.await();
+						seconds += (System.nanoTime() - before) / 1e9;
+						latencies = sink.latencies;
+						maxOnNextNanos = Math.max(maxOnNextNanos, source.maxOnNextNanos);
+						if (sink.received.get() != expressions.size() || sink.failure != null) {
+							System.out.println("INCOMPLETE: " + sink.received.get() + " results, " + sink.failure);
+						}
+					}
+					seconds /= repeat;
+					Arrays.sort(latencies);
+					System.out.println((consumeNanos == 0 ? "fast" : "slow") + " subscriber, "
+							+ (ordered ? "ordered" : "unordered") + ": " + expressions.size() / seconds
+							+ " results/s, latency p50 " + latencies[latencies.length / 2] / 1e3 + " us, p99 "
+							+ latencies[latencies.length * 99 / 100] / 1e3 + " us, longest onNext "
+							+ maxOnNextNanos / 1e3 + " us");
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Evaluate 200000 small expressions held in memory one by one with
+	 * ExpressionEvaluator.evalExpression, and with BatchEvaluator with and
+	 * without the trees and with the specialized kernels.
+	 */
+	private static void benchmarkInMemory(int repeat) {
+		Random random = new Random(SEED);
+		String[] expressions = new String[200000];
+		for (int i = 0; i < expressions.length; i++) {
+			expressions[i] = sumOfProducts(1 + random.nextInt(8), random);
+		}
+		double[] results = new double[expressions.length];
+		int[] errorCodes = new int[expressions.length];
+		ExpressionScorer.Node[] trees = new ExpressionScorer.Node[expressions.length];
+		BatchEvaluator evaluator = new BatchEvaluator(true);
+		BatchEvaluator specialized = new BatchEvaluator(true, 0, true);
+		for (int mode = 0; mode < 4; mode++) {
+			long before = System.nanoTime();
+			for (int i = 0; i < repeat; i++) {
+				if (mode == 0) {
+					for (int j = 0; j < expressions.length; j++) {
+						results[j] = ExpressionEvaluator.evalExpression(expressions[j], true).value;
+					}
+				} else if (mode == 3) {
+					specialized.evaluate(expressions, results, errorCodes, null);
+				} else {
+					evaluator.evaluate(expressions, results, errorCodes, mode == 1 ? trees : null);
+				}
+			}
+			double seconds = (System.nanoTime() - before) / 1e9 / repeat;
+			String name = mode == 0 ? "evalExpression"
+					: mode == 1 ? "BatchEvaluator with trees" : mode == 2 ? "BatchEvaluator" : "BatchEvaluator specialized";
+			System.out.println(name + ": " + expressions.length / seconds + " expressions/s");
+		}
+	}
+
+	/**
+	 * Evaluate and render a batch of 20000 small expressions with a slow line
+	 * injected every 1000 lines, either a sum of 3000 terms whose tree is slow to
+	 * render or an invalid line of 2 MB, without budgets and with a budget of 2
+	 * ms per line, and report the latency percentiles of the lines.
+	 */
+	private static void benchmarkDeadlines(int repeat) throws IOException {
+		Random random = new Random(SEED);
+		String longSum = sumOfProducts(1, random);
+		StringBuilder builder = new StringBuilder(longSum);
+		for (int i = 1; i < 3000; i++) {
+			builder.append(" + 1");
+		}
+		longSum = builder.toString();
+		builder.setLength(0);
+		while (builder.length() < 2 * 1024 * 1024) {
+			builder.append("1 + ");
+		}
+		String hugeInvalid = builder.toString();
+		String[] lines = new String[20000];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = i % 1000 == 500 ? (i % 2000 == 500 ? longSum : hugeInvalid)
+					: sumOfProducts(1 + random.nextInt(8), random);
+		}
+		Writer sink = new Writer() {
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		long[] latencies = new long[lines.length];
+		for (long budgetNanos : new long[] { 0, 2000000 }) {
+			double seconds = 0;
+			int overBudget = 0;
+			for (int i = 0; i < repeat; i++) {
+				overBudget = 0;
+				long before = System.nanoTime();
+				for (int j = 0; j < lines.length; j++) {
+					long start = System.nanoTime();
+					Deadline deadline = budgetNanos == 0 ? Deadline.NONE : Deadline.after(budgetNanos);
+					ExpressionScorer.ExpressionVal rtn = ExpressionEvaluator.evalExpression(lines[j], true, deadline);
+					OutputHandler.write(sink, rtn, deadline);
+					if (deadline.expired()) {
+						overBudget++;
+					}
+					latencies[j] = System.nanoTime() - start;
+				}
+				seconds += (System.nanoTime() - before) / 1e9;
+			}
+			seconds /= repeat;
+			Arrays.sort(latencies);
+			System.out.println((budgetNanos == 0 ? "No budget" : "Budget " + budgetNanos / 1e6 + " ms") + ": "
+					+ seconds + " s, p50 " + latencies[lines.length / 2] / 1e3 + " us, p99 "
+					+ latencies[lines.length * 99 / 100] / 1e3 + " us, p99.9 "
+					+ latencies[lines.length * 999 / 1000] / 1e3 + " us, max " + latencies[lines.length - 1] / 1e3
+					+ " us, " + overBudget + " lines over budget");
+		}
+	}
+
+	/**
+	 * Evaluate 2000 files of 20 lines and 4 files of 10000 lines with
+	 * BatchScheduler on as many platform threads as cores and 4 times as many,
+	 * and with VirtualThreadScheduler evaluating on as many threads as cores.
+	 */
+	private static void benchmarkVirtualThreads(int repeat) throws IOException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		File dir = Files.createTempDirectory("virtual").toFile();
+		WorkloadGenerator generator = new WorkloadGenerator(SEED);
+		int[][] workloads = { { 2000, 20 }, { 4, 10000 } };
+		for (int[] workload : workloads) {
+			List<String> filenames = new ArrayList<String>();
+			for (int i = 0; i < workload[0]; i++) {
+				String filename = new File(dir, workload[0] + "_" + i + ".txt").getPath();
+				generator.writeFile(filename, workload[1]);
+				filenames.add(filename);
+			}
+			System.out.println(workload[0] + " files of " + workload[1] + " lines:");
+			for (int mode = 0; mode < 3; mode++) {
+				BatchScheduler pool = mode < 2 ? new BatchScheduler(mode == 0 ? cores : 4 * cores) : null;
+				VirtualThreadScheduler scheduler = mode == 2 ? new VirtualThreadScheduler() : null;
+				// Warm up.
+				if (pool != null) {
+					pool.evalFiles(filenames, true, null);
+				} else {
+					scheduler.evalFiles(filenames, true, null);
+				}
+				long before = System.nanoTime();
+				for (int i = 0; i < repeat; i++) {
+					if (pool != null) {
+						pool.evalFiles(filenames, true, null);
+					} else {
+						scheduler.evalFiles(filenames, true, null);
+					}
+				}
+				double seconds = (System.nanoTime() - before) / 1e9 / repeat;
+				String name = mode < 2 ? "BatchScheduler, " + (mode == 0 ? cores : 4 * cores) + " platform threads"
+						: "VirtualThreadScheduler, " + (scheduler.usesVirtualThreads() ? "virtual" : "platform")
+								+ " threads, " + cores + " evaluating";
+				System.out.println("  " + name + ": " + seconds + " s, "
+						+ (long) workload[0] * workload[1] / seconds + " lines/s");
+				if (pool != null) {
+					pool.shutdown();
+				} else {
+					scheduler.shutdown();
+				}
+			}
+		}
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Evaluate generated sums of products many times with the interpreter of
+	 * CompiledExpression and with TieredExpression once promoted, then check
+	 * that the classes evicted from a smaller cache are unloaded.
+	 */
+	private static void benchmarkBytecode(int repeat) {
+		Random random = new Random(SEED);
+		// Few expressions evaluated many times, since only the hot ones are
+		// promoted and JIT compiled.
+		int lines = 200;
+		int passes = 10000;
+		int threshold = TieredExpression.DEFAULT_THRESHOLD;
+		CompiledExpression[] compiled = new CompiledExpression[lines];
+		TieredExpression[] tiered = new TieredExpression[lines];
+		BytecodeCompiler compiler = new BytecodeCompiler(lines);
+		for (int i = 0; i < lines; i++) {
+			compiled[i] = CompiledExpression.compile(InputHandler.tokenize(sumOfProducts(8, random)), false);
+			tiered[i] = new TieredExpression(compiled[i], threshold, compiler);
+		}
+		double[] stack = new double[256];
+		double[] interpreted = new double[lines];
+		double[] generated = new double[lines];
+		// Promote every expression, which also warms up the interpreter.
+		long before = System.nanoTime();
+		for (int r = 0; r < threshold; r++) {
+			for (int i = 0; i < lines; i++) {
+				generated[i] = tiered[i].eval();
+			}
+		}
+		double promoteMs = (System.nanoTime() - before) / 1e6;
+		double interpretedMs = 0;
+		double generatedMs = 0;
+		for (int r = 0; r < repeat; r++) {
+			before = System.nanoTime();
+			for (int p = 0; p < passes; p++) {
+				for (int i = 0; i < lines; i++) {
+					interpreted[i] = compiled[i].eval(stack);
+				}
+			}
+			interpretedMs += (System.nanoTime() - before) / 1e6 / repeat;
+			before = System.nanoTime();
+			for (int p = 0; p < passes; p++) {
+				for (int i = 0; i < lines; i++) {
+					generated[i] = tiered[i].eval();
+				}
+			}
+			generatedMs += (System.nanoTime() - before) / 1e6 / repeat;
+		}
+		int mismatches = 0;
+		int promoted = 0;
+		for (int i = 0; i < lines; i++) {
+			if (Double.doubleToLongBits(interpreted[i]) != Double.doubleToLongBits(generated[i])) {
+				mismatches++;
+			}
+			if (tiered[i].isPromoted()) {
+				promoted++;
+			}
+		}
+		System.out.println(lines + " expressions x " + passes + " passes: interpreted " + interpretedMs
+				+ " ms, generated " + generatedMs + " ms, speedup " + interpretedMs / generatedMs + ", " + promoted
+				+ " promoted in " + promoteMs + " ms ("
+				+ (BytecodeCompiler.usesHiddenClasses() ? "hidden classes" : "class loaders") + "), " + mismatches
+				+ " mismatches");
+
+		ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+		long unloadedBefore = classLoading.getUnloadedClassCount();
+		BytecodeCompiler small = new BytecodeCompiler(lines / 10);
+		for (int i = 0; i < lines; i++) {
+			new TieredExpression(compiled[i], 1, small).eval();
+		}
+		System.gc();
+		System.out.println("Cache of " + lines / 10 + ": " + small.generatedCount() + " classes generated, "
+				+ (classLoading.getUnloadedClassCount() - unloadedBefore) + " unloaded after GC");
+	}
+
+	/**
+	 * Publisher of a list of expressions, emitting on demand in the thread which
+	 * requests them.
+	 */
+	private static class FlowSource implements ExpressionFlow.Publisher<String> {
+		private final List<String> expressions;
+		final long[] emitNanos;
+		volatile long maxOnNextNanos;
+
+		FlowSource(List<String> expressions) {
+			this.expressions = expressions;
+			this.emitNanos = new long[expressions.size()];
+		}
+
+		@Override
+		public void subscribe(ExpressionFlow.Subscriber<? super String> subscriber) {
+			AtomicLong requested = new AtomicLong();
+			AtomicInteger wip = new AtomicInteger();
+			int[] next = new int[1];
+			subscriber.onSubscribe(new ExpressionFlow.Subscription() {
+				@Override
+				public void request(long n) {
+					requested.addAndGet(n);
+					if (wip.getAndIncrement() != 0) {
+						return;
+					}
+					int missed = 1;
+					while (true) {
+						long demand = requested.get();
+						long emitted = 0;
+						while (emitted != demand && next[0] < expressions.size()) {
+							int i = next[0]++;
+							long before = System.nanoTime();
+							emitNanos[i] = before;
+							subscriber.onNext(expressions.get(i));
+							maxOnNextNanos = Math.max(maxOnNextNanos, System.nanoTime() - before);
+							emitted++;
+						}
+						requested.addAndGet(-emitted);
+						if (next[0] == expressions.size()) {
+							next[0]++;
+							subscriber.onComplete();
+						}
+						missed = wip.addAndGet(-missed);
+						if (missed == 0) {
+							return;
+						}
+					}
+				}
+
+				@Override
+				public void cancel() {
+					next[0] = expressions.size() + 1;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Subscriber spending |consumeNanos| per result, requesting 64 results at a
+	 * time.
+	 */
+	private static class FlowSink implements ExpressionFlow.Subscriber<ExpressionScorer.ExpressionVal> {
+		private static final int BATCH = 64;
+		private final long consumeNanos;
+		private final long[] emitNanos;
+		final long[] latencies;
+		final AtomicInteger received = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Throwable failure;
+		private ExpressionFlow.Subscription subscription;
+
+		FlowSink(int expected, long consumeNanos, long[] emitNanos) {
+			this.consumeNanos = consumeNanos;
+			this.emitNanos = emitNanos;
+			this.latencies = new long[expected];
+		}
+
+		@Override
+		public void onSubscribe(ExpressionFlow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(BATCH);
+		}
+
+		@Override
+		public void onNext(ExpressionScorer.ExpressionVal item) {
+			int i = received.getAndIncrement();
+			long now = System.nanoTime();
+			latencies[i] = now - emitNanos[i];
+			while (System.nanoTime() - now < consumeNanos) {
+				// Busy wait, sleeping is far less precise.
+			}
+			if ((i + 1) % BATCH == 0) {
+				subscription.request(BATCH);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			failure = throwable;
+			done.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Write a file of small sums of products, one per line.
+	 */
+	private static void writeLines(String filename, int lines, Random random) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(filename));
+		try {
+			for (int i = 0; i < lines; i++) {
+				bw.write(sumOfProducts(1 + random.nextInt(8), random));
+				bw.newLine();
+			}
+		} finally {
+			bw.close();
+		}
+	}
+
+	/**
+	 * @return Number of values differing from the expected ones and the largest
+	 *         difference in ulps.
+	 */
+	private static String ulpStats(double[] expected, double[] actual) {
+		int differing = 0;
+		double maxUlps = 0;
+		for (int i = 0; i < expected.length; i++) {
+			if (Double.doubleToLongBits(expected[i]) == Double.doubleToLongBits(actual[i])) {
+				continue;
+			}
+			differing++;
+			maxUlps = Math.max(maxUlps, Math.abs(expected[i] - actual[i]) / Math.ulp(expected[i]));
+		}
+		return differing + " of " + expected.length + " differ, max " + maxUlps + " ulps";
+	}
+
+	/**
+	 * @return Expression like "a*b^2/c + log(d, e)*f - ..." with |terms| terms.
+	 */
+	private static String sumOfProducts(int terms, Random random) {
+		StringBuilder rtn = new StringBuilder();
+		for (int i = 0; i < terms; i++) {
+			if (i > 0) {
+				rtn.append(random.nextInt(4) == 0 ? " - " : " + ");
+			}
+			int factors = 1 + random.nextInt(4);
+			for (int j = 0; j < factors; j++) {
+				if (j > 0) {
+					rtn.append(random.nextBoolean() ? "*" : "/");
+				}
+				switch (random.nextInt(4)) {
+				case 0:
+					rtn.append(1 + random.nextInt(9)).append("^2");
+					break;
+				case 1:
+					rtn.append("log(").append(2 + random.nextInt(8)).append(", ").append(1 + random.nextInt(100))
+							.append(")");
+					break;
+				default:
+					rtn.append(random.nextInt(1000) / 10.0);
+				}
+			}
+		}
+		return rtn.toString();
+	}
+}
@@ -0,0 +1,481 @@
+package ExpressionEval;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generator of one class per compiled expression, whose eval() computes the
+ * expression with straight-line double arithmetic instead of the opcode loop
+ * of CompiledExpression.eval, so that the JIT compiles it like a hand-written
+ * method. See TieredExpression for when an expression is generated.
+ *
+ * The generated code mirrors CompiledExpression.eval instruction by
+ * instruction: the numbers become constants, the operators the same double
+ * bytecodes, and ^ and log the same calls of Math and MathKernels, so the
+ * value is exactly the one of the interpreter. An expression whose code would
+ * exceed MAX_CODE_BYTES is not generated, since HotSpot does not JIT compile
+ * larger methods and it would run slower than the interpreter.
+ *
+ * On Java 15 or later each class is a hidden class of this package, otherwise
+ * it is defined by its own class loader. Either way the class is unloaded
+ * once nothing refers to it. The generated expressions are kept in an LRU
+ * cache of bounded size, keyed by the compiled code, so that the same
+ * expression is generated once and an evicted one could be unloaded when its
+ * TieredExpressions are gone.
+ *
+ */
+public class BytecodeCompiler {
+	/**
+	 * HotSpot's HugeMethodLimit, the largest method it JIT compiles.
+	 */
+	static final int MAX_CODE_BYTES = 8000;
+
+	private static final String CLASS_NAME = "ExpressionEval/GeneratedExpression";
+	private static final String KERNEL_NAME = Kernel.class.getName().replace('.', '/');
+	private static final String KERNELS_NAME = MathKernels.class.getName().replace('.', '/');
+
+	// Opcodes of the JVM used by the generated code.
+	private static final int ALOAD_0 = 0x2a;
+	private static final int DCONST_0 = 0x0e;
+	private static final int DCONST_1 = 0x0f;
+	private static final int BIPUSH = 0x10;
+	private static final int LDC2_W = 0x14;
+	private static final int POP2 = 0x58;
+	private static final int DUP2_X2 = 0x5e;
+	private static final int DADD = 0x63;
+	private static final int DSUB = 0x67;
+	private static final int DMUL = 0x6b;
+	private static final int DDIV = 0x6f;
+	private static final int DRETURN = 0xaf;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+
+	// Lookup.defineHiddenClass and its empty ClassOption array, or null before
+	// Java 15.
+	private static final Method DEFINE_HIDDEN_CLASS;
+	private static final Object NO_CLASS_OPTIONS;
+
+	static {
+		Method method = null;
+		Object options = null;
+		try {
+			Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			options = Array.newInstance(optionClass, 0);
+			method = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class,
+					options.getClass());
+		} catch (ReflectiveOperationException ex) {
+			method = null;
+		}
+		DEFINE_HIDDEN_CLASS = method;
+		NO_CLASS_OPTIONS = options;
+	}
+
+	private static final BytecodeCompiler shared = new BytecodeCompiler(1024);
+
+	/**
+	 * Implemented by the generated classes. It is public since the classes
+	 * defined by their own class loaders could not access it otherwise.
+	 */
+	public interface Kernel {
+		/**
+		 * @return Value of the expression.
+		 */
+		double eval();
+	}
+
+	private final Map<Key, Kernel> cache;
+	private long generatedCount;
+
+	/**
+	 * @param capacity
+	 *            Maximum number of the generated expressions kept in the cache.
+	 */
+	public BytecodeCompiler(final int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity should be positive");
+		}
+		this.cache = new LinkedHashMap<Key, Kernel>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Kernel> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return The compiler shared by the TieredExpressions by default.
+	 */
+	public static BytecodeCompiler shared() {
+		return shared;
+	}
+
+	/**
+	 * @return Whether the generated classes are hidden classes.
+	 */
+	public static boolean usesHiddenClasses() {
+		return DEFINE_HIDDEN_CLASS != null;
+	}
+
+	/**
+	 * Get the generated expression from the cache, or generate it.
+	 *
+	 * @param expression
+	 *            The compiled expression.
+	 * @return The generated expression, or null if it is too large or could not
+	 *         be defined, in which case it should stay interpreted.
+	 */
+	public synchronized Kernel compile(CompiledExpression expression) {
+		Key key = new Key(expression.code, expression.operands);
+		Kernel rtn = cache.get(key);
+		if (rtn == null) {
+			byte[] bytes = generate(expression);
+			if (bytes == null) {
+				return null;
+			}
+			rtn = define(bytes);
+			if (rtn == null) {
+				return null;
+			}
+			generatedCount++;
+			cache.put(key, rtn);
+		}
+		return rtn;
+	}
+
+	/**
+	 * @return Number of the generated expressions in the cache.
+	 */
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	/**
+	 * @return Number of the classes generated so far, including the evicted
+	 *         ones.
+	 */
+	public synchronized long generatedCount() {
+		return generatedCount;
+	}
+
+	/**
+	 * Helper function to define the generated class and create its instance.
+	 */
+	private static Kernel define(byte[] bytes) {
+		try {
+			Class<?> cls;
+			if (DEFINE_HIDDEN_CLASS != null) {
+				MethodHandles.Lookup lookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(MethodHandles.lookup(),
+						bytes, true, NO_CLASS_OPTIONS);
+				cls = lookup.lookupClass();
+			} else {
+				cls = new ExpressionLoader().define(bytes);
+			}
+			return (Kernel) cls.getConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * A class loader per generated class, so that the class is unloaded with its
+	 * loader on JVMs without hidden classes.
+	 */
+	private static class ExpressionLoader extends ClassLoader {
+		ExpressionLoader() {
+			super(BytecodeCompiler.class.getClassLoader());
+		}
+
+		Class<?> define(byte[] bytes) {
+			return defineClass(CLASS_NAME.replace('/', '.'), bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * Generate the class file of a compiled expression.
+	 *
+	 * @return The class file, or null if the code of eval() would exceed
+	 *         MAX_CODE_BYTES.
+	 */
+	static byte[] generate(CompiledExpression expression) {
+		ConstantPool pool = new ConstantPool();
+		MethodCode eval = new MethodCode(pool);
+		for (int i = 0; i < expression.code.length; i++) {
+			switch (expression.code[i]) {
+			case ExpressionCommon.OP_NUMBER:
+				eval.pushDouble(expression.operands[i]);
+				break;
+			case CompiledExpression.OP_SKIP:
+			case ExpressionCommon.OP_UNARY_PLUS:
+				break;
+			case ExpressionCommon.OP_UNARY_MINUS:
+				// -1 * v, the multiplication is commutative.
+				eval.pushDouble(-1);
+				eval.op(DMUL, -2);
+				break;
+			case ExpressionCommon.OP_ADD:
+				eval.op(DADD, -2);
+				break;
+			case ExpressionCommon.OP_SUBTRACT:
+				eval.op(DSUB, -2);
+				break;
+			case ExpressionCommon.OP_MULTIPLY:
+				eval.op(DMUL, -2);
+				break;
+			case ExpressionCommon.OP_DIVIDE:
+				eval.op(DDIV, -2);
+				break;
+			case ExpressionCommon.OP_POWER:
+				eval.invokeStatic("java/lang/Math", "pow", "(DD)D", -2);
+				break;
+			case ExpressionCommon.OP_LOG:
+				eval.invokeStatic(KERNELS_NAME, "log", "(DD)D", -2);
+				break;
+			case CompiledExpression.OP_POWER_INT:
+				eval.pushByte((int) expression.operands[i]);
+				eval.invokeStatic(KERNELS_NAME, "powInt", "(DI)D", -1);
+				break;
+			case CompiledExpression.OP_LOG_HOISTED:
+			case CompiledExpression.OP_LOG_RECIPROCAL:
+				// The constant is the first argument, so swap it below x.
+				eval.pushDouble(expression.operands[i]);
+				eval.op(DUP2_X2, 2);
+				eval.op(POP2, -2);
+				eval.invokeStatic(KERNELS_NAME,
+						expression.code[i] == CompiledExpression.OP_LOG_HOISTED ? "logHoisted" : "logReciprocal",
+						"(DD)D", -2);
+				break;
+			default:
+				throw new IllegalArgumentException("Unrecognizable opcode");
+			}
+			if (eval.code.size() >= MAX_CODE_BYTES) {
+				return null;
+			}
+		}
+		eval.op(DRETURN, -2);
+
+		MethodCode init = new MethodCode(pool);
+		init.op(ALOAD_0, 1);
+		init.op(INVOKESPECIAL, -1);
+		init.writeShort(pool.methodRef("java/lang/Object", "<init>", "()V"));
+		init.op(RETURN, 0);
+
+		int thisClass = pool.classRef(CLASS_NAME);
+		int superClass = pool.classRef("java/lang/Object");
+		int kernelClass = pool.classRef(KERNEL_NAME);
+		int initName = pool.utf8("<init>");
+		int initType = pool.utf8("()V");
+		int evalName = pool.utf8("eval");
+		int evalType = pool.utf8("()D");
+		int codeName = pool.utf8("Code");
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xcafebabe);
+			// Java 8 class file, which needs no stack map frames without branches.
+			out.writeShort(0);
+			out.writeShort(52);
+			pool.writeTo(out);
+			// ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+			out.writeShort(0x31);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(kernelClass);
+			// No fields, two methods.
+			out.writeShort(0);
+			out.writeShort(2);
+			init.writeTo(out, initName, initType, codeName);
+			eval.writeTo(out, evalName, evalType, codeName);
+			// No class attributes.
+			out.writeShort(0);
+			return bytes.toByteArray();
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Constant pool of the generated class, with every constant added once.
+	 */
+	private static class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final Map<Object, Integer> indexes = new HashMap<Object, Integer>();
+		// Index 0 is not used.
+		private int count = 1;
+
+		int utf8(String value) {
+			Integer rtn = indexes.get(value);
+			if (rtn == null) {
+				rtn = add(value, 1);
+				try {
+					out.writeByte(1);
+					out.writeUTF(value);
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+			return rtn;
+		}
+
+		int classRef(String name) {
+			return addRef("Class " + name, 7, utf8(name), -1);
+		}
+
+		int methodRef(String owner, String name, String type) {
+			int nameAndType = addRef("NameAndType " + name + type, 12, utf8(name), utf8(type));
+			return addRef("Methodref " + owner + "." + name + type, 10, classRef(owner), nameAndType);
+		}
+
+		int doubleConstant(double value) {
+			// The raw bits, so that 0.0 and -0.0 are different constants.
+			Long key = Double.doubleToRawLongBits(value);
+			Integer rtn = indexes.get(key);
+			if (rtn == null) {
+				rtn = add(key, 2);
+				try {
+					out.writeByte(6);
+					out.writeLong(key);
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+			return rtn;
+		}
+
+		private int addRef(String key, int tag, int first, int second) {
+			Integer rtn = indexes.get(key);
+			if (rtn == null) {
+				rtn = add(key, 1);
+				try {
+					out.writeByte(tag);
+					out.writeShort(first);
+					if (second >= 0) {
+						out.writeShort(second);
+					}
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+			return rtn;
+		}
+
+		private Integer add(Object key, int slots) {
+			Integer rtn = count;
+			indexes.put(key, rtn);
+			// A double takes two entries.
+			count += slots;
+			return rtn;
+		}
+
+		void writeTo(DataOutputStream classFile) throws IOException {
+			classFile.writeShort(count);
+			bytes.writeTo(classFile);
+		}
+	}
+
+	/**
+	 * Code of one method, tracking the depth of the operand stack in slots.
+	 */
+	private static class MethodCode {
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		private final ConstantPool pool;
+		private int depth;
+		private int maxDepth;
+
+		MethodCode(ConstantPool pool) {
+			this.pool = pool;
+		}
+
+		void op(int opcode, int stackDelta) {
+			code.write(opcode);
+			depth += stackDelta;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		void writeShort(int value) {
+			code.write(value >>> 8);
+			code.write(value);
+		}
+
+		void pushDouble(double value) {
+			long bits = Double.doubleToRawLongBits(value);
+			if (bits == 0) {
+				op(DCONST_0, 2);
+			} else if (bits == Double.doubleToRawLongBits(1)) {
+				op(DCONST_1, 2);
+			} else {
+				op(LDC2_W, 2);
+				writeShort(pool.doubleConstant(value));
+			}
+		}
+
+		void pushByte(int value) {
+			op(BIPUSH, 1);
+			code.write(value);
+		}
+
+		void invokeStatic(String owner, String name, String type, int stackDelta) {
+			op(INVOKESTATIC, stackDelta);
+			writeShort(pool.methodRef(owner, name, type));
+		}
+
+		void writeTo(DataOutputStream out, int name, int type, int codeName) throws IOException {
+			// ACC_PUBLIC
+			out.writeShort(0x1);
+			out.writeShort(name);
+			out.writeShort(type);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(12 + code.size());
+			out.writeShort(maxDepth);
+			// Only |this| is a local.
+			out.writeShort(1);
+			out.writeInt(code.size());
+			code.writeTo(out);
+			// No exception table and no attributes.
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+	}
+
+	/**
+	 * Cache key of a compiled expression, comparing its code and operands.
+	 */
+	private static class Key {
+		private final byte[] code;
+		private final double[] operands;
+		private final int hash;
+
+		Key(byte[] code, double[] operands) {
+			this.code = code;
+			this.operands = operands;
+			this.hash = 31 * Arrays.hashCode(code) + Arrays.hashCode(operands);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && Arrays.equals(code, other.code) && Arrays.equals(operands, other.operands);
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package ExpressionEval;
+
+import java.util.List;
+
+/**
+ * An expression compiled from its reverse polish notations into an opcode
+ * array, so that it could be evaluated many times without the tokens.
+ *
+ * The kernels of ^ and log are selected here once instead of on every call:
+ * a constant integer exponent uses MathKernels.powInt and a constant log base
+ * uses its hoisted logarithm or reciprocal. The constant operand is folded into
+ * the instruction, so it is not pushed on the stack. Everything else is
+ * evaluated with the same arithmetic and, on request, the same operation cache
+ * as ExpressionScorer.evalRpn, see MathKernels for the accuracy of the kernels.
+ *
+ */
+public class CompiledExpression {
+	// Instructions in addition to the opcodes of ExpressionCommon.
+	static final byte OP_POWER_INT = 9;
+	static final byte OP_LOG_HOISTED = 10;
+	static final byte OP_LOG_RECIPROCAL = 11;
+	// The number is the right operand of the next instruction and is not pushed.
+	static final byte OP_SKIP = 12;
+
+	final byte[] code;
+	// Number of OP_NUMBER, exponent of OP_POWER_INT, ln(base) of OP_LOG_HOISTED
+	// and 1 / ln(base) of OP_LOG_RECIPROCAL.
+	final double[] operands;
+	// Index in the original expression string of each instruction, for the
+	// TIMEOUT error.
+	final int[] positions;
+	final int maxStack;
+
+	private CompiledExpression(byte[] code, double[] operands, int[] positions, int maxStack) {
+		this.code = code;
+		this.operands = operands;
+		this.positions = positions;
+		this.maxStack = maxStack;
+	}
+
+	/**
+	 * Compile the tokens of an expression.
+	 *
+	 * @param tokens
+	 *            Token parsed by the InputHandler.
+	 * @param specialize
+	 *            Whether to select the specialized kernels of ^ and log.
+	 * @return The compiled expression.
+	 */
+	public static CompiledExpression compile(List<ExpressionCommon.Token> tokens, boolean specialize) {
+		ExpressionCommon.ParseError error = new ExpressionCommon.ParseError();
+		CompiledExpression rtn = compile(tokens, specialize, error, Deadline.NONE);
+		if (rtn == null) {
+			throw new IllegalArgumentException(error.toString());
+		}
+		return rtn;
+	}
+
+	/**
+	 * Same as compile(tokens, specialize), but reports operators missing their
+	 * operands through |error| instead of throwing an exception, and fails with
+	 * the TIMEOUT error once the deadline expires.
+	 *
+	 * @param tokens
+	 *            Token parsed by the InputHandler.
+	 * @param specialize
+	 *            Whether to select the specialized kernels of ^ and log.
+	 * @param error
+	 *            Filled with the error code and position if the tokens could not
+	 *            be compiled or the deadline expired.
+	 * @param deadline
+	 *            Deadline of the expression.
+	 * @return The compiled expression, or null if the tokens could not be
+	 *         compiled.
+	 */
+	static CompiledExpression compile(List<ExpressionCommon.Token> tokens, boolean specialize,
+			ExpressionCommon.ParseError error, Deadline deadline) {
+		List<ExpressionCommon.Token> rpnTokens;
+		try {
+			rpnTokens = ExpressionScorer.toRPN(tokens, deadline);
+		} catch (Deadline.Exceeded ex) {
+			return ex.fail(error);
+		}
+		if (!ExpressionScorer.checkRpn(rpnTokens, error)) {
+			return null;
+		}
+		int size = rpnTokens.size();
+		byte[] code = new byte[size];
+		double[] operands = new double[size];
+		int[] positions = new int[size];
+		// Index of the last token of each operand on the stack.
+		int[] stack = new int[size];
+		int top = -1;
+		for (int i = 0; i < size; i++) {
+			ExpressionCommon.Token token = rpnTokens.get(i);
+			byte opcode = ExpressionCommon.toOpcode(token);
+			code[i] = opcode;
+			positions[i] = token.position;
+			if (opcode == ExpressionCommon.OP_NUMBER) {
+				operands[i] = token.number;
+			} else if (opcode == ExpressionCommon.OP_UNARY_PLUS || opcode == ExpressionCommon.OP_UNARY_MINUS) {
+				top--;
+			} else {
+				int right = stack[top--];
+				int left = stack[top--];
+				if (specialize) {
+					specialize(code, operands, i, left, right);
+				}
+			}
+			stack[++top] = i;
+		}
+		return new CompiledExpression(code, operands, positions, maxStack(code));
+	}
+
+	/**
+	 * Helper function to select the kernel of the binary operator at |i|.
+	 */
+	private static void specialize(byte[] code, double[] operands, int i, int left, int right) {
+		if (code[i] == ExpressionCommon.OP_POWER && code[right] == ExpressionCommon.OP_NUMBER
+				&& MathKernels.isIntExponent(operands[right])) {
+			code[i] = OP_POWER_INT;
+			operands[i] = operands[right];
+			code[right] = OP_SKIP;
+		} else if (code[i] == ExpressionCommon.OP_LOG && code[left] == ExpressionCommon.OP_NUMBER) {
+			double reciprocal = MathKernels.reciprocalLn(operands[left]);
+			if (reciprocal != 0) {
+				code[i] = OP_LOG_RECIPROCAL;
+				operands[i] = reciprocal;
+			} else {
+				code[i] = OP_LOG_HOISTED;
+				operands[i] = Math.log(operands[left]);
+			}
+			code[left] = OP_SKIP;
+		}
+	}
+
+	private static int maxStack(byte[] code) {
+		int depth = 0;
+		int rtn = 0;
+		for (byte opcode : code) {
+			switch (opcode) {
+			case ExpressionCommon.OP_NUMBER:
+				rtn = Math.max(rtn, ++depth);
+				break;
+			case ExpressionCommon.OP_ADD:
+			case ExpressionCommon.OP_SUBTRACT:
+			case ExpressionCommon.OP_MULTIPLY:
+			case ExpressionCommon.OP_DIVIDE:
+			case ExpressionCommon.OP_POWER:
+			case ExpressionCommon.OP_LOG:
+				depth--;
+				break;
+			default:
+				// Unary operators and the folded binary operators keep the depth.
+			}
+		}
+		return rtn;
+	}
+
+	/**
+	 * @return Number of the instructions, including the skipped numbers.
+	 */
+	public int size() {
+		return code.length;
+	}
+
+	/**
+	 * @return Value of the expression.
+	 */
+	public double eval() {
+		return eval(new double[maxStack]);
+	}
+
+	/**
+	 * Evaluate the expression with a caller provided stack, so that evaluating
+	 * it repeatedly does not allocate.
+	 *
+	 * @param stack
+	 *            At least maxStack() doubles.
+	 * @return Value of the expression.
+	 */
+	public double eval(double[] stack) {
+		return eval(stack, false, Deadline.NONE);
+	}
+
+	/**
+	 * Same as eval(stack), applying *, /, ^ and log through the operation cache
+	 * if |useCachedValue| is true, except the specialized kernels, and checking
+	 * the deadline.
+	 *
+	 * @param stack
+	 *            At least maxStack() doubles.
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @param deadline
+	 *            Deadline of the expression.
+	 * @return Value of the expression.
+	 * @throws Deadline.Exceeded
+	 *             If the deadline expired.
+	 */
+	double eval(double[] stack, boolean useCachedValue, Deadline deadline) {
+		int top = -1;
+		for (int i = 0; i < code.length; i++) {
+			deadline.check(i, positions[i]);
+			switch (code[i]) {
+			case ExpressionCommon.OP_NUMBER:
+				stack[++top] = operands[i];
+				break;
+			case OP_SKIP:
+			case ExpressionCommon.OP_UNARY_PLUS:
+				break;
+			case ExpressionCommon.OP_UNARY_MINUS:
+				stack[top] = -1 * stack[top];
+				break;
+			case ExpressionCommon.OP_ADD:
+				top--;
+				stack[top] = stack[top] + stack[top + 1];
+				break;
+			case ExpressionCommon.OP_SUBTRACT:
+				top--;
+				stack[top] = stack[top] - stack[top + 1];
+				break;
+			case ExpressionCommon.OP_MULTIPLY:
+			case ExpressionCommon.OP_DIVIDE:
+			case ExpressionCommon.OP_POWER:
+			case ExpressionCommon.OP_LOG:
+				top--;
+				stack[top] = ExpressionScorer.applyCached(code[i], stack[top], stack[top + 1], useCachedValue);
+				break;
+			case OP_POWER_INT:
+				stack[top] = MathKernels.powInt(stack[top], (int) operands[i]);
+				break;
+			case OP_LOG_HOISTED:
+				stack[top] = MathKernels.logHoisted(operands[i], stack[top]);
+				break;
+			case OP_LOG_RECIPROCAL:
+				stack[top] = MathKernels.logReciprocal(operands[i], stack[top]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unrecognizable opcode");
+			}
+		}
+		return stack[top];
+	}
+
+	/**
+	 * @return Number of doubles needed by eval(double[]).
+	 */
+	public int maxStack() {
+		return maxStack;
+	}
+}
@@ -0,0 +1,133 @@
+package ExpressionEval;
+
+/**
+ * A time budget which could also be cancelled, checked cooperatively by the
+ * tokenizer, the evaluator and the renderer of the expression trees, so that
+ * one pathological expression ends with a TIMEOUT error instead of stalling
+ * the rest of its batch.
+ *
+ * The tokenizer and the evaluators check the deadline every CHECK_INTERVAL
+ * steps, so the check costs one System.nanoTime call per thousand characters
+ * or tokens. The renderer checks it at every node, since rendering a node
+ * copies a prefix as long as its depth and costs more than a thousand cheap
+ * steps of a deep tree. A per-expression deadline is usually derived from the
+ * deadline of its batch with within(), so it expires with the batch and is
+ * cancelled with it.
+ *
+ */
+public class Deadline {
+	/**
+	 * Number of loop steps between two checks.
+	 */
+	static final int CHECK_INTERVAL = 1024;
+
+	/**
+	 * A deadline which never expires and could not be cancelled.
+	 */
+	public static final Deadline NONE = new Deadline(Long.MAX_VALUE, null) {
+		@Override
+		public void cancel() {
+			throw new UnsupportedOperationException("Deadline.NONE could not be cancelled");
+		}
+
+		@Override
+		public boolean expired() {
+			return false;
+		}
+	};
+
+	private final long deadlineNanos;
+	private final Deadline parent;
+	private volatile boolean cancelled;
+
+	private Deadline(long deadlineNanos, Deadline parent) {
+		this.deadlineNanos = deadlineNanos;
+		this.parent = parent;
+	}
+
+	/**
+	 * @param budgetNanos
+	 *            Budget from now in nanoseconds, or 0 for no time limit.
+	 * @return A deadline which expires after the budget or when it is cancelled.
+	 */
+	public static Deadline after(long budgetNanos) {
+		return new Deadline(budgetNanos > 0 ? System.nanoTime() + budgetNanos : Long.MAX_VALUE, null);
+	}
+
+	/**
+	 * @param budgetNanos
+	 *            Budget from now in nanoseconds, or 0 for no limit but this
+	 *            deadline.
+	 * @return A new deadline which expires after the budget, or with this
+	 *         deadline. Cancelling it does not cancel this deadline.
+	 */
+	public Deadline within(long budgetNanos) {
+		Deadline parent = this == NONE ? null : this;
+		if (budgetNanos <= 0) {
+			return new Deadline(deadlineNanos, parent);
+		}
+		long rtn = System.nanoTime() + budgetNanos;
+		if (deadlineNanos != Long.MAX_VALUE && deadlineNanos - rtn < 0) {
+			rtn = deadlineNanos;
+		}
+		return new Deadline(rtn, parent);
+	}
+
+	/**
+	 * Expire the deadline and the deadlines derived from it now. Could be called
+	 * from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled || (parent != null && parent.isCancelled());
+	}
+
+	/**
+	 * @return Whether the budget is spent or the deadline is cancelled.
+	 */
+	public boolean expired() {
+		return isCancelled() || (deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos >= 0);
+	}
+
+	/**
+	 * Helper function for the loops, checking the deadline at every
+	 * CHECK_INTERVAL-th step.
+	 *
+	 * @param step
+	 *            Index of the loop step.
+	 * @param position
+	 *            Index in the original expression string reported by the error.
+	 * @throws Exceeded
+	 *             If the deadline expired.
+	 */
+	void check(int step, int position) {
+		if ((step & (CHECK_INTERVAL - 1)) == 0 && expired()) {
+			throw new Exceeded(position, isCancelled());
+		}
+	}
+
+	/**
+	 * Thrown by check() out of the loops, and converted into a TIMEOUT error by
+	 * their callers. It has no stack trace since it is not a bug.
+	 */
+	static class Exceeded extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final int position;
+
+		Exceeded(int position, boolean cancelled) {
+			super(cancelled ? "Cancelled" : "Deadline exceeded", null, false, false);
+			this.position = position;
+		}
+
+		/**
+		 * Fill |error| with the TIMEOUT error and return null to the caller.
+		 */
+		<T> T fail(ExpressionCommon.ParseError error) {
+			error.set(ExpressionCommon.ErrorCode.TIMEOUT, position, getMessage());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package ExpressionEval;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigInteger;
+
+/**
+ * Formats doubles into caller provided char buffers without allocating. The
+ * text is the shortest decimal which rounds back to the same double, laid out
+ * exactly like Double.toString: plain notation for magnitudes in [1e-3, 1e7)
+ * and computerized scientific notation otherwise, e.g. "264.0", "0.01",
+ * "1.0E-4". The compact mode drops the ".0" of integral values in plain
+ * notation, e.g. "264".
+ *
+ * The shortest decimal is found with the Schubfach algorithm of Raffaello
+ * Giulietti, the one of Double.toString since JDK 19: the rounding interval of
+ * the double is scaled by a 126 bit approximation of a power of ten, so that
+ * the candidates of one fewer digit and of the closest digits could be checked
+ * with a few 64 bit multiplications. The table of the powers of ten is
+ * computed once when the class is loaded; formatting a double never allocates.
+ *
+ * Double.toString only produces the shortest decimal since JDK 19. On older
+ * JDKs it occasionally prints one extra digit, in which case the text of this
+ * class is shorter but still parses back to the same double.
+ *
+ */
+public class DoubleFormatter {
+	// Longest text is like "-2.2250738585072014E-308".
+	public static final int MAX_LENGTH = 32;
+
+	// Precision and exponent range of double, and the range of the decimal
+	// exponents of the table, see the Schubfach paper.
+	private static final int P = 53;
+	private static final int Q_MIN = -1074;
+	private static final long C_MIN = 1L << (P - 1);
+	private static final int C_TINY = 3;
+	private static final int K_MIN = -324;
+	private static final int K_MAX = 292;
+	private static final int EXPONENT_MASK = (1 << 11) - 1;
+	private static final long SIGNIFICAND_MASK = C_MIN - 1;
+	private static final long MASK_63 = (1L << 63) - 1;
+
+	// For every k in [K_MIN, K_MAX], 10^-k = beta * 2^r with 2^125 <= beta <
+	// 2^126, and g = floor(beta) + 1 split into its high and low 63 bits.
+	private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+	static {
+		for (int k = K_MIN; k <= K_MAX; k++) {
+			int shift = 125 - flog2pow10(-k);
+			BigInteger numerator = k <= 0 ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+			BigInteger denominator = k <= 0 ? BigInteger.ONE : BigInteger.TEN.pow(k);
+			if (shift >= 0) {
+				numerator = numerator.shiftLeft(shift);
+			} else {
+				denominator = denominator.shiftLeft(-shift);
+			}
+			BigInteger g = numerator.divide(denominator).add(BigInteger.ONE);
+			G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+			G[2 * (k - K_MIN) + 1] = g.longValue() & MASK_63;
+		}
+	}
+
+	private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[MAX_LENGTH];
+		}
+	};
+
+	/**
+	 * Format the double like Double.toString into |buf|.
+	 *
+	 * @param value
+	 *            The double to format.
+	 * @param buf
+	 *            Destination with at least MAX_LENGTH chars after |offset|.
+	 * @param offset
+	 *            Index in |buf| of the first char.
+	 * @return Number of chars written.
+	 */
+	public static int format(double value, char[] buf, int offset) {
+		return format(value, buf, offset, false);
+	}
+
+	/**
+	 * Format the double into |buf|.
+	 *
+	 * @param value
+	 *            The double to format.
+	 * @param buf
+	 *            Destination with at least MAX_LENGTH chars after |offset|.
+	 * @param offset
+	 *            Index in |buf| of the first char.
+	 * @param compact
+	 *            Whether to drop the ".0" of integral values in plain notation.
+	 * @return Number of chars written.
+	 */
+	public static int format(double value, char[] buf, int offset, boolean compact) {
+		if (value != value) {
+			return copy("NaN", buf, offset);
+		}
+		if (value == Double.POSITIVE_INFINITY) {
+			return copy("Infinity", buf, offset);
+		}
+		if (value == Double.NEGATIVE_INFINITY) {
+			return copy("-Infinity", buf, offset);
+		}
+		int pos = offset;
+		if (value < 0 || (value == 0 && 1 / value < 0)) {
+			buf[pos++] = '-';
+			value = -value;
+		}
+		if (value == 0) {
+			buf[pos++] = '0';
+			if (!compact) {
+				buf[pos++] = '.';
+				buf[pos++] = '0';
+			}
+			return pos - offset;
+		}
+
+		long bits = Double.doubleToRawLongBits(value);
+		long t = bits & SIGNIFICAND_MASK;
+		int biasedExponent = (int) (bits >>> (P - 1)) & EXPONENT_MASK;
+		if (biasedExponent == 0) {
+			// Subnormal, scaled up by 10 if its significand is too small.
+			return t < C_TINY ? toDecimal(Q_MIN, 10 * t, -1, value, buf, offset, pos, compact)
+					: toDecimal(Q_MIN, t, 0, value, buf, offset, pos, compact);
+		}
+		int q = Q_MIN - 1 + biasedExponent;
+		long c = C_MIN | t;
+		if (q < 0 && q > -P) {
+			// An integer below 2^53 is its own shortest decimal.
+			long f = c >> -q;
+			if (f << -q == c) {
+				return layout(f, 0, value, buf, offset, pos, compact);
+			}
+		}
+		return toDecimal(q, c, 0, value, buf, offset, pos, compact);
+	}
+
+	/**
+	 * Helper function to find the shortest decimal of c * 2^q which rounds back
+	 * to it, the closest one if there are several, and lay it out.
+	 *
+	 * @param dk
+	 *            Correction of the decimal exponent of a subnormal scaled by 10.
+	 */
+	private static int toDecimal(int q, long c, int dk, double value, char[] buf, int offset, int pos,
+			boolean compact) {
+		// The rounding interval of the double is [cbl, cbr] / 4 * 2^q, with its
+		// ends included if c is even.
+		int out = (int) c & 1;
+		long cb = c << 2;
+		long cbr = cb + 2;
+		long cbl;
+		int k;
+		if (c != C_MIN || q == Q_MIN) {
+			cbl = cb - 2;
+			k = flog10pow2(q);
+		} else {
+			// The interval is asymmetric at a power of two.
+			cbl = cb - 1;
+			k = flog10threeQuartersPow2(q);
+		}
+		int h = q + flog2pow10(-k) + 2;
+		long g1 = G[2 * (k - K_MIN)];
+		long g0 = G[2 * (k - K_MIN) + 1];
+		long vb = roundToOdd(g1, g0, cb << h);
+		long vbl = roundToOdd(g1, g0, cbl << h);
+		long vbr = roundToOdd(g1, g0, cbr << h);
+
+		long s = vb >> 2;
+		if (s >= 100) {
+			// Try one digit fewer: s / 10 * 10 and the next multiple of 10.
+			long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+			long tp10 = sp10 + 10;
+			boolean upin = vbl + out <= sp10 << 2;
+			boolean wpin = (tp10 << 2) + out <= vbr;
+			if (upin != wpin) {
+				return layout(upin ? sp10 : tp10, k, value, buf, offset, pos, compact);
+			}
+		}
+		boolean uin = vbl + out <= s << 2;
+		boolean win = ((s + 1) << 2) + out <= vbr;
+		if (uin != win) {
+			return layout(uin ? s : s + 1, k + dk, value, buf, offset, pos, compact);
+		}
+		// Both are in the interval, take the closest one, or the even one on a tie.
+		long cmp = vb - ((s + s + 1) << 1);
+		return layout(cmp < 0 || (cmp == 0 && (s & 1) == 0) ? s : s + 1, k + dk, value, buf, offset, pos,
+				compact);
+	}
+
+	/**
+	 * Helper function to lay out significand * 10^exponent like Double.toString.
+	 *
+	 * @param value
+	 *            Magnitude of the double, which selects the notation.
+	 * @param pos
+	 *            Index in |buf| after the sign.
+	 * @return Number of chars written from |offset|.
+	 */
+	private static int layout(long significand, int exponent, double value, char[] buf, int offset, int pos,
+			boolean compact) {
+		while (significand % 10 == 0) {
+			significand /= 10;
+			exponent++;
+		}
+
+		// Write the digits at the end of the buffer first, then lay them out.
+		int digitsEnd = offset + MAX_LENGTH;
+		int digitsStart = digitsEnd;
+		for (long rest = significand; rest > 0; rest /= 10) {
+			buf[--digitsStart] = (char) ('0' + rest % 10);
+		}
+		int length = digitsEnd - digitsStart;
+		// Decimal exponent of the leading digit.
+		int leading = length - 1 + exponent;
+		if (value >= 1e-3 && value < 1e7) {
+			if (leading >= 0) {
+				for (int i = 0; i <= leading; i++) {
+					buf[pos++] = i < length ? buf[digitsStart + i] : '0';
+				}
+				if (length > leading + 1) {
+					buf[pos++] = '.';
+					for (int i = leading + 1; i < length; i++) {
+						buf[pos++] = buf[digitsStart + i];
+					}
+				} else if (!compact) {
+					buf[pos++] = '.';
+					buf[pos++] = '0';
+				}
+			} else {
+				buf[pos++] = '0';
+				buf[pos++] = '.';
+				for (int i = -1; i > leading; i--) {
+					buf[pos++] = '0';
+				}
+				for (int i = 0; i < length; i++) {
+					buf[pos++] = buf[digitsStart + i];
+				}
+			}
+		} else {
+			buf[pos++] = buf[digitsStart];
+			buf[pos++] = '.';
+			if (length == 1) {
+				buf[pos++] = '0';
+			}
+			for (int i = 1; i < length; i++) {
+				buf[pos++] = buf[digitsStart + i];
+			}
+			buf[pos++] = 'E';
+			if (leading < 0) {
+				buf[pos++] = '-';
+				leading = -leading;
+			}
+			if (leading >= 100) {
+				buf[pos++] = (char) ('0' + leading / 100);
+			}
+			if (leading >= 10) {
+				buf[pos++] = (char) ('0' + leading / 10 % 10);
+			}
+			buf[pos++] = (char) ('0' + leading % 10);
+		}
+		return pos - offset;
+	}
+
+	/**
+	 * Append the double formatted like Double.toString.
+	 */
+	public static StringBuilder append(StringBuilder builder, double value) {
+		char[] buf = BUFFER.get();
+		return builder.append(buf, 0, format(value, buf, 0));
+	}
+
+	/**
+	 * Write the double formatted like Double.toString.
+	 */
+	public static void write(Writer writer, double value) throws IOException {
+		char[] buf = BUFFER.get();
+		writer.write(buf, 0, format(value, buf, 0));
+	}
+
+	/**
+	 * @return The double formatted like Double.toString.
+	 */
+	public static String toString(double value) {
+		char[] buf = BUFFER.get();
+		return new String(buf, 0, format(value, buf, 0));
+	}
+
+	/**
+	 * Multiply g * 2^-126 with g = g1 * 2^63 + g0 by cp, rounded to odd, see the
+	 * Schubfach paper.
+	 */
+	private static long roundToOdd(long g1, long g0, long cp) {
+		long x1 = multiplyHigh(g0, cp);
+		long y0 = g1 * cp;
+		long y1 = multiplyHigh(g1, cp);
+		long z = (y0 >>> 1) + x1;
+		long vbp = y1 + (z >>> 63);
+		return vbp | (((z & MASK_63) + MASK_63) >>> 63);
+	}
+
+	/**
+	 * High 64 bits of the 128 bit product of two signed longs, like
+	 * Math.multiplyHigh of Java 9.
+	 */
+	private static long multiplyHigh(long x, long y) {
+		long x1 = x >> 32;
+		long x2 = x & 0xFFFFFFFFL;
+		long y1 = y >> 32;
+		long y2 = y & 0xFFFFFFFFL;
+		long z2 = x2 * y2;
+		long t = x1 * y2 + (z2 >>> 32);
+		long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+		long z0 = t >> 32;
+		return x1 * y1 + z0 + (z1 >> 32);
+	}
+
+	/**
+	 * @return floor(log10(2^e)) for |e| <= 5456721.
+	 */
+	private static int flog10pow2(int e) {
+		return (int) (e * 661971961083L >> 41);
+	}
+
+	/**
+	 * @return floor(log10(3/4 * 2^e)) for |e| <= 5456721.
+	 */
+	private static int flog10threeQuartersPow2(int e) {
+		return (int) ((e * 661971961083L - 274743187321L) >> 41);
+	}
+
+	/**
+	 * @return floor(log2(10^e)) for |e| <= 1233.
+	 */
+	private static int flog2pow10(int e) {
+		return (int) (e * 913124641741L >> 38);
+	}
+
+	private static int copy(String text, char[] buf, int offset) {
+		text.getChars(0, text.length(), buf, offset);
+		return text.length();
+	}
+}
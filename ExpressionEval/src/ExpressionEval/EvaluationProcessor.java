@@ -0,0 +1,296 @@
+package ExpressionEval;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A processor receiving expressions and publishing their ExpressionVal, for
+ * embedding the evaluator in asynchronous services.
+ *
+ * The expressions are evaluated on the executor, and the results are delivered
+ * to the single subscriber from the executor as well, so neither onNext nor
+ * request blocks the calling thread. Invalid expressions are published as
+ * results carrying their error, like ExpressionEvaluator.evalExpression.
+ *
+ * Backpressure is driven by the demand of the subscriber: at most |bufferSize|
+ * expressions are requested from upstream and not yet delivered downstream,
+ * and each delivered result requests one more. Results are delivered either in
+ * the order of the expressions, or as soon as they are evaluated.
+ *
+ * An error or the completion of upstream is passed on after the results of
+ * all the received expressions have been delivered.
+ *
+ * Each expression could be given a time budget from the start of its
+ * evaluation, and the whole stream a deadline, see Deadline. An expression
+ * overrunning either is published with the TIMEOUT error.
+ *
+ */
+public class EvaluationProcessor
+		implements ExpressionFlow.Processor<String, ExpressionScorer.ExpressionVal> {
+	private final Executor executor;
+	private final int bufferSize;
+	private final boolean ordered;
+	private final boolean useCachedValue;
+	private final long expressionBudgetNanos;
+	private final Deadline deadline;
+
+	private final AtomicReference<ExpressionFlow.Subscription> upstream = new AtomicReference<ExpressionFlow.Subscription>();
+	private final AtomicReference<ExpressionFlow.Subscriber<? super ExpressionScorer.ExpressionVal>> downstream = new AtomicReference<ExpressionFlow.Subscriber<? super ExpressionScorer.ExpressionVal>>();
+	// Results by sequence number modulo bufferSize, if ordered.
+	private final AtomicReferenceArray<ExpressionScorer.ExpressionVal> slots;
+	// Results in completion order, if not ordered.
+	private final ConcurrentLinkedQueue<ExpressionScorer.ExpressionVal> completed;
+	private final AtomicLong requested = new AtomicLong();
+	private final AtomicInteger wip = new AtomicInteger();
+	private volatile long received;
+	// Only accessed by the drain loop.
+	private long delivered;
+	private volatile boolean upstreamDone;
+	private volatile Throwable error;
+	// Signaled without waiting for the buffered results, after an invalid request.
+	private volatile Throwable requestError;
+	private volatile boolean cancelled;
+	private boolean terminated;
+
+	/**
+	 * @param executor
+	 *            Executor of the evaluations and the deliveries. On Java 21 it
+	 *            could run virtual threads.
+	 * @param bufferSize
+	 *            Maximum number of expressions in flight.
+	 * @param ordered
+	 *            Whether to deliver the results in the order of the expressions.
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 */
+	public EvaluationProcessor(Executor executor, int bufferSize, boolean ordered, boolean useCachedValue) {
+		this(executor, bufferSize, ordered, useCachedValue, 0, Deadline.NONE);
+	}
+
+	/**
+	 * @param executor
+	 *            Executor of the evaluations and the deliveries. On Java 21 it
+	 *            could run virtual threads.
+	 * @param bufferSize
+	 *            Maximum number of expressions in flight.
+	 * @param ordered
+	 *            Whether to deliver the results in the order of the expressions.
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @param expressionBudgetNanos
+	 *            Budget of each expression in nanoseconds, or 0 for no time
+	 *            limit.
+	 * @param deadline
+	 *            Deadline of the whole stream, which could also be cancelled from
+	 *            another thread.
+	 */
+	public EvaluationProcessor(Executor executor, int bufferSize, boolean ordered, boolean useCachedValue,
+			long expressionBudgetNanos, Deadline deadline) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size should be positive");
+		}
+		this.executor = executor;
+		this.bufferSize = bufferSize;
+		this.ordered = ordered;
+		this.useCachedValue = useCachedValue;
+		this.expressionBudgetNanos = expressionBudgetNanos;
+		this.deadline = deadline;
+		this.slots = ordered ? new AtomicReferenceArray<ExpressionScorer.ExpressionVal>(bufferSize) : null;
+		this.completed = ordered ? null : new ConcurrentLinkedQueue<ExpressionScorer.ExpressionVal>();
+	}
+
+	@Override
+	public void onSubscribe(ExpressionFlow.Subscription subscription) {
+		if (!upstream.compareAndSet(null, subscription)) {
+			subscription.cancel();
+			return;
+		}
+		subscription.request(bufferSize);
+	}
+
+	@Override
+	public void onNext(String expression) {
+		final long sequence = received;
+		received = sequence + 1;
+		try {
+			executor.execute(() -> {
+				ExpressionScorer.ExpressionVal rtn;
+				try {
+					rtn = ExpressionEvaluator.evalExpression(expression, useCachedValue,
+							deadline.within(expressionBudgetNanos));
+				} catch (RuntimeException ex) {
+					rtn = new ExpressionScorer.ExpressionVal(ex);
+				}
+				if (ordered) {
+					slots.set((int) (sequence % bufferSize), rtn);
+				} else {
+					completed.offer(rtn);
+				}
+				drain();
+			});
+		} catch (RejectedExecutionException ex) {
+			// The expression is never evaluated, so it is not waited for.
+			received = sequence;
+			ExpressionFlow.Subscription subscription = upstream.get();
+			if (subscription != null) {
+				subscription.cancel();
+			}
+			terminate(ex);
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		terminate(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		upstreamDone = true;
+		drain();
+	}
+
+	private void terminate(Throwable throwable) {
+		if (error == null) {
+			error = throwable;
+		}
+		upstreamDone = true;
+		drain();
+	}
+
+	@Override
+	public void subscribe(ExpressionFlow.Subscriber<? super ExpressionScorer.ExpressionVal> subscriber) {
+		if (!downstream.compareAndSet(null, subscriber)) {
+			subscriber.onSubscribe(new ExpressionFlow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+			return;
+		}
+		subscriber.onSubscribe(new ExpressionFlow.Subscription() {
+			@Override
+			public void request(long n) {
+				if (n <= 0) {
+					requestError = new IllegalArgumentException("Requested items should be positive");
+					ExpressionFlow.Subscription subscription = upstream.get();
+					if (subscription != null) {
+						subscription.cancel();
+					}
+					drain();
+					return;
+				}
+				long current;
+				long next;
+				do {
+					current = requested.get();
+					next = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while (!requested.compareAndSet(current, next));
+				drain();
+			}
+
+			@Override
+			public void cancel() {
+				cancelled = true;
+				ExpressionFlow.Subscription subscription = upstream.get();
+				if (subscription != null) {
+					subscription.cancel();
+				}
+			}
+		});
+		drain();
+	}
+
+	/**
+	 * Schedule the delivery loop on the executor, unless it is already running
+	 * in which case it runs one more round.
+	 */
+	private void drain() {
+		if (wip.getAndIncrement() == 0) {
+			try {
+				executor.execute(this::drainLoop);
+			} catch (RejectedExecutionException ex) {
+				// Nothing could be delivered anymore. The loop never runs again since
+				// |wip| stays positive, so the error is signaled on this thread.
+				cancelled = true;
+				ExpressionFlow.Subscription subscription = upstream.get();
+				if (subscription != null) {
+					subscription.cancel();
+				}
+				ExpressionFlow.Subscriber<? super ExpressionScorer.ExpressionVal> subscriber = downstream.get();
+				if (subscriber != null && !terminated) {
+					terminated = true;
+					subscriber.onError(ex);
+				}
+			}
+		}
+	}
+
+	private void drainLoop() {
+		int missed = 1;
+		while (true) {
+			ExpressionFlow.Subscriber<? super ExpressionScorer.ExpressionVal> subscriber = downstream.get();
+			if (subscriber != null && !cancelled && !terminated && requestError != null) {
+				terminated = true;
+				subscriber.onError(requestError);
+			}
+			if (subscriber != null && !cancelled && !terminated) {
+				long demand = requested.get();
+				long emitted = 0;
+				while (emitted != demand && !cancelled) {
+					ExpressionScorer.ExpressionVal next = poll();
+					if (next == null) {
+						break;
+					}
+					delivered++;
+					emitted++;
+					subscriber.onNext(next);
+				}
+				if (emitted > 0) {
+					if (demand != Long.MAX_VALUE) {
+						requested.addAndGet(-emitted);
+					}
+					ExpressionFlow.Subscription subscription = upstream.get();
+					if (subscription != null && !upstreamDone) {
+						subscription.request(emitted);
+					}
+				}
+				// Read |received| after |upstreamDone| so that no expression is missed.
+				if (upstreamDone && delivered == received && !cancelled) {
+					terminated = true;
+					if (error != null) {
+						subscriber.onError(error);
+					} else {
+						subscriber.onComplete();
+					}
+				}
+			}
+			missed = wip.addAndGet(-missed);
+			if (missed == 0) {
+				return;
+			}
+		}
+	}
+
+	private ExpressionScorer.ExpressionVal poll() {
+		if (!ordered) {
+			return completed.poll();
+		}
+		int idx = (int) (delivered % bufferSize);
+		ExpressionScorer.ExpressionVal rtn = slots.get(idx);
+		if (rtn != null) {
+			slots.set(idx, null);
+		}
+		return rtn;
+	}
+}
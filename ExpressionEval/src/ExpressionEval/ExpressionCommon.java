@@ -43,6 +43,83 @@ public class ExpressionCommon {
 	public static final Set<Character> BINARY_OPERATOR = new HashSet<Character>(Arrays.asList(binaryOpList));
 	public static final Set<Character> UNARY_BINARY_OPERATOR = new HashSet<Character>(Arrays.asList(binaryUnaryOpList));
 
+	// Opcodes of the compact program encoding of the reverse polish notations. Only
+	// OP_NUMBER carries an operand, which is the following 8 byte double.
+	public static final byte OP_NUMBER = 0;
+	public static final byte OP_ADD = 1;
+	public static final byte OP_SUBTRACT = 2;
+	public static final byte OP_MULTIPLY = 3;
+	public static final byte OP_DIVIDE = 4;
+	public static final byte OP_POWER = 5;
+	public static final byte OP_LOG = 6;
+	public static final byte OP_UNARY_PLUS = 7;
+	public static final byte OP_UNARY_MINUS = 8;
+
+	/**
+	 * Map a token in the reverse polish notations to its opcode.
+	 *
+	 * @param token
+	 *            Number or operator token. Parenthesis and comma are not valid
+	 *            here since they never appear in the reverse polish notations.
+	 * @return Opcode of the token.
+	 */
+	public static byte toOpcode(Token token) {
+		if (token.number != null) {
+			return OP_NUMBER;
+		}
+		if (token.operator == null) {
+			throw new IllegalArgumentException("Invalid token. Both number and operator are null");
+		}
+		if (token.isUnary) {
+			if (token.operator.equals("+")) {
+				return OP_UNARY_PLUS;
+			} else if (token.operator.equals("-")) {
+				return OP_UNARY_MINUS;
+			}
+			throw new IllegalArgumentException("Unary operator should be either + or -");
+		}
+		switch (token.operator) {
+		case "+":
+			return OP_ADD;
+		case "-":
+			return OP_SUBTRACT;
+		case "*":
+			return OP_MULTIPLY;
+		case "/":
+			return OP_DIVIDE;
+		case "^":
+			return OP_POWER;
+		case "log":
+			return OP_LOG;
+		default:
+			throw new IllegalArgumentException("Unrecognizable operator");
+		}
+	}
+
+	/**
+	 * The operator symbol shown in the binary expression tree for an opcode.
+	 */
+	public static String opcodeSymbol(byte opcode) {
+		switch (opcode) {
+		case OP_ADD:
+		case OP_UNARY_PLUS:
+			return "+";
+		case OP_SUBTRACT:
+		case OP_UNARY_MINUS:
+			return "-";
+		case OP_MULTIPLY:
+			return "*";
+		case OP_DIVIDE:
+			return "/";
+		case OP_POWER:
+			return "^";
+		case OP_LOG:
+			return LOG;
+		default:
+			throw new IllegalArgumentException("Unrecognizable opcode");
+		}
+	}
+
 	/**
 	 * Operator infos, including whether an operator could be both unary and binary,
 	 * whether it is right associative and the precedence in calculation. If an
@@ -64,16 +141,98 @@ public class ExpressionCommon {
 		}
 	}
 
+	/**
+	 * Reasons an expression could be rejected. The code is stable and could be
+	 * stored or exchanged in place of the enum.
+	 */
+	public enum ErrorCode {
+		NULL_FORMULA(1),
+		EMPTY_EXPRESSION(2),
+		INVALID_CHARACTER(3),
+		INVALID_OPERATOR(4),
+		INVALID_NUMBER(5),
+		MISSING_OPERAND(6),
+		CONSECUTIVE_UNARY(7),
+		IMPLICIT_MULTIPLY(8),
+		INVALID_PARENTHESIS(9),
+		UNBALANCED_PARENTHESIS(10),
+		INVALID_LOG(11),
+		TIMEOUT(12);
+
+		public final int code;
+
+		ErrorCode(int code) {
+			this.code = code;
+		}
+	}
+
+	/**
+	 * Structured description of an invalid expression, filled by the validation
+	 * functions instead of throwing an exception. |position| is the index of the
+	 * offending character in the original expression string.
+	 */
+	public static class ParseError {
+		ErrorCode code;
+		int position;
+		String reason;
+
+		/**
+		 * An empty error, for the public validation functions, e.g.
+		 * InputHandler.tokenize(formula, error), to fill.
+		 */
+		public ParseError() {
+		}
+
+		ParseError(ErrorCode code, int position, String reason) {
+			set(code, position, reason);
+		}
+
+		void set(ErrorCode code, int position, String reason) {
+			this.code = code;
+			this.position = position;
+			this.reason = reason;
+		}
+
+		/**
+		 * @return The error code, or null if no error was filled.
+		 */
+		public ErrorCode code() {
+			return code;
+		}
+
+		/**
+		 * @return Index of the offending character in the original expression
+		 *         string, or -1 if unknown.
+		 */
+		public int position() {
+			return position;
+		}
+
+		/**
+		 * @return Human readable reason of the error.
+		 */
+		public String reason() {
+			return reason;
+		}
+
+		@Override
+		public String toString() {
+			return "Error " + code + " at position " + position + ": " + reason;
+		}
+	}
+
 	/**
 	 * Expression Tokens parsed by input handlers. A token could either be a number
 	 * or an operator. The caller is responsible to make sure not both of the fields
 	 * are specified. If the token is an operator and the operator could be both
-	 * unary and binary (+, -), isUnary should be specified.
+	 * unary and binary (+, -), isUnary should be specified. |position| is the index
+	 * of the token in the original expression string, or -1 if unknown.
 	 */
 	public static class Token {
 		String operator;
 		Double number;
 		boolean isUnary;
+		int position = -1;
 
 		Token(String operator, boolean isUnary) {
 			this.operator = operator;
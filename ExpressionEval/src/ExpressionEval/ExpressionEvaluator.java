@@ -1,9 +1,13 @@
 package ExpressionEval;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * The entry point of the expression evaluator. This class evaluates expressions
@@ -11,6 +15,13 @@ import java.util.List;
  *
  */
 public class ExpressionEvaluator {
+	/**
+	 * Lines with at least this many tokens are evaluated by PARALLEL_EVALUATOR, so
+	 * that one huge line uses the idle cores instead of one.
+	 */
+	static final int PARALLEL_MIN_TOKENS = 64 * 1024;
+	private static final ParallelEvaluator PARALLEL_EVALUATOR = new ParallelEvaluator(ForkJoinPool.commonPool());
+
 	/**
 	 * Given a filename, parse and evaluate the expression line by line and output the results to files.
 	 * @param filename		The input filename
@@ -19,26 +30,438 @@ public class ExpressionEvaluator {
 	 */
 	public static List<String> evalExpressionsFromFile(String filename, boolean useCachedValue)
 			throws FileNotFoundException, IOException {
+		return evalExpressionsFromFile(filename, useCachedValue, null);
+	}
+
+	/**
+	 * Given a filename, parse and evaluate the expression line by line and output the results to files.
+	 * @param filename		The input filename
+	 * @param useCacheValue  If applying the cache optimization to improve performance.
+	 * @param resultCache	Cache of whole-expression results shared across files. Could be null.
+	 * @return A list of filenames which represents the output file of the expressions.
+	 */
+	public static List<String> evalExpressionsFromFile(String filename, boolean useCachedValue,
+			ResultCache resultCache) throws FileNotFoundException, IOException {
+		return evalExpressionsFromFile(filename, useCachedValue, resultCache, null);
+	}
+
+	/**
+	 * Given a filename, parse and evaluate the expression line by line and output the results to files.
+	 * @param filename		The input filename
+	 * @param useCacheValue  If applying the cache optimization to improve performance.
+	 * @param resultCache	Cache of whole-expression results shared across files. Could be null.
+	 * @param profiler		Accounts the CPU time and allocated bytes of each line. Could be null.
+	 * @return A list of filenames which represents the output file of the expressions.
+	 */
+	public static List<String> evalExpressionsFromFile(String filename, boolean useCachedValue,
+			ResultCache resultCache, ExpressionProfiler profiler) throws FileNotFoundException, IOException {
+		return evalExpressionsFromFile(filename, useCachedValue, resultCache, profiler, null);
+	}
+
+	/**
+	 * Given a filename, parse and evaluate the expression line by line and output the results to files.
+	 * @param filename		The input filename
+	 * @param useCacheValue  If applying the cache optimization to improve performance.
+	 * @param resultCache	Cache of whole-expression results shared across files. Could be null.
+	 * @param profiler		Accounts the CPU time and allocated bytes of each line. Could be null.
+	 * @param journal		Journal of the file opened by ProgressJournal.open. The lines done by a previous
+	 * 						run are skipped and the journal is closed at the end. Could be null.
+	 * @return A list of filenames which represents the output file of the expressions.
+	 */
+	public static List<String> evalExpressionsFromFile(String filename, boolean useCachedValue,
+			ResultCache resultCache, ExpressionProfiler profiler, ProgressJournal journal)
+			throws FileNotFoundException, IOException {
+		return evalExpressionsFromFile(filename, useCachedValue, resultCache, profiler, 0, Deadline.NONE, journal);
+	}
+
+	/**
+	 * Given a filename, parse and evaluate the expression line by line and output the results to files.
+	 * A line which overruns its budget while tokenized, evaluated or rendered is written with the TIMEOUT
+	 * error, and once the deadline of the file expires, every remaining line is.
+	 * @param filename		The input filename
+	 * @param useCacheValue  If applying the cache optimization to improve performance.
+	 * @param resultCache	Cache of whole-expression results shared across files. Could be null.
+	 * @param profiler		Accounts the CPU time and allocated bytes of each line. Could be null.
+	 * @param expressionBudgetNanos	Budget of each line in nanoseconds, or 0 for no time limit.
+	 * @param fileDeadline	Deadline of the whole file, see Deadline.after.
+	 * @param journal		Journal of the file opened by ProgressJournal.open. The lines done by a previous
+	 * 						run are skipped and the journal is closed at the end. Could be null.
+	 * @return A list of filenames which represents the output file of the expressions.
+	 */
+	public static List<String> evalExpressionsFromFile(String filename, boolean useCachedValue,
+			ResultCache resultCache, ExpressionProfiler profiler, long expressionBudgetNanos, Deadline fileDeadline,
+			ProgressJournal journal) throws FileNotFoundException, IOException {
 		List<String> lines = InputHandler.readFile(filename);
 		List<String> outputFilenames = new ArrayList<String>();
-		for (int i = 0; i < lines.size(); i++) {
-			ExpressionScorer.ExpressionVal rtn;
-			try {
-				List<ExpressionCommon.Token> tokens = InputHandler.tokenize(lines.get(i));
-				rtn = ExpressionScorer.evalTokens(tokens, useCachedValue);
-			} catch (Exception ex) {
-				rtn = new ExpressionScorer.ExpressionVal(ex);
+		int resumeLine = journal == null ? 0 : (int) Math.min(journal.resumeLine(), lines.size());
+		for (int i = 0; i < resumeLine; i++) {
+			outputFilenames.add(OutputHandler.outputFilename(filename, i));
+		}
+		try {
+			for (int i = resumeLine; i < lines.size(); i++) {
+				Deadline deadline = fileDeadline.within(expressionBudgetNanos);
+				ExpressionScorer.ExpressionVal rtn;
+				if (profiler != null) {
+					rtn = profiler.evalExpression(filename, i, lines.get(i), useCachedValue, resultCache, deadline);
+				} else {
+					rtn = resultCache == null ? evalExpression(lines.get(i), useCachedValue, deadline)
+							: resultCache.evalExpression(lines.get(i), useCachedValue, deadline);
+				}
+				outputFilenames.add(OutputHandler.writeFile(rtn, filename, i, journal, deadline));
 			}
-			outputFilenames.add(OutputHandler.writeFile(rtn, filename, i));
+		} catch (IOException | RuntimeException | Error ex) {
+			// Checkpoint the lines done so far and close the held output files.
+			if (journal != null) {
+				try {
+					journal.close(lines.size());
+				} catch (IOException closeEx) {
+					ex.addSuppressed(closeEx);
+				}
+			}
+			throw ex;
+		}
+		if (journal != null) {
+			journal.close(lines.size());
 		}
 		return outputFilenames;
 	}
 
+	/**
+	 * Given a filename, parse and evaluate the expression line by line and write
+	 * all the results into one consolidated results file, see
+	 * OutputHandler.writeRecord. The lines are streamed instead of read at once,
+	 * and either file could be gzip compressed.
+	 * 
+	 * @param filename
+	 *            The input filename, decoded while streaming if it is compressed.
+	 * @param consolidatedFilename
+	 *            The results filename, compressed if it ends with ".gz".
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @param resultCache
+	 *            Cache of whole-expression results shared across files. Could be
+	 *            null.
+	 * @return Number of the evaluated lines.
+	 */
+	public static long evalExpressionsToFile(String filename, String consolidatedFilename, boolean useCachedValue,
+			ResultCache resultCache) throws FileNotFoundException, IOException {
+		return evalExpressionsToFile(filename, consolidatedFilename, useCachedValue, resultCache, 0, Deadline.NONE);
+	}
+
+	/**
+	 * Same as evalExpressionsToFile(filename, consolidatedFilename,
+	 * useCachedValue, resultCache, expressionBudgetNanos, fileDeadline, journal)
+	 * without a journal.
+	 */
+	public static long evalExpressionsToFile(String filename, String consolidatedFilename, boolean useCachedValue,
+			ResultCache resultCache, long expressionBudgetNanos, Deadline fileDeadline)
+			throws FileNotFoundException, IOException {
+		return evalExpressionsToFile(filename, consolidatedFilename, useCachedValue, resultCache,
+				expressionBudgetNanos, fileDeadline, null);
+	}
+
+	/**
+	 * Same as evalExpressionsToFile(filename, consolidatedFilename,
+	 * useCachedValue, resultCache), with time budgets and a journal. A line
+	 * which overruns its budget while tokenized, evaluated or rendered is written
+	 * with the TIMEOUT error, and once the deadline of the file expires, every
+	 * remaining line is.
+	 * 
+	 * @param filename
+	 *            The input filename, decoded while streaming if it is compressed.
+	 * @param consolidatedFilename
+	 *            The results filename, compressed if it ends with ".gz".
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @param resultCache
+	 *            Cache of whole-expression results shared across files. Could be
+	 *            null.
+	 * @param expressionBudgetNanos
+	 *            Budget of each line in nanoseconds, or 0 for no time limit.
+	 * @param fileDeadline
+	 *            Deadline of the whole file, see Deadline.after.
+	 * @param journal
+	 *            Journal of the file opened by ProgressJournal.open, or null. The
+	 *            results file is forced at every checkpoint, and a resumed run
+	 *            truncates it to the last checkpoint and appends the remaining
+	 *            lines, so it should be the same file.
+	 * @return Number of the lines, including those done by a previous run.
+	 */
+	public static long evalExpressionsToFile(String filename, String consolidatedFilename, boolean useCachedValue,
+			ResultCache resultCache, long expressionBudgetNanos, Deadline fileDeadline, ProgressJournal journal)
+			throws FileNotFoundException, IOException {
+		long lineNum = journal == null ? 0 : journal.resumeLine();
+		long outputBytes = journal == null ? 0 : journal.resumeOutputBytes();
+		if (outputBytes == 0 || outputBytes > new File(consolidatedFilename).length()) {
+			// No results of a previous run to continue.
+			lineNum = 0;
+			outputBytes = 0;
+		}
+		BufferedReader br = InputHandler.openReader(filename);
+		try {
+			for (long i = 0; i < lineNum; i++) {
+				br.readLine();
+			}
+			OutputHandler.CheckpointedWriter output = new OutputHandler.CheckpointedWriter(consolidatedFilename,
+					consolidatedFilename.endsWith(".gz"), outputBytes);
+			try {
+				if (journal != null) {
+					journal.attach(output);
+				}
+				String line;
+				while ((line = br.readLine()) != null) {
+					Deadline deadline = fileDeadline.within(expressionBudgetNanos);
+					ExpressionScorer.ExpressionVal rtn = resultCache == null
+							? evalExpression(line, useCachedValue, deadline)
+							: resultCache.evalExpression(line, useCachedValue, deadline);
+					// The writer changes at the checkpoints of a compressed file.
+					OutputHandler.writeRecord(output.writer, rtn, filename, lineNum, deadline);
+					if (journal != null) {
+						journal.markDone(lineNum, null);
+					}
+					lineNum++;
+				}
+				// On a failure the journal keeps its last checkpoint, which does not
+				// cover a partly written record.
+				if (journal != null) {
+					journal.close(lineNum);
+				}
+			} finally {
+				output.close();
+			}
+		} finally {
+			br.close();
+		}
+		return lineNum;
+	}
+
+	/**
+	 * Validate and evaluate one expression. Invalid expressions do not throw but
+	 * return a result carrying the structured error.
+	 * 
+	 * @param expression
+	 *            Expression in string.
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @return Value and binary expression tree, or the error of the expression.
+	 */
+	public static ExpressionScorer.ExpressionVal evalExpression(String expression, boolean useCachedValue) {
+		return evalExpression(expression, useCachedValue, Deadline.NONE);
+	}
+
+	/**
+	 * Same as evalExpression(expression, useCachedValue), but the tokenizer and
+	 * the evaluator give up with the TIMEOUT error once the deadline expires.
+	 * Expressions of at least PARALLEL_MIN_TOKENS tokens are evaluated on the
+	 * common pool by a ParallelEvaluator, with the same result.
+	 * 
+	 * @param expression
+	 *            Expression in string.
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @param deadline
+	 *            Deadline of the expression.
+	 * @return Value and binary expression tree, or the error of the expression.
+	 */
+	public static ExpressionScorer.ExpressionVal evalExpression(String expression, boolean useCachedValue,
+			Deadline deadline) {
+		ExpressionCommon.ParseError error = new ExpressionCommon.ParseError();
+		List<ExpressionCommon.Token> tokens = InputHandler.tokenize(expression, error, deadline);
+		ExpressionScorer.ExpressionVal rtn = null;
+		if (tokens != null && tokens.size() >= PARALLEL_MIN_TOKENS) {
+			rtn = PARALLEL_EVALUATOR.evalTokens(tokens, useCachedValue, error, deadline);
+		} else if (tokens != null) {
+			rtn = ExpressionScorer.evalTokens(tokens, useCachedValue, error, deadline);
+		}
+		if (rtn == null) {
+			rtn = new ExpressionScorer.ExpressionVal(error);
+		}
+		rtn.tokenCount = tokens == null ? 0 : tokens.size();
+		return rtn;
+	}
+
+	/**
+	 * Evaluate the files on a work-stealing pool with BatchScheduler, without and
+	 * then with cache, reporting each file as soon as it is done. Each line and
+	 * each file are given the budgets in milliseconds, 0 for no time limit.
+	 */
+	private static void benchmarkScheduler(String[] args, int benchmarkRepeatTime, int parallelism,
+			ResultCache resultCache, boolean resumable, boolean forceOutputs, long expressionBudgetMillis,
+			long fileBudgetMillis) {
+		BatchScheduler scheduler = new BatchScheduler(parallelism, BatchScheduler.DEFAULT_CHUNK_LINES, resultCache,
+				resumable, forceOutputs, expressionBudgetMillis * 1000000L, fileBudgetMillis * 1000000L);
+		BatchScheduler.FileCompletionListener listener = new BatchScheduler.FileCompletionListener() {
+			@Override
+			public void onFileComplete(String filename, List<String> outputFilenames) {
+				System.out.println("results for file " + filename + ": " + outputFilenames);
+			}
+
+			@Override
+			public void onFileFailed(String filename, Exception ex) {
+				System.out.print("processing file " + filename + " ecounters exception: ");
+				ex.printStackTrace();
+			}
+		};
+		for (boolean useCachedValue : new boolean[] { false, true }) {
+			long before = System.currentTimeMillis();
+			for (int i = 0; i < benchmarkRepeatTime; i++) {
+				scheduler.evalFiles(Arrays.asList(args), useCachedValue,
+						i == benchmarkRepeatTime - 1 ? listener : null);
+			}
+			long now = System.currentTimeMillis();
+			System.out.println("Seconds elapsed for evaluation " + (useCachedValue ? "with" : "without") + " cache on "
+					+ parallelism + " threads: " + (now - before) / 1000F + " seconds.");
+		}
+		scheduler.shutdown();
+		System.out.print(ExpressionScorer.operationCache().report());
+		if (resultCache != null) {
+			System.out.println(resultCache);
+		}
+	}
+
+	/**
+	 * Evaluate the files with one thread per file and per output write, see
+	 * VirtualThreadScheduler, with at most |cpuPermits| threads evaluating. Each
+	 * line and each file are given the budgets in milliseconds, 0 for no time
+	 * limit.
+	 */
+	private static void benchmarkVirtualThreads(String[] args, int benchmarkRepeatTime, int cpuPermits,
+			ResultCache resultCache, long expressionBudgetMillis, long fileBudgetMillis) {
+		VirtualThreadScheduler scheduler = new VirtualThreadScheduler(cpuPermits, resultCache,
+				expressionBudgetMillis * 1000000L, fileBudgetMillis * 1000000L);
+		BatchScheduler.FileCompletionListener listener = new BatchScheduler.FileCompletionListener() {
+			@Override
+			public void onFileComplete(String filename, List<String> outputFilenames) {
+				System.out.println("results for file " + filename + ": " + outputFilenames);
+			}
+
+			@Override
+			public void onFileFailed(String filename, Exception ex) {
+				System.out.print("processing file " + filename + " ecounters exception: ");
+				ex.printStackTrace();
+			}
+		};
+		long before = System.currentTimeMillis();
+		for (int i = 0; i < benchmarkRepeatTime; i++) {
+			scheduler.evalFiles(Arrays.asList(args), true, i == benchmarkRepeatTime - 1 ? listener : null);
+		}
+		long now = System.currentTimeMillis();
+		System.out.println("Seconds elapsed for evaluation on " + (scheduler.usesVirtualThreads() ? "virtual"
+				: "platform") + " threads with " + cpuPermits + " evaluating: " + (now - before) / 1000F
+				+ " seconds.");
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Stream each file into one consolidated results file named after it with the
+	 * suffix |resultsSuffix|, see evalExpressionsToFile. Each line and each file
+	 * are given the budgets in milliseconds, 0 for no time limit. If
+	 * |resumable|, each file is journaled.
+	 */
+	private static void benchmarkConsolidated(String[] args, int benchmarkRepeatTime, String resultsSuffix,
+			ResultCache resultCache, long expressionBudgetMillis, long fileBudgetMillis, boolean resumable) {
+		long before = System.currentTimeMillis();
+		for (int i = 0; i < benchmarkRepeatTime; i++) {
+			for (String filename : args) {
+				try {
+					long lines = evalExpressionsToFile(filename, filename + resultsSuffix, true, resultCache,
+							expressionBudgetMillis * 1000000L, Deadline.after(fileBudgetMillis * 1000000L),
+							resumable ? ProgressJournal.open(filename) : null);
+					if (i == benchmarkRepeatTime - 1) {
+						System.out.println("results for file " + filename + ": " + lines + " lines in "
+								+ filename + resultsSuffix);
+					}
+				} catch (Exception e) {
+					System.out.print("processing file " + filename + " ecounters exception: ");
+					e.printStackTrace();
+				}
+			}
+		}
+		long now = System.currentTimeMillis();
+		System.out.println("Seconds elapsed for consolidated evaluation: " + (now - before) / 1000F + " seconds.");
+	}
+
+	/**
+	 * Evaluate each file with |shards| worker JVMs, see ShardCoordinator. If
+	 * |consolidate| is true, the results of a file are written into one file
+	 * named after the input file with the suffix |resultsSuffix|.
+	 */
+	private static void benchmarkShards(String[] args, int benchmarkRepeatTime, int shards, boolean consolidate,
+			String resultsSuffix) {
+		ShardCoordinator coordinator = new ShardCoordinator(shards);
+		long before = System.currentTimeMillis();
+		for (int i = 0; i < benchmarkRepeatTime; i++) {
+			for (String filename : args) {
+				try {
+					long lines = coordinator.evalFile(filename, true, consolidate ? filename + resultsSuffix : null);
+					if (i == benchmarkRepeatTime - 1) {
+						System.out.println("results for file " + filename + ": " + lines + " lines");
+					}
+				} catch (Exception e) {
+					System.out.print("processing file " + filename + " ecounters exception: ");
+					e.printStackTrace();
+				}
+			}
+		}
+		long now = System.currentTimeMillis();
+		System.out.println("Seconds elapsed for evaluation on " + shards + " worker JVMs: " + (now - before) / 1000F
+				+ " seconds.");
+	}
+
+	/**
+	 * Evaluate the files with the programs and results stored off heap, see
+	 * OffHeapEvaluator. The output files are the same as evalExpressionsFromFile
+	 * but the heap usage does not grow with the number of lines.
+	 */
+	private static void benchmarkOffHeap(String[] args, int benchmarkRepeatTime) {
+		OffHeapEvaluator evaluator = new OffHeapEvaluator();
+		long before = System.currentTimeMillis();
+		for (int i = 0; i < benchmarkRepeatTime; i++) {
+			for (String filename : args) {
+				try {
+					long lines = evaluator.evalFile(filename);
+					if (i == benchmarkRepeatTime - 1) {
+						System.out.println("results for file " + filename + ": " + lines + " lines");
+					}
+				} catch (Exception e) {
+					System.out.print("processing file " + filename + " ecounters exception: ");
+					e.printStackTrace();
+				}
+			}
+		}
+		long now = System.currentTimeMillis();
+		System.out.println("Seconds elapsed for off heap evaluation: " + (now - before) / 1000F + " seconds.");
+		System.out.println("Off heap bytes allocated: " + evaluator.allocatedBytes());
+	}
+
 	/**
 	 * Evaluate expressions and benchmark with given filenames. This will first run
 	 * evaluation without cache and then with cache. The filenames are passed by
 	 * |args| and the repeat time of the benchmark is specified by environment
-	 * variable |REPEAT_TIME|.
+	 * variable |REPEAT_TIME|. If environment variable |OFF_HEAP| is true, the
+	 * files are evaluated with the off heap storage instead. If environment
+	 * variable |PARALLELISM| is set, the files are evaluated together on a
+	 * work-stealing pool with that many threads. If environment variable
+	 * |RESULT_CACHE| is set, duplicate expressions are served by a ResultCache of
+	 * that capacity. If environment variable |PROFILE_TOP| is set, the cost of
+	 * each line is accounted and the report of that many heaviest lines is
+	 * printed, or written to the file given by |PROFILE_REPORT|; it is rejected
+	 * together with any of the other modes below. If environment
+	 * variable |SHARDS| is set, each file is split among that many worker JVMs,
+	 * and with |SHARD_CONSOLIDATE| true the results go into one file per input.
+	 * If environment variable |JOURNAL| is true, the progress of each file is
+	 * journaled and an interrupted run resumes from it, see ProgressJournal, with
+	 * |JOURNAL_FORCE_OUTPUTS| true the output files are forced to the disk too.
+	 * Consolidated results are always forced at the checkpoints.
+	 * If environment variable |CONSOLIDATE| is true, the results of each file are
+	 * streamed into one file. Consolidated results are gzip compressed if
+	 * |COMPRESS_OUTPUT| is true. Compressed input files are always detected.
+	 * If environment variable |VIRTUAL_THREADS| is true, the files and their
+	 * output writes run on virtual threads, with at most |PARALLELISM| threads
+	 * evaluating, see VirtualThreadScheduler.
+	 * Lines overrunning |EXPRESSION_BUDGET_MS| milliseconds, or reached after
+	 * |FILE_BUDGET_MS| milliseconds of their file, are written with the TIMEOUT
+	 * error, except with |OFF_HEAP| and |SHARDS|.
 	 */
 	public static void main(String[] args) throws FileNotFoundException, IOException {
 		String value = System.getenv("REPEAT_TIME");
@@ -49,11 +472,93 @@ public class ExpressionEvaluator {
 			System.out.println("Invalid repeat time for benchmark");
 			return;
 		}
+		ExpressionProfiler profiler = null;
+		String profileTop = System.getenv("PROFILE_TOP");
+		if (profileTop != null) {
+			try {
+				profiler = new ExpressionProfiler(Integer.parseInt(profileTop));
+			} catch (Exception ex) {
+				System.out.println("Invalid profile top N");
+				return;
+			}
+		}
+		if (profiler != null && (Boolean.parseBoolean(System.getenv("OFF_HEAP")) || System.getenv("SHARDS") != null
+				|| Boolean.parseBoolean(System.getenv("CONSOLIDATE"))
+				|| Boolean.parseBoolean(System.getenv("VIRTUAL_THREADS")) || System.getenv("PARALLELISM") != null)) {
+			System.out.println("PROFILE_TOP is only supported by the sequential evaluation, not with OFF_HEAP, "
+					+ "SHARDS, CONSOLIDATE, VIRTUAL_THREADS or PARALLELISM");
+			return;
+		}
+		if (Boolean.parseBoolean(System.getenv("OFF_HEAP"))) {
+			benchmarkOffHeap(args, benchmarkRepeatTime);
+			return;
+		}
+		String resultsSuffix = Boolean.parseBoolean(System.getenv("COMPRESS_OUTPUT")) ? ".results.gz" : ".results";
+		String shards = System.getenv("SHARDS");
+		if (shards != null) {
+			try {
+				benchmarkShards(args, benchmarkRepeatTime, Integer.parseInt(shards),
+						Boolean.parseBoolean(System.getenv("SHARD_CONSOLIDATE")), resultsSuffix);
+			} catch (NumberFormatException ex) {
+				System.out.println("Invalid number of shards");
+			}
+			return;
+		}
+		ResultCache resultCache = null;
+		String resultCacheSize = System.getenv("RESULT_CACHE");
+		if (resultCacheSize != null) {
+			try {
+				resultCache = new ResultCache(Integer.parseInt(resultCacheSize));
+			} catch (Exception ex) {
+				System.out.println("Invalid result cache size");
+				return;
+			}
+		}
+		long expressionBudgetMillis;
+		long fileBudgetMillis;
+		try {
+			String expressionBudget = System.getenv("EXPRESSION_BUDGET_MS");
+			String fileBudget = System.getenv("FILE_BUDGET_MS");
+			expressionBudgetMillis = expressionBudget == null ? 0 : Long.parseLong(expressionBudget);
+			fileBudgetMillis = fileBudget == null ? 0 : Long.parseLong(fileBudget);
+		} catch (NumberFormatException ex) {
+			System.out.println("Invalid time budget");
+			return;
+		}
+		boolean resumable = Boolean.parseBoolean(System.getenv("JOURNAL"));
+		if (Boolean.parseBoolean(System.getenv("CONSOLIDATE"))) {
+			benchmarkConsolidated(args, benchmarkRepeatTime, resultsSuffix, resultCache, expressionBudgetMillis,
+					fileBudgetMillis, resumable);
+			return;
+		}
+		boolean forceOutputs = Boolean.parseBoolean(System.getenv("JOURNAL_FORCE_OUTPUTS"));
+		String parallelism = System.getenv("PARALLELISM");
+		if (Boolean.parseBoolean(System.getenv("VIRTUAL_THREADS"))) {
+			try {
+				benchmarkVirtualThreads(args, benchmarkRepeatTime, parallelism == null
+						? Runtime.getRuntime().availableProcessors() : Integer.parseInt(parallelism), resultCache,
+						expressionBudgetMillis, fileBudgetMillis);
+			} catch (NumberFormatException ex) {
+				System.out.println("Invalid parallelism");
+			}
+			return;
+		}
+		if (parallelism != null) {
+			try {
+				benchmarkScheduler(args, benchmarkRepeatTime, Integer.parseInt(parallelism), resultCache, resumable,
+						forceOutputs, expressionBudgetMillis, fileBudgetMillis);
+			} catch (NumberFormatException ex) {
+				System.out.println("Invalid parallelism");
+			}
+			return;
+		}
 		long before = System.currentTimeMillis();
 		for (int i = 0; i < benchmarkRepeatTime; i++) {
 			for (String filename : args) {
 				try {
-					List<String> filenames = evalExpressionsFromFile(filename, false);
+					List<String> filenames = evalExpressionsFromFile(filename, false, resultCache, profiler,
+							expressionBudgetMillis * 1000000L, Deadline.after(fileBudgetMillis * 1000000L),
+							resumable ? ProgressJournal.open(filename, forceOutputs) : null);
 					if (i == benchmarkRepeatTime - 1) {
 						System.out.print("results for file " + filename + ": ");
 						System.out.println(filenames);
@@ -71,7 +576,9 @@ public class ExpressionEvaluator {
 		for (int i = 0; i < benchmarkRepeatTime; i++) {
 			for (String filename : args) {
 				try {
-					List<String> filenames = evalExpressionsFromFile(filename, true);
+					List<String> filenames = evalExpressionsFromFile(filename, true, resultCache, profiler,
+							expressionBudgetMillis * 1000000L, Deadline.after(fileBudgetMillis * 1000000L),
+							resumable ? ProgressJournal.open(filename, forceOutputs) : null);
 					if (i == benchmarkRepeatTime - 1) {
 						System.out.print("results for file " + filename + ": ");
 						System.out.println(filenames);
@@ -84,6 +591,18 @@ public class ExpressionEvaluator {
 		}
 		now = System.currentTimeMillis();
 		System.out.println("Seconds elapsed for evaluation with cache: " + (now - before) / 1000F + " seconds.");
+		System.out.print(ExpressionScorer.operationCache().report());
+		if (resultCache != null) {
+			System.out.println(resultCache);
+		}
+		if (profiler != null) {
+			String reportFilename = System.getenv("PROFILE_REPORT");
+			if (reportFilename == null) {
+				System.out.print(profiler.report());
+			} else {
+				profiler.writeReport(reportFilename);
+			}
+		}
 	}
 
 }
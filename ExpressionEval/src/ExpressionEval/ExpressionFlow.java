@@ -0,0 +1,60 @@
+package ExpressionEval;
+
+/**
+ * The reactive streams interfaces of java.util.concurrent.Flow, which is not
+ * available on Java 8. The methods and their contracts are the same, so a
+ * Flow.Processor adapter on Java 9 or later only needs to delegate.
+ *
+ */
+public final class ExpressionFlow {
+	private ExpressionFlow() {
+	}
+
+	/**
+	 * A producer of items received by its subscribers on demand.
+	 */
+	public interface Publisher<T> {
+		/**
+		 * Add a subscriber, which is notified by onSubscribe, or by onError if it
+		 * could not be added.
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * A receiver of items. The methods of one subscription are called in order,
+	 * never concurrently.
+	 */
+	public interface Subscriber<T> {
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	/**
+	 * The link between a publisher and one of its subscribers.
+	 */
+	public interface Subscription {
+		/**
+		 * Allow up to |n| more items to be delivered to the subscriber. A
+		 * non-positive |n| fails the subscription with an
+		 * IllegalArgumentException.
+		 */
+		void request(long n);
+
+		/**
+		 * Stop the delivery of items, eventually.
+		 */
+		void cancel();
+	}
+
+	/**
+	 * Both a subscriber and a publisher, transforming the items it receives.
+	 */
+	public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+	}
+}
@@ -0,0 +1,338 @@
+package ExpressionEval;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Accounting of the CPU time and the allocated bytes of each evaluated line,
+ * measured with the ThreadMXBean of the evaluating thread, so that the
+ * expensive expressions could be found rather than the expensive stages.
+ *
+ * Only the heaviest lines are kept, so the memory does not grow with the
+ * number of lines. The allocated bytes need the com.sun.management extension
+ * of HotSpot and are reported as -1 on other JVMs. The token count is the one
+ * of the evaluation, so the line is only tokenized once.
+ *
+ * The wall clock latency of every line is also recorded in a histogram with 8
+ * buckets per power of two, so its percentiles are within 12.5% and the memory
+ * stays constant.
+ *
+ */
+public class ExpressionProfiler {
+	private static final Comparator<LineCost> BY_CPU = new Comparator<LineCost>() {
+		@Override
+		public int compare(LineCost o1, LineCost o2) {
+			return Long.compare(o1.cpuNanos, o2.cpuNanos);
+		}
+	};
+	private static final Comparator<LineCost> BY_ALLOCATION = new Comparator<LineCost>() {
+		@Override
+		public int compare(LineCost o1, LineCost o2) {
+			return Long.compare(o1.allocatedBytes, o2.allocatedBytes);
+		}
+	};
+
+	private static final int LATENCY_SUB_BUCKETS = 8;
+
+	private final int topN;
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private final com.sun.management.ThreadMXBean allocationBean;
+	// Min-heaps of the heaviest lines.
+	private final PriorityQueue<LineCost> topCpu;
+	private final PriorityQueue<LineCost> topAllocation;
+	private long lines;
+	private long totalCpuNanos;
+	private long totalAllocatedBytes;
+	private final long[] latencyBuckets = new long[64 * LATENCY_SUB_BUCKETS];
+	private long maxLatencyNanos;
+
+	/**
+	 * @param topN
+	 *            Number of the heaviest lines kept for the report.
+	 */
+	public ExpressionProfiler(int topN) {
+		if (topN <= 0) {
+			throw new IllegalArgumentException("Top N should be positive");
+		}
+		this.topN = topN;
+		this.topCpu = new PriorityQueue<LineCost>(topN + 1, BY_CPU);
+		this.topAllocation = new PriorityQueue<LineCost>(topN + 1, BY_ALLOCATION);
+		if (threadBean.isCurrentThreadCpuTimeSupported() && !threadBean.isThreadCpuTimeEnabled()) {
+			threadBean.setThreadCpuTimeEnabled(true);
+		}
+		com.sun.management.ThreadMXBean bean = null;
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			bean = (com.sun.management.ThreadMXBean) threadBean;
+			if (!bean.isThreadAllocatedMemorySupported()) {
+				bean = null;
+			} else if (!bean.isThreadAllocatedMemoryEnabled()) {
+				bean.setThreadAllocatedMemoryEnabled(true);
+			}
+		}
+		this.allocationBean = bean;
+	}
+
+	/**
+	 * Evaluate one line and account its cost to the calling thread.
+	 *
+	 * @param filename
+	 *            The input filename, for the report.
+	 * @param lineNum
+	 *            Line number in the file, starting from 0.
+	 * @param line
+	 *            Expression in string.
+	 * @param useCachedValue
+	 *            If applying the cache optimization of ExpressionScorer.
+	 * @param resultCache
+	 *            Cache of whole-expression results. Could be null.
+	 * @return Value and binary expression tree, or the error of the expression.
+	 */
+	public ExpressionScorer.ExpressionVal evalExpression(String filename, int lineNum, String line,
+			boolean useCachedValue, ResultCache resultCache) {
+		return evalExpression(filename, lineNum, line, useCachedValue, resultCache, Deadline.NONE);
+	}
+
+	/**
+	 * Same as evalExpression(filename, lineNum, line, useCachedValue,
+	 * resultCache), but the line gives up with the TIMEOUT error once the
+	 * deadline expires.
+	 */
+	public ExpressionScorer.ExpressionVal evalExpression(String filename, int lineNum, String line,
+			boolean useCachedValue, ResultCache resultCache, Deadline deadline) {
+		long threadId = Thread.currentThread().getId();
+		long hitsBefore = ExpressionScorer.operationCache().threadHitCount();
+		long allocatedBefore = allocationBean == null ? 0 : allocationBean.getThreadAllocatedBytes(threadId);
+		long cpuBefore = threadBean.getCurrentThreadCpuTime();
+		long wallBefore = System.nanoTime();
+		ExpressionScorer.ExpressionVal rtn = resultCache == null
+				? ExpressionEvaluator.evalExpression(line, useCachedValue, deadline)
+				: resultCache.evalExpression(line, useCachedValue, deadline);
+		long wallNanos = System.nanoTime() - wallBefore;
+		long cpuNanos = threadBean.getCurrentThreadCpuTime() - cpuBefore;
+		long allocatedBytes = allocationBean == null ? -1
+				: allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+		long cacheHits = ExpressionScorer.operationCache().threadHitCount() - hitsBefore;
+
+		LineCost cost = new LineCost(filename, lineNum, cpuNanos, allocatedBytes);
+		cost.cacheHits = cacheHits;
+		cost.tokenCount = rtn.tokenCount;
+		cost.depth = depth(rtn.expressionTree);
+		cost.error = rtn.error == null ? null : rtn.error.code;
+		record(cost, wallNanos);
+		return rtn;
+	}
+
+	private synchronized void record(LineCost cost, long wallNanos) {
+		lines++;
+		latencyBuckets[latencyBucket(wallNanos)]++;
+		maxLatencyNanos = Math.max(maxLatencyNanos, wallNanos);
+		totalCpuNanos += cost.cpuNanos;
+		totalAllocatedBytes += Math.max(0, cost.allocatedBytes);
+		offer(topCpu, cost);
+		if (allocationBean != null) {
+			offer(topAllocation, cost);
+		}
+	}
+
+	private void offer(PriorityQueue<LineCost> heap, LineCost cost) {
+		if (heap.size() < topN) {
+			heap.add(cost);
+		} else if (heap.comparator().compare(cost, heap.peek()) > 0) {
+			heap.poll();
+			heap.add(cost);
+		}
+	}
+
+	/**
+	 * Helper function to get the depth of the tree without recursion, since the
+	 * tree of a long sum is as deep as the number of its terms.
+	 */
+	private static int depth(ExpressionScorer.Node root) {
+		if (root == null) {
+			return 0;
+		}
+		int rtn = 0;
+		Deque<ExpressionScorer.Node> nodes = new ArrayDeque<ExpressionScorer.Node>();
+		Deque<Integer> depths = new ArrayDeque<Integer>();
+		nodes.offerFirst(root);
+		depths.offerFirst(1);
+		while (!nodes.isEmpty()) {
+			ExpressionScorer.Node node = nodes.pollFirst();
+			int depth = depths.pollFirst();
+			rtn = Math.max(rtn, depth);
+			if (node.left != null) {
+				nodes.offerFirst(node.left);
+				depths.offerFirst(depth + 1);
+			}
+			if (node.right != null) {
+				nodes.offerFirst(node.right);
+				depths.offerFirst(depth + 1);
+			}
+		}
+		return rtn;
+	}
+
+	/**
+	 * Helper function to get the histogram bucket of a latency: the power of two
+	 * below it and the next 3 bits.
+	 */
+	private static int latencyBucket(long nanos) {
+		if (nanos < LATENCY_SUB_BUCKETS) {
+			return (int) Math.max(0, nanos);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int subBucket = (int) (nanos >>> (exponent - 3)) & (LATENCY_SUB_BUCKETS - 1);
+		return (exponent - 2) * LATENCY_SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Helper function to get the largest latency of a histogram bucket.
+	 */
+	private static long latencyUpperBound(int bucket) {
+		if (bucket < LATENCY_SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / LATENCY_SUB_BUCKETS + 2;
+		long subBucket = bucket % LATENCY_SUB_BUCKETS;
+		return ((LATENCY_SUB_BUCKETS + subBucket + 1) << (exponent - 3)) - 1;
+	}
+
+	/**
+	 * @param percentile
+	 *            Between 0 and 100.
+	 * @return Wall clock latency in nanoseconds which |percentile| percent of the
+	 *         lines did not exceed, rounded up to its histogram bucket.
+	 */
+	public synchronized long latencyPercentile(double percentile) {
+		long rank = (long) Math.ceil(lines * percentile / 100);
+		long count = 0;
+		for (int i = 0; i < latencyBuckets.length; i++) {
+			count += latencyBuckets[i];
+			if (count >= Math.max(1, rank)) {
+				return Math.min(latencyUpperBound(i), maxLatencyNanos);
+			}
+		}
+		return maxLatencyNanos;
+	}
+
+	/**
+	 * @return CPU time of all the accounted lines.
+	 */
+	public synchronized long totalCpuNanos() {
+		return totalCpuNanos;
+	}
+
+	/**
+	 * @return Bytes allocated by all the accounted lines, or -1 if the JVM could
+	 *         not measure the allocations.
+	 */
+	public synchronized long totalAllocatedBytes() {
+		return allocationBean == null ? -1 : totalAllocatedBytes;
+	}
+
+	/**
+	 * @return Number of the accounted lines.
+	 */
+	public synchronized long lineCount() {
+		return lines;
+	}
+
+	/**
+	 * @return The heaviest lines by CPU time, the heaviest first.
+	 */
+	public synchronized List<LineCost> topByCpu() {
+		return sorted(topCpu);
+	}
+
+	/**
+	 * @return The heaviest lines by allocated bytes, the heaviest first. Empty if
+	 *         the JVM could not measure the allocations.
+	 */
+	public synchronized List<LineCost> topByAllocation() {
+		return sorted(topAllocation);
+	}
+
+	private static List<LineCost> sorted(PriorityQueue<LineCost> heap) {
+		List<LineCost> rtn = new ArrayList<LineCost>(heap);
+		Collections.sort(rtn, Collections.reverseOrder(heap.comparator()));
+		return rtn;
+	}
+
+	/**
+	 * @return The totals and the top N lines by CPU time and by allocated bytes.
+	 */
+	public synchronized String report() {
+		StringBuilder rtn = new StringBuilder();
+		String newLine = System.lineSeparator();
+		rtn.append("Accounted lines: ").append(lines).append(", CPU: ").append(totalCpuNanos / 1000)
+				.append(" us, allocated: ").append(allocationBean == null ? "n/a" : totalAllocatedBytes + " bytes")
+				.append(newLine);
+		rtn.append("Top ").append(topN).append(" lines by CPU time:").append(newLine);
+		for (LineCost cost : topByCpu()) {
+			rtn.append("  ").append(cost).append(newLine);
+		}
+		if (allocationBean != null) {
+			rtn.append("Top ").append(topN).append(" lines by allocated bytes:").append(newLine);
+			for (LineCost cost : topByAllocation()) {
+				rtn.append("  ").append(cost).append(newLine);
+			}
+		}
+		return rtn.toString();
+	}
+
+	/**
+	 * Write the report to a file.
+	 *
+	 * @param filename
+	 *            The report filename.
+	 */
+	public void writeReport(String filename) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(filename));
+		try {
+			bw.write(report());
+		} finally {
+			bw.close();
+		}
+	}
+
+	/**
+	 * Cost of one evaluated line.
+	 */
+	public static class LineCost {
+		public final String filename;
+		public final int line;
+		public final long cpuNanos;
+		// -1 if the JVM could not measure it.
+		public final long allocatedBytes;
+		public int tokenCount;
+		public int depth;
+		// Operations served by the operation cache.
+		public long cacheHits;
+		// Null for valid expressions.
+		public ExpressionCommon.ErrorCode error;
+
+		LineCost(String filename, int line, long cpuNanos, long allocatedBytes) {
+			this.filename = filename;
+			this.line = line;
+			this.cpuNanos = cpuNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return filename + ":" + line + " cpu=" + cpuNanos / 1000 + "us allocated=" + allocatedBytes
+					+ "B tokens=" + tokenCount + " depth=" + depth + " cacheHits=" + cacheHits
+					+ (error == null ? "" : " error=" + error);
+		}
+	}
+}
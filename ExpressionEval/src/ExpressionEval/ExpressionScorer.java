@@ -1,10 +1,8 @@
 package ExpressionEval;
 
 import java.util.List;
-import java.util.Map;
 import java.util.ArrayList;
 import java.util.Deque;
-import java.util.HashMap;
 import java.util.ArrayDeque;
 import java.lang.Math;
 
@@ -14,13 +12,19 @@ import java.lang.Math;
  *
  */
 public class ExpressionScorer {
-	// This map caches the calculated value for *, /, ^ and log operations.
-	private static Map<String, Double> calculatedExpressionToValueCache = new HashMap<String, Double>();
+	// This cache keeps the calculated value for *, /, ^ and log operations. It is
+	// shared by the threads of BatchScheduler.
+	private static final OperationCache operationCache = new OperationCache(64 * 1024);
 
 	public static class ExpressionVal {
 		double value;
 		Node expressionTree;
 		Exception exp;
+		// Set instead of |exp| when the expression is rejected by validation.
+		ExpressionCommon.ParseError error;
+		// Number of tokens, set by ExpressionEvaluator.evalExpression. 0 if the
+		// expression could not be tokenized.
+		int tokenCount;
 
 		ExpressionVal(double value, Node expressionTree) {
 			this.value = value;
@@ -30,6 +34,46 @@ public class ExpressionScorer {
 		ExpressionVal(Exception exp) {
 			this.exp = exp;
 		}
+
+		ExpressionVal(ExpressionCommon.ParseError error) {
+			this.error = error;
+		}
+
+		/**
+		 * @return Whether the expression could not be evaluated, see exception and
+		 *         error.
+		 */
+		public boolean hasError() {
+			return exp != null || error != null;
+		}
+
+		/**
+		 * @return Value of the expression, meaningless if hasError.
+		 */
+		public double value() {
+			return value;
+		}
+
+		/**
+		 * @return Binary expression tree of the expression, or null if hasError.
+		 */
+		public Node expressionTree() {
+			return expressionTree;
+		}
+
+		/**
+		 * @return Exception thrown by the evaluation, or null.
+		 */
+		public Exception exception() {
+			return exp;
+		}
+
+		/**
+		 * @return Error of an expression rejected by validation, or null.
+		 */
+		public ExpressionCommon.ParseError error() {
+			return error;
+		}
 	}
 
 	public static class Node {
@@ -48,23 +92,41 @@ public class ExpressionScorer {
 		}
 
 		public String toString() {
+			return toString(Deadline.NONE);
+		}
+
+		/**
+		 * Render the tree unless the deadline expires first.
+		 *
+		 * @param deadline
+		 *            Deadline of the rendering.
+		 * @return The rendered tree, or null if the deadline expired.
+		 */
+		public String toString(Deadline deadline) {
 			StringBuilder buffer = new StringBuilder(50);
-			print(buffer, "", "");
+			try {
+				print(buffer, "", "", deadline);
+			} catch (Deadline.Exceeded ex) {
+				return null;
+			}
 			return buffer.toString();
 		}
 
-		private void print(StringBuilder buffer, String prefix, String childrenPrefix) {
+		private void print(StringBuilder buffer, String prefix, String childrenPrefix, Deadline deadline) {
+			// Every node copies its prefix, which is as long as its depth, so the
+			// deadline is checked at every node instead of every CHECK_INTERVAL.
+			deadline.check(0, -1);
 			buffer.append(prefix);
 			buffer.append(val);
 			buffer.append('\n');
 			if (right != null && left != null) {
-				right.print(buffer, childrenPrefix + "├── ", childrenPrefix + "│   ");
+				right.print(buffer, childrenPrefix + "├── ", childrenPrefix + "│   ", deadline);
 			}
 			if (right != null && left == null) {
-				right.print(buffer, childrenPrefix + "├── ", childrenPrefix + "    ");
+				right.print(buffer, childrenPrefix + "├── ", childrenPrefix + "    ", deadline);
 			}
 			if (left != null) {
-				left.print(buffer, childrenPrefix + "└── ", childrenPrefix + "    ");
+				left.print(buffer, childrenPrefix + "└── ", childrenPrefix + "    ", deadline);
 			}
 		}
 	}
@@ -82,7 +144,94 @@ public class ExpressionScorer {
 	 */
 	public static ExpressionVal evalTokens(List<ExpressionCommon.Token> tokens, boolean useCachedVal) {
 		List<ExpressionCommon.Token> rpnTokens = toRPN(tokens);
-		return evalRpn(rpnTokens, useCachedVal);
+		return evalRpn(rpnTokens, useCachedVal, Deadline.NONE);
+	}
+
+	/**
+	 * Same as evalTokens(tokens, useCachedVal), but reports operators missing
+	 * their operands through |error| instead of throwing an exception.
+	 * 
+	 * @param tokens
+	 *            Token parsed by the InputHandler
+	 * @param useCachedVal
+	 *            Whether to apply the cache optimization for the evaluation.
+	 * @param error
+	 *            Filled with the error code and position if the tokens could not
+	 *            be evaluated.
+	 * @return Value and binary expression tree of the tokens, or null if the
+	 *         tokens could not be evaluated.
+	 */
+	public static ExpressionVal evalTokens(List<ExpressionCommon.Token> tokens, boolean useCachedVal,
+			ExpressionCommon.ParseError error) {
+		return evalTokens(tokens, useCachedVal, error, Deadline.NONE);
+	}
+
+	/**
+	 * Same as evalTokens(tokens, useCachedVal, error), but fails with the TIMEOUT
+	 * error once the deadline expires.
+	 * 
+	 * @param tokens
+	 *            Token parsed by the InputHandler
+	 * @param useCachedVal
+	 *            Whether to apply the cache optimization for the evaluation.
+	 * @param error
+	 *            Filled with the error code and position if the tokens could not
+	 *            be evaluated or the deadline expired.
+	 * @param deadline
+	 *            Deadline of the expression.
+	 * @return Value and binary expression tree of the tokens, or null if the
+	 *         tokens could not be evaluated.
+	 */
+	public static ExpressionVal evalTokens(List<ExpressionCommon.Token> tokens, boolean useCachedVal,
+			ExpressionCommon.ParseError error, Deadline deadline) {
+		try {
+			List<ExpressionCommon.Token> rpnTokens = toRPN(tokens, deadline);
+			if (!checkRpn(rpnTokens, error)) {
+				return null;
+			}
+			return evalRpn(rpnTokens, useCachedVal, deadline);
+		} catch (Deadline.Exceeded ex) {
+			return ex.fail(error);
+		}
+	}
+
+	/**
+	 * Helper function to check every operator in the reverse polish notations has
+	 * its operands, so that the evaluation would not fail.
+	 * 
+	 * @param rpnTokens
+	 *            Tokens in the reverse polish notations.
+	 * @param error
+	 *            Filled with the position of the first operator missing operands.
+	 * @return Whether the tokens could be evaluated.
+	 */
+	static boolean checkRpn(List<ExpressionCommon.Token> rpnTokens, ExpressionCommon.ParseError error) {
+		int depth = 0;
+		for (int i = 0; i < rpnTokens.size(); i++) {
+			ExpressionCommon.Token token = rpnTokens.get(i);
+			if (token.number != null) {
+				depth++;
+			} else if (token.isUnary) {
+				if (depth < 1) {
+					error.set(ExpressionCommon.ErrorCode.MISSING_OPERAND, token.position,
+							"Unary operator needs an operand");
+					return false;
+				}
+			} else {
+				if (depth < 2) {
+					error.set(token.operator.equals(ExpressionCommon.LOG) ? ExpressionCommon.ErrorCode.INVALID_LOG
+							: ExpressionCommon.ErrorCode.MISSING_OPERAND, token.position,
+							"Binary operators should have two operands");
+					return false;
+				}
+				depth--;
+			}
+		}
+		if (depth == 0) {
+			error.set(ExpressionCommon.ErrorCode.EMPTY_EXPRESSION, 0, "Empty expression");
+			return false;
+		}
+		return true;
 	}
 
 	/**
@@ -92,11 +241,22 @@ public class ExpressionScorer {
 	 *            Token parsed by the InputHandler.
 	 * @return Tokens in the reverse polish notations.
 	 */
-	private static List<ExpressionCommon.Token> toRPN(List<ExpressionCommon.Token> tokens) {
+	static List<ExpressionCommon.Token> toRPN(List<ExpressionCommon.Token> tokens) {
+		return toRPN(tokens, Deadline.NONE);
+	}
+
+	/**
+	 * Same as toRPN(tokens), checking the deadline.
+	 * 
+	 * @throws Deadline.Exceeded
+	 *             If the deadline expired.
+	 */
+	static List<ExpressionCommon.Token> toRPN(List<ExpressionCommon.Token> tokens, Deadline deadline) {
 		List<ExpressionCommon.Token> rtn = new ArrayList<ExpressionCommon.Token>();
 		Deque<ExpressionCommon.Token> operatorStack = new ArrayDeque<ExpressionCommon.Token>();
 		for (int i = 0; i < tokens.size(); i++) {
 			ExpressionCommon.Token token = tokens.get(i);
+			deadline.check(i, token.position);
 			if ((token.number == null && token.operator == null) || (token.number != null && token.operator != null)) {
 				throw new IllegalArgumentException("Logic error. Token can either be number or operator but not both");
 			}
@@ -173,17 +333,21 @@ public class ExpressionScorer {
 	 *            Tokens in the reverse polish notations.
 	 * @param useCachedVal
 	 *            Whether to apply the cache optimization for the evaluation.
+	 * @param deadline
+	 *            Deadline checked while evaluating.
 	 * @return value and binary expression tree of the tokens.
 	 */
-	private static ExpressionVal evalRpn(List<ExpressionCommon.Token> rpnTokens, boolean useCachedValue) {
+	private static ExpressionVal evalRpn(List<ExpressionCommon.Token> rpnTokens, boolean useCachedValue,
+			Deadline deadline) {
 		Deque<Node> nodeStack = new ArrayDeque<Node>();
 		Deque<Double> valStack = new ArrayDeque<Double>();
 		for (int i = 0; i < rpnTokens.size(); i++) {
 			ExpressionCommon.Token currToken = rpnTokens.get(i);
+			deadline.check(i, currToken.position);
 			if (currToken.number != null) {
 				// Curr Token is a number
 				valStack.offerFirst(currToken.number);
-				nodeStack.offerFirst(new Node(String.valueOf(currToken.number)));
+				nodeStack.offerFirst(new Node(DoubleFormatter.toString(currToken.number)));
 			} else if (currToken.operator == null) {
 				throw new IllegalArgumentException("Invalid token. Both number and operator are null");
 			} else {
@@ -220,62 +384,19 @@ public class ExpressionScorer {
 						newNode = new Node("-", prevNode1, prevNode2);
 						break;
 					case "*":
-						// Check if the operation has been calculated. If not, calculate and push it
-						// into the cache.
-						String operationInString = String.format("%f * %f", prevVal1, prevVal2);
-						String operationInStringReverse = String.format("%f * %f", prevVal2, prevVal1);
-						Double val = calculatedExpressionToValueCache.get(operationInString);
-						if (val == null || useCachedValue) {
-							val = calculatedExpressionToValueCache.get(operationInStringReverse);
-							if (val == null || useCachedValue) {
-								newVal = prevVal1 * prevVal2;
-								calculatedExpressionToValueCache.put(operationInString, newVal);
-								calculatedExpressionToValueCache.put(operationInStringReverse, newVal);
-							} else {
-								newVal = val;
-							}
-						} else {
-							newVal = val;
-						}
+						newVal = applyCached(ExpressionCommon.OP_MULTIPLY, prevVal1, prevVal2, useCachedValue);
 						newNode = new Node("*", prevNode1, prevNode2);
 						break;
 					case "/":
-						// Check if the operation has been calculated. If not, calculate and push it
-						// into the cache.
-						String operationInStr = String.format("%f / %f", prevVal1, prevVal2);
-						Double oldVal = calculatedExpressionToValueCache.get(operationInStr);
-						if (oldVal == null) {
-							newVal = prevVal1 / prevVal2;
-							calculatedExpressionToValueCache.put(operationInStr, newVal);
-						} else {
-							newVal = oldVal;
-						}
+						newVal = applyCached(ExpressionCommon.OP_DIVIDE, prevVal1, prevVal2, useCachedValue);
 						newNode = new Node("/", prevNode1, prevNode2);
 						break;
 					case "^":
-						// Check if the operation has been calculated. If not, calculate and push it
-						// into the cache.
-						String opInStr = String.format("%f ^ %f", prevVal1, prevVal2);
-						Double oldValPower = calculatedExpressionToValueCache.get(opInStr);
-						if (oldValPower == null || useCachedValue) {
-							newVal = Math.pow(prevVal1, prevVal2);
-							calculatedExpressionToValueCache.put(opInStr, newVal);
-						} else {
-							newVal = oldValPower;
-						}
+						newVal = applyCached(ExpressionCommon.OP_POWER, prevVal1, prevVal2, useCachedValue);
 						newNode = new Node("^", prevNode1, prevNode2);
 						break;
 					case "log":
-						// Check if the operation has been calculated. If not, calculate and push it
-						// into the cache.
-						String opInStrLog = String.format("log(%f,%f)", prevVal1, prevVal2);
-						Double oldValLog = calculatedExpressionToValueCache.get(opInStrLog);
-						if (oldValLog == null || useCachedValue) {
-							newVal = Math.log(prevVal2) / Math.log(prevVal1);
-							calculatedExpressionToValueCache.put(opInStrLog, newVal);
-						} else {
-							newVal = oldValLog;
-						}
+						newVal = applyCached(ExpressionCommon.OP_LOG, prevVal1, prevVal2, useCachedValue);
 						newNode = new Node("log", prevNode1, prevNode2);
 						break;
 					default:
@@ -288,4 +409,54 @@ public class ExpressionScorer {
 		}
 		return new ExpressionVal(valStack.pollFirst(), nodeStack.pollFirst());
 	}
+
+	/**
+	 * @return The cache of the *, /, ^ and log operations, which reports the
+	 *         caching decision and hit rate of each operator.
+	 */
+	public static OperationCache operationCache() {
+		return operationCache;
+	}
+
+	/**
+	 * Helper function to apply an expensive binary operator, going through the
+	 * operation cache if the cache optimization is on.
+	 */
+	static double applyCached(byte opcode, double val1, double val2, boolean useCachedValue) {
+		if (useCachedValue) {
+			return operationCache.apply(opcode, val1, val2);
+		}
+		return applyBinary(opcode, val1, val2);
+	}
+
+	/**
+	 * Apply a binary operator to two operands without the cache optimization. The
+	 * result is the same as the one calculated by evalRpn.
+	 * 
+	 * @param opcode
+	 *            One of the binary opcodes in ExpressionCommon.
+	 * @param val1
+	 *            Left operand. For log it is the base.
+	 * @param val2
+	 *            Right operand.
+	 * @return Value of the operation.
+	 */
+	static double applyBinary(byte opcode, double val1, double val2) {
+		switch (opcode) {
+		case ExpressionCommon.OP_ADD:
+			return val1 + val2;
+		case ExpressionCommon.OP_SUBTRACT:
+			return val1 - val2;
+		case ExpressionCommon.OP_MULTIPLY:
+			return val1 * val2;
+		case ExpressionCommon.OP_DIVIDE:
+			return val1 / val2;
+		case ExpressionCommon.OP_POWER:
+			return Math.pow(val1, val2);
+		case ExpressionCommon.OP_LOG:
+			return Math.log(val2) / Math.log(val1);
+		default:
+			throw new IllegalArgumentException("Unrecognizable operator");
+		}
+	}
 }
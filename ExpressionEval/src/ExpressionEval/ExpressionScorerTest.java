@@ -2,7 +2,29 @@ package ExpressionEval;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Rule;
 import org.junit.jupiter.api.Test;
@@ -171,4 +193,871 @@ class ExpressionScorerTest {
 		assertTrue(result.expressionTree.right.right.left == null);
 	}
 
+	@Test
+	void testStructuredError() {
+		ExpressionCommon.ParseError error = new ExpressionCommon.ParseError();
+		assertTrue(InputHandler.tokenize("-10*(2", error) == null);
+		assertTrue(error.code == ExpressionCommon.ErrorCode.UNBALANCED_PARENTHESIS);
+		assertTrue(error.position == 4);
+		assertTrue(error.code() == error.code && error.position() == 4 && error.reason() != null);
+
+		assertTrue(InputHandler.tokenize("1 + 2 # 3", error) == null);
+		assertTrue(error.code == ExpressionCommon.ErrorCode.INVALID_CHARACTER);
+		assertTrue(error.position == 6);
+
+		assertTrue(InputHandler.tokenize("1..2", error) == null);
+		assertTrue(error.code == ExpressionCommon.ErrorCode.INVALID_NUMBER);
+		assertTrue(error.position == 2);
+
+		assertTrue(InputHandler.tokenize("2(10)", error) == null);
+		assertTrue(error.code == ExpressionCommon.ErrorCode.IMPLICIT_MULTIPLY);
+		assertTrue(error.position == 1);
+
+		assertTrue(InputHandler.tokenize("1 +", error) == null);
+		assertTrue(error.code == ExpressionCommon.ErrorCode.MISSING_OPERAND);
+		assertTrue(error.position == 2);
+
+		ExpressionScorer.ExpressionVal result = ExpressionEvaluator.evalExpression("log(2,)", true);
+		assertTrue(result.error.code == ExpressionCommon.ErrorCode.INVALID_LOG);
+		assertTrue(result.error.position == 0);
+
+		result = ExpressionEvaluator.evalExpression("", true);
+		assertTrue(result.error.code == ExpressionCommon.ErrorCode.EMPTY_EXPRESSION);
+
+		result = ExpressionEvaluator.evalExpression("1 + 1", true);
+		assertTrue(!result.hasError());
+		assertTrue(result.value == 2);
+	}
+
+	@Test
+	void testDoubleFormatter() {
+		double[] values = { 0, -0.0, 1, -10, 264, 0.01, 0.001, 0.1 + 0.2, 1.0 / 3, 9999999, 1e7, 1.5e-4, 2e20,
+				123456.789, Double.NaN, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE };
+		char[] buf = new char[DoubleFormatter.MAX_LENGTH];
+		for (double value : values) {
+			int length = DoubleFormatter.format(value, buf, 0);
+			assertTrue(new String(buf, 0, length).equals(Double.toString(value)));
+		}
+		assertTrue(new String(buf, 0, DoubleFormatter.format(264, buf, 0, true)).equals("264"));
+		assertTrue(new String(buf, 0, DoubleFormatter.format(-0.5, buf, 0, true)).equals("-0.5"));
+		assertTrue(new String(buf, 0, DoubleFormatter.format(1e7, buf, 0, true)).equals("1.0E7"));
+
+		// Shortest text parsing back to the same double, which is at most as long
+		// as Double.toString, and equal to it since JDK 19.
+		Random random = new Random(20180305L);
+		for (int i = 0; i < 100000; i++) {
+			double value = i % 2 == 0 ? Double.longBitsToDouble(random.nextLong())
+					: Math.log(1 + random.nextInt(1000)) / Math.log(2 + random.nextInt(100));
+			if (value != value) {
+				continue;
+			}
+			String text = new String(buf, 0, DoubleFormatter.format(value, buf, 0));
+			assertTrue(Double.parseDouble(text) == value && text.length() <= Double.toString(value).length());
+		}
+	}
+
+	@Test
+	void testParallelEvaluator() {
+		String formula = "0.1 * 3 + 2 ^ 0.5 / 7 - log(3, 10) * -0.7 + (1.1 - 0.3) * (4 + 5 * 0.2) / 3 + -(0.1 + 0.2)";
+		List<ExpressionCommon.Token> tokens = InputHandler.tokenize(formula);
+		ExpressionScorer.ExpressionVal expected = ExpressionScorer.evalTokens(tokens, false);
+		ForkJoinPool pool = new ForkJoinPool(2);
+		for (int threshold = 1; threshold <= tokens.size() + 1; threshold++) {
+			ExpressionScorer.ExpressionVal result = new ParallelEvaluator(pool, threshold).evalTokens(tokens, false);
+			assertTrue(Double.doubleToRawLongBits(result.value) == Double.doubleToRawLongBits(expected.value));
+			assertTrue(result.expressionTree.toString().equals(expected.expressionTree.toString()));
+		}
+		pool.shutdown();
+	}
+
+	@Test
+	void testMathKernels() {
+		for (int exponent = 0; exponent <= MathKernels.MAX_INT_EXPONENT; exponent++) {
+			assertTrue(MathKernels.powInt(3, exponent) == Math.pow(3, exponent));
+			double expected = Math.pow(1.1, -exponent);
+			assertTrue(Math.abs(MathKernels.powInt(1.1, -exponent) - expected) <= exponent * Math.ulp(expected));
+		}
+		assertTrue(MathKernels.powInt(-0.0, 3) == 0 && 1 / MathKernels.powInt(-0.0, 3) < 0);
+		assertTrue(MathKernels.powInt(0, -1) == Double.POSITIVE_INFINITY);
+		// Out of the normal range the product loses its accuracy, Math.pow is used.
+		for (double base : new double[] { 1e40, -1e40, 1e-40, 1e-160, 1e154, 3e-39, Double.MIN_VALUE }) {
+			for (int exponent = -MathKernels.MAX_INT_EXPONENT; exponent <= MathKernels.MAX_INT_EXPONENT; exponent++) {
+				double expected = Math.pow(base, exponent);
+				double actual = MathKernels.powInt(base, exponent);
+				assertTrue(actual == expected || Math.abs(actual - expected) <= 8 * Math.ulp(expected));
+			}
+		}
+		assertTrue(MathKernels.powInt(1e40, -8) == Math.pow(1e40, -8) && Math.pow(1e40, -8) > 0);
+		assertTrue(MathKernels.reciprocalLn(3) == 0);
+
+		String formula = "log(3, 7) * 2 ^ 3 - log(10, 1000) + log(2, 8 + 8) / 1.5 ^ 2 + (1 + 2) ^ 2.5";
+		List<ExpressionCommon.Token> tokens = InputHandler.tokenize(formula);
+		double expected = ExpressionScorer.evalTokens(tokens, false).value;
+		assertTrue(CompiledExpression.compile(tokens, false).eval() == expected);
+		assertTrue(Math.abs(CompiledExpression.compile(tokens, true).eval() - expected) <= 4 * Math.ulp(expected));
+	}
+
+	@Test
+	void testProgressJournal() throws IOException {
+		File input = File.createTempFile("journal", ".txt");
+		Files.write(input.toPath(), "1\n2\n".getBytes());
+		ProgressJournal journal = ProgressJournal.open(input.getPath(), false);
+		assertTrue(journal.resumeLine() == 0);
+		for (int line : new int[] { 1, 2, 0, 5, 4 }) {
+			journal.markDone(line, null);
+		}
+		assertTrue(journal.watermark() == 3);
+		journal.close(10);
+		journal = ProgressJournal.open(input.getPath(), false);
+		assertTrue(journal.resumeLine() == 3);
+		journal.markDone(3, null);
+		assertTrue(journal.watermark() == 4);
+		journal.close(4);
+		assertTrue(ProgressJournal.open(input.getPath(), false).resumeLine() == 0);
+		assertTrue(!new File(input.getPath() + ".journal").exists());
+
+		// A journal forcing the outputs holds them open until it forces them.
+		StringBuilder content = new StringBuilder();
+		int lines = ProgressJournal.MAX_PENDING_OUTPUTS + 10;
+		for (int i = 0; i < lines; i++) {
+			content.append(i).append(" + 1\n");
+		}
+		Files.write(input.toPath(), content.toString().getBytes());
+		List<String> expected = new ArrayList<String>();
+		for (String filename : ExpressionEvaluator.evalExpressionsFromFile(input.getPath(), false)) {
+			expected.add(new String(Files.readAllBytes(Paths.get(filename))));
+		}
+		List<String> outputFilenames = ExpressionEvaluator.evalExpressionsFromFile(input.getPath(), false, null, null,
+				ProgressJournal.open(input.getPath(), true));
+		assertTrue(outputFilenames.size() == lines && !new File(input.getPath() + ".journal").exists());
+		for (int i = 0; i < lines; i++) {
+			assertTrue(new String(Files.readAllBytes(Paths.get(outputFilenames.get(i)))).equals(expected.get(i)));
+			new File(outputFilenames.get(i)).delete();
+		}
+
+		// A failed run checkpoints the lines done before the failure.
+		ResultCache crashing = new ResultCache(16) {
+			@Override
+			public ExpressionScorer.ExpressionVal evalExpression(String expression, boolean useCachedValue,
+					Deadline deadline) {
+				if (expression.startsWith("10 ")) {
+					throw new IllegalStateException("crash");
+				}
+				return super.evalExpression(expression, useCachedValue, deadline);
+			}
+		};
+		try {
+			ExpressionEvaluator.evalExpressionsFromFile(input.getPath(), false, crashing, null,
+					ProgressJournal.open(input.getPath(), true));
+		} catch (IllegalStateException ex) {
+			// Expected.
+		}
+		assertTrue(ProgressJournal.open(input.getPath()).resumeLine() == 10);
+		for (int i = 0; i < 10; i++) {
+			new File(OutputHandler.outputFilename(input.getPath(), i)).delete();
+		}
+		new File(input.getPath() + ".journal").delete();
+		input.delete();
+	}
+
+	@Test
+	void testEvaluationProcessor() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		EvaluationProcessor processor = new EvaluationProcessor(executor, 2, true, false);
+		AtomicLong upstreamRequested = new AtomicLong();
+		processor.onSubscribe(new ExpressionFlow.Subscription() {
+			@Override
+			public void request(long n) {
+				upstreamRequested.addAndGet(n);
+			}
+
+			@Override
+			public void cancel() {
+			}
+		});
+		assertTrue(upstreamRequested.get() == 2);
+		List<ExpressionScorer.ExpressionVal> results = new CopyOnWriteArrayList<ExpressionScorer.ExpressionVal>();
+		CountDownLatch done = new CountDownLatch(1);
+		processor.subscribe(new ExpressionFlow.Subscriber<ExpressionScorer.ExpressionVal>() {
+			private ExpressionFlow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(ExpressionFlow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(ExpressionScorer.ExpressionVal item) {
+				results.add(item);
+				subscription.request(1);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+			}
+
+			@Override
+			public void onComplete() {
+				done.countDown();
+			}
+		});
+		String[] expressions = { "1 + 2 * 3", "log(2, 8) ^ 2", "1 +", "2 / 4" };
+		for (String expression : expressions) {
+			// Never more than the requested expressions.
+			while (upstreamRequested.get() == 0) {
+				Thread.yield();
+			}
+			upstreamRequested.decrementAndGet();
+			processor.onNext(expression);
+		}
+		processor.onComplete();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		executor.shutdown();
+		assertTrue(results.size() == 4);
+		assertTrue(results.get(0).value == 7 && results.get(1).value == 9 && results.get(3).value == 0.5);
+		assertTrue(results.get(2).hasError());
+	}
+
+	@Test
+	void testBatchEvaluator() {
+		BatchEvaluator evaluator = new BatchEvaluator(true);
+		CharSequence[] expressions = { "1 + 2 * 3", new StringBuilder("-log(2, 8) ^ 2"), "1 +", null, "2 / 4" };
+		double[] results = new double[5];
+		int[] errorCodes = new int[5];
+		assertTrue(evaluator.evaluate(expressions, results, errorCodes, null) == 2);
+		assertTrue(results[0] == 7 && results[1] == -9 && results[4] == 0.5 && Double.isNaN(results[2]));
+		assertTrue(errorCodes[0] == 0 && errorCodes[1] == 0 && errorCodes[4] == 0);
+		assertTrue(errorCodes[2] == ExpressionCommon.ErrorCode.MISSING_OPERAND.code);
+		assertTrue(errorCodes[3] == ExpressionCommon.ErrorCode.NULL_FORMULA.code);
+		ExpressionScorer.Node[] trees = new ExpressionScorer.Node[2];
+		assertTrue(evaluator.evaluate(Arrays.asList("(1 + 2) * 3", "4 ^ 0.5"), results, errorCodes,
+				trees) == 0);
+		assertTrue(results[0] == 9 && results[1] == 2 && trees[0].val.equals("*"));
+	}
+
+	@Test
+	void testDeadline() throws IOException {
+		Deadline batch = Deadline.after(0);
+		assertTrue(!batch.within(1000000000L).expired());
+		Deadline unlimited = Deadline.NONE.within(0);
+		unlimited.cancel();
+		assertTrue(unlimited.expired() && !Deadline.NONE.expired());
+		Deadline line = batch.within(0);
+		line.cancel();
+		assertTrue(line.expired() && !batch.expired());
+		StringBuilder longSum = new StringBuilder("1");
+		for (int i = 0; i < 5000; i++) {
+			longSum.append(" + 1");
+		}
+		ExpressionScorer.ExpressionVal rtn = ExpressionEvaluator.evalExpression(longSum.toString(), false);
+		assertTrue(rtn.value == 5001);
+		batch.cancel();
+		assertTrue(batch.within(1000000000L).expired());
+		ExpressionScorer.ExpressionVal cancelled = ExpressionEvaluator.evalExpression(longSum.toString(), false,
+				batch);
+		assertTrue(cancelled.error.code == ExpressionCommon.ErrorCode.TIMEOUT);
+		assertTrue(rtn.expressionTree.toString(batch) == null);
+		StringWriter writer = new StringWriter();
+		OutputHandler.write(writer, rtn, batch);
+		assertTrue(writer.toString().startsWith("Error TIMEOUT"));
+
+		BatchEvaluator evaluator = new BatchEvaluator(false, 1000000000L);
+		double[] results = new double[2];
+		int[] errorCodes = new int[2];
+		assertTrue(evaluator.evaluate(new String[] { "1 + 2", longSum.toString() }, results, errorCodes, null) == 0);
+		assertTrue(evaluator.evaluate(new String[] { "1 + 2", longSum.toString() }, results, errorCodes, null,
+				batch) == 2);
+		assertTrue(errorCodes[0] == ExpressionCommon.ErrorCode.TIMEOUT.code && Double.isNaN(results[1]));
+	}
+
+	@Test
+	void testWorkloadGenerator() {
+		WorkloadGenerator valid = new WorkloadGenerator(7).configure("tokens=20").configure("depth=3");
+		WorkloadGenerator same = new WorkloadGenerator(7).configure("tokens=20").configure("depth=3");
+		WorkloadGenerator invalid = new WorkloadGenerator(7).configure("invalid=1").configure("ops=log:1,^:1");
+		for (int i = 0; i < 500; i++) {
+			String line = valid.nextLine();
+			assertTrue(line.equals(same.nextLine()));
+			assertTrue(!ExpressionEvaluator.evalExpression(line, false).hasError());
+			assertTrue(ExpressionEvaluator.evalExpression(invalid.nextLine(), false).hasError());
+		}
+	}
+
+	@Test
+	void testVirtualThreadScheduler() throws IOException {
+		File input = File.createTempFile("virtual", ".txt");
+		Files.write(input.toPath(), "1 + 2\n3 *\nlog(2, 8)\n".getBytes());
+		VirtualThreadScheduler scheduler = new VirtualThreadScheduler(1, null);
+		List<List<String>> outputs = scheduler.evalFiles(Arrays.asList(input.getPath(), input.getPath() + ".missing"),
+				false, null);
+		scheduler.shutdown();
+		assertTrue(outputs.get(1) == null);
+		BatchScheduler batchScheduler = new BatchScheduler(1);
+		assertTrue(outputs.get(0).equals(batchScheduler.evalFiles(Arrays.asList(input.getPath()), false, null).get(0)));
+		batchScheduler.shutdown();
+		assertTrue(new String(Files.readAllBytes(Paths.get(outputs.get(0).get(2)))).startsWith("3"));
+		for (String outputFilename : outputs.get(0)) {
+			new File(outputFilename).delete();
+		}
+		input.delete();
+	}
+
+	@Test
+	void testTieredExpression() {
+		String[] formulas = { "1 + 2 * 3 - 4 / 5", "-(2 ^ 0.5) * -3", "log(3, 7) * 2 ^ 3 - log(10, 1000) + log(2, 8 + 8)",
+				"(1 + 2) ^ 2.5 / 1.5 ^ -2 + log(1 + 1, 9)", "0 - 0 * -1" };
+		BytecodeCompiler compiler = new BytecodeCompiler(2);
+		for (boolean specialize : new boolean[] { false, true }) {
+			for (String formula : formulas) {
+				CompiledExpression compiled = CompiledExpression.compile(InputHandler.tokenize(formula), specialize);
+				TieredExpression tiered = new TieredExpression(compiled, 2, compiler);
+				double expected = compiled.eval();
+				assertTrue(Double.doubleToRawLongBits(tiered.eval()) == Double.doubleToRawLongBits(expected));
+				assertTrue(!tiered.isPromoted());
+				assertTrue(Double.doubleToRawLongBits(tiered.eval()) == Double.doubleToRawLongBits(expected));
+				assertTrue(tiered.isPromoted());
+				assertTrue(Double.doubleToRawLongBits(tiered.eval()) == Double.doubleToRawLongBits(expected));
+			}
+		}
+		assertTrue(compiler.size() == 2 && compiler.generatedCount() == 2 * formulas.length);
+
+		// Too large for the JIT, so it stays interpreted.
+		StringBuilder formula = new StringBuilder("1");
+		for (int i = 0; i < 3000; i++) {
+			formula.append(" + 0.5");
+		}
+		TieredExpression tiered = new TieredExpression(
+				CompiledExpression.compile(InputHandler.tokenize(formula.toString()), false), 1, compiler);
+		assertTrue(tiered.eval() == 1501 && !tiered.isPromoted());
+	}
+
+	@Test
+	void testOffHeapEvaluator() throws IOException {
+		File input = File.createTempFile("offheap", ".txt");
+		Files.write(input.toPath(), "1 + 2 * 3\n-log(2, 8) ^ 2\n3 *\n1 / 0\n(1.5 - 2) / 4\n".getBytes());
+		List<String> outputs = ExpressionEvaluator.evalExpressionsFromFile(input.getPath(), false);
+		String[] expected = new String[outputs.size()];
+		for (int i = 0; i < outputs.size(); i++) {
+			expected[i] = new String(Files.readAllBytes(Paths.get(outputs.get(i))));
+			new File(outputs.get(i)).delete();
+		}
+		// The second run reuses the stores, and chunks of 2 lines split the file.
+		for (OffHeapEvaluator evaluator : new OffHeapEvaluator[] { new OffHeapEvaluator(), new OffHeapEvaluator(2) }) {
+			for (int run = 0; run < 2; run++) {
+				assertTrue(evaluator.evalFile(input.getPath()) == expected.length);
+				for (int i = 0; i < expected.length; i++) {
+					String outputFilename = OutputHandler.outputFilename(input.getPath(), i);
+					assertTrue(new String(Files.readAllBytes(Paths.get(outputFilename))).equals(expected[i]));
+					new File(outputFilename).delete();
+				}
+			}
+			assertTrue(evaluator.allocatedBytes() > 0);
+		}
+		input.delete();
+
+		OffHeapStore store = new OffHeapStore(16);
+		long first = store.reserve(12);
+		long second = store.reserve(12);
+		store.putDouble(first, 0, 1.5);
+		store.putInt(second, 8, 42);
+		assertTrue(store.getDouble(first, 0) == 1.5 && store.getInt(second, 8) == 42);
+		assertTrue(first >>> 32 != second >>> 32);
+	}
+
+	@Test
+	void testBatchScheduler() throws IOException {
+		File input = File.createTempFile("batch", ".txt");
+		Files.write(input.toPath(), "1 + 2\n3 *\nlog(2, 8)\n-4 ^ 0.5\n5 / 2\n(6\n7 - 8 * 9\n".getBytes());
+		List<String> expectedOutputs = ExpressionEvaluator.evalExpressionsFromFile(input.getPath(), false);
+		String[] expected = new String[expectedOutputs.size()];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = new String(Files.readAllBytes(Paths.get(expectedOutputs.get(i))));
+			new File(expectedOutputs.get(i)).delete();
+		}
+
+		Map<String, List<String>> completed = new ConcurrentHashMap<String, List<String>>();
+		Map<String, Exception> failed = new ConcurrentHashMap<String, Exception>();
+		BatchScheduler.FileCompletionListener listener = new BatchScheduler.FileCompletionListener() {
+			@Override
+			public void onFileComplete(String filename, List<String> outputFilenames) {
+				completed.put(filename, outputFilenames);
+			}
+
+			@Override
+			public void onFileFailed(String filename, Exception ex) {
+				failed.put(filename, ex);
+			}
+		};
+		// Chunks of 3 lines, so a file is split into several tasks.
+		BatchScheduler scheduler = new BatchScheduler(2, 3, null);
+		String missing = input.getPath() + ".missing";
+		List<List<String>> outputs = scheduler.evalFiles(Arrays.asList(input.getPath(), missing), false, listener);
+		scheduler.shutdown();
+
+		assertTrue(outputs.size() == 2 && outputs.get(1) == null);
+		assertTrue(outputs.get(0).equals(expectedOutputs));
+		for (int i = 0; i < expected.length; i++) {
+			assertTrue(new String(Files.readAllBytes(Paths.get(outputs.get(0).get(i)))).equals(expected[i]));
+			new File(outputs.get(0).get(i)).delete();
+		}
+		assertTrue(completed.size() == 1 && completed.get(input.getPath()).equals(expectedOutputs));
+		assertTrue(failed.size() == 1 && failed.containsKey(missing));
+
+		// A resumed file skips the lines done by the previous run while reading.
+		ProgressJournal journal = ProgressJournal.open(input.getPath());
+		for (int i = 0; i < 4; i++) {
+			journal.markDone(i, null);
+		}
+		journal.close(expected.length + 1);
+		scheduler = new BatchScheduler(2, 2, null, true, false);
+		outputs = scheduler.evalFiles(Arrays.asList(input.getPath()), false, null);
+		scheduler.shutdown();
+		assertTrue(outputs.get(0).equals(expectedOutputs) && !new File(input.getPath() + ".journal").exists());
+		for (int i = 0; i < expected.length; i++) {
+			File output = new File(outputs.get(0).get(i));
+			assertTrue(output.exists() == i >= 4);
+			if (i >= 4) {
+				assertTrue(new String(Files.readAllBytes(output.toPath())).equals(expected[i]));
+			}
+			output.delete();
+		}
+		input.delete();
+	}
+
+	@Test
+	void testResultCache() throws IOException {
+		ResultCache cache = new ResultCache(64);
+		// Each pair differs only in its spaces, which could change the tokens.
+		String[] lines = { "12", "1 2", "1.5", "1. 5", "log(2,8)", "log (2,8)", "1 + 2", "1+2", " 1 + 2 ", "3 *",
+				"3 *", "-(4 ^ 0.5)", "-(4 ^ 0.5)" };
+		for (String line : lines) {
+			StringWriter cached = new StringWriter();
+			StringWriter direct = new StringWriter();
+			OutputHandler.write(cached, cache.evalExpression(line, false));
+			OutputHandler.write(direct, ExpressionEvaluator.evalExpression(line, false));
+			assertTrue(cached.toString().equals(direct.toString()));
+		}
+		// Only the repeated valid line is a hit, the invalid "3 *" is not cached.
+		assertTrue(cache.hitCount() == 1 && cache.missCount() == lines.length - 1);
+		assertTrue(cache.size() == 9 && cache.evictionCount() == 0);
+
+		ResultCache single = new ResultCache(1);
+		single.evalExpression("1 + 1", false);
+		assertTrue(single.evalExpression("1 + 1", false) != null && single.hitCount() == 1);
+		single.evalExpression("2 + 2", false);
+		single.evalExpression("1 + 1", false);
+		assertTrue(single.hitCount() == 1 && single.missCount() == 3 && single.evictionCount() == 2);
+		assertTrue(single.size() == 1);
+
+		ResultCache small = new ResultCache(5);
+		for (int i = 0; i < 100; i++) {
+			small.evalExpression(i + " + 1", false);
+		}
+		assertTrue(small.size() <= 5 && small.evictionCount() == 100 - small.size());
+	}
+
+	@Test
+	void testOperationCache() {
+		// 30% hits of a 200ns operation save 60ns per lookup, more than a 50ns lookup.
+		assertTrue(!OperationCache.shouldBypass(0.3, 200, 50));
+		assertTrue(OperationCache.shouldBypass(0.1, 200, 50));
+		assertTrue(OperationCache.TIMER_OVERHEAD >= 0);
+
+		// Admission: with one value per segment, a value kept hot is not replaced
+		// by the values seen once in between.
+		OperationCache cache = new OperationCache(16);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(cache.apply(ExpressionCommon.OP_MULTIPLY, 3, 7) == 21);
+			assertTrue(cache.apply(ExpressionCommon.OP_MULTIPLY, i, 0.5) == i * 0.5);
+		}
+		assertTrue(cache.hitCount() == 999);
+		assertTrue(cache.apply(ExpressionCommon.OP_MULTIPLY, 7, 3) == 21 && cache.hitCount() == 1000);
+		assertTrue(!cache.isBypassed(ExpressionCommon.OP_MULTIPLY));
+
+		// The capacities of the segments add up to the capacity, however small.
+		for (int capacity : new int[] { 1, 5, 40 }) {
+			OperationCache exact = new OperationCache(capacity);
+			for (int i = 0; i < 1000; i++) {
+				exact.apply(ExpressionCommon.OP_POWER, i, 0.5);
+			}
+			assertTrue(exact.size() == capacity);
+		}
+
+		// Bypass: without any hit the operator skips the cache after one window,
+		// and is probed again after PROBE_INTERVAL calls.
+		OperationCache misses = new OperationCache(1024);
+		for (int i = 0; i < OperationCache.WINDOW; i++) {
+			misses.apply(ExpressionCommon.OP_DIVIDE, i, 3);
+		}
+		assertTrue(misses.isBypassed(ExpressionCommon.OP_DIVIDE) && misses.hitRate(ExpressionCommon.OP_DIVIDE) == 0);
+		for (int i = 1; i < OperationCache.PROBE_INTERVAL; i++) {
+			assertTrue(misses.apply(ExpressionCommon.OP_DIVIDE, i, 4) == i / 4.0);
+		}
+		assertTrue(misses.isBypassed(ExpressionCommon.OP_DIVIDE) && misses.lookupCount() == OperationCache.WINDOW);
+		misses.apply(ExpressionCommon.OP_DIVIDE, 1, 4);
+		assertTrue(!misses.isBypassed(ExpressionCommon.OP_DIVIDE)
+				&& misses.lookupCount() == OperationCache.WINDOW + 1);
+	}
+
+	@Test
+	void testExpressionProfiler() {
+		StringBuilder sum = new StringBuilder("1");
+		for (int i = 0; i < 5000; i++) {
+			sum.append(" + ").append(i % 7).append(" * 1.5");
+		}
+		String[] lines = { "1 + 1", sum.toString(), "3 *", "2 * 3" };
+		ExpressionProfiler profiler = new ExpressionProfiler(2);
+		for (int i = 0; i < lines.length; i++) {
+			profiler.evalExpression("profiled.txt", i, lines[i], false, null);
+		}
+		assertTrue(profiler.lineCount() == lines.length);
+		List<ExpressionProfiler.LineCost> top = profiler.topByCpu();
+		assertTrue(top.size() == 2 && top.get(0).cpuNanos >= top.get(1).cpuNanos);
+		ExpressionProfiler.LineCost heaviest = top.get(0);
+		assertTrue(heaviest.line == 1 && heaviest.tokenCount == 1 + 5000 * 4 && heaviest.depth == 5002);
+		assertTrue(heaviest.error == null);
+		assertTrue(profiler.report().contains("Top 2 lines by CPU time:" + System.lineSeparator() + "  " + heaviest));
+
+		ExpressionProfiler invalid = new ExpressionProfiler(1);
+		invalid.evalExpression("profiled.txt", 0, "3 *", false, null);
+		ExpressionProfiler.LineCost cost = invalid.topByCpu().get(0);
+		assertTrue(cost.tokenCount == 0 && cost.depth == 0 && cost.error == ExpressionCommon.ErrorCode.MISSING_OPERAND);
+	}
+
+	@Test
+	void testShardCoordinator() throws IOException, InterruptedException {
+		// Ranges are cut after \n only, and count the lines of \n, \r\n and \r.
+		File input = File.createTempFile("shards", ".txt");
+		Files.write(input.toPath(), "1 + 1\n2 * 2\r\n3 - 3\r4 / 4\n5 ^ 2\n6\n".getBytes());
+		List<ShardCoordinator.Range> ranges = ShardCoordinator.split(input.getPath(), 3);
+		assertTrue(ranges.size() == 3 && ranges.get(0).start == 0 && ranges.get(2).end == input.length());
+		long[] firstLines = { 0, 0, 0 };
+		String content = new String(Files.readAllBytes(input.toPath()));
+		for (int i = 0; i < ranges.size(); i++) {
+			ShardCoordinator.Range range = ranges.get(i);
+			assertTrue(range.index == i && range.start < range.end && content.charAt((int) range.end - 1) == '\n');
+			if (i > 0) {
+				assertTrue(range.start == ranges.get(i - 1).end);
+			}
+			firstLines[i] = content.substring(0, (int) range.start).split("\r\n|\r|\n", -1).length - 1;
+			assertTrue(range.firstLine == firstLines[i]);
+		}
+		assertTrue(ShardCoordinator.split(input.getPath(), 100).size() <= 6);
+
+		// A worker killed after its first progress report is restarted from it.
+		WorkloadGenerator generator = new WorkloadGenerator(20180305L).configure("tokens=8");
+		generator.writeFile(input.getPath(), 5 * ShardCoordinator.PROGRESS_LINES);
+		String expected = input.getPath() + ".expected";
+		String actual = input.getPath() + ".results";
+		ExpressionEvaluator.evalExpressionsToFile(input.getPath(), expected, false, null);
+		List<Integer> killedRanges = new CopyOnWriteArrayList<Integer>();
+		ShardCoordinator coordinator = new ShardCoordinator(2, 2, new ArrayList<String>()) {
+			@Override
+			void onProgress(ShardCoordinator.Range range, int attempt, Process process) {
+				if (attempt == 0 && process.isAlive()) {
+					process.destroyForcibly();
+					killedRanges.add(range.index);
+				}
+			}
+		};
+		assertTrue(coordinator.evalFile(input.getPath(), false, actual) == 5 * ShardCoordinator.PROGRESS_LINES);
+		assertTrue(killedRanges.size() == 2);
+		assertTrue(Arrays.equals(Files.readAllBytes(Paths.get(actual)), Files.readAllBytes(Paths.get(expected))));
+		new File(expected).delete();
+		new File(actual).delete();
+		input.delete();
+	}
+
+	@Test
+	void testGzipRoundTrip() throws IOException {
+		// Several chunks of BackgroundInputStream, with a short last one.
+		File output = File.createTempFile("roundtrip", ".txt.gz");
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 100000; i++) {
+			lines.add("log (" + (i % 7 + 2) + ", " + i + ") * " + i);
+		}
+		BufferedWriter writer = OutputHandler.openWriter(output.getPath());
+		for (String line : lines) {
+			writer.write(line);
+			writer.newLine();
+		}
+		writer.close();
+		assertTrue(InputHandler.isGzip(output.getPath()) && output.length() < 64 * 1024 * 16);
+		BufferedReader reader = InputHandler.openReader(output.getPath());
+		for (String line : lines) {
+			assertTrue(line.equals(reader.readLine()));
+		}
+		assertTrue(reader.readLine() == null);
+		reader.close();
+		output.delete();
+
+		// An unchecked failure of the source reaches the caller instead of hanging it.
+		InputStream failing = new InputStream() {
+			int count;
+
+			@Override
+			public int read() {
+				if (++count > 100) {
+					throw new IllegalStateException("corrupt");
+				}
+				return 'a';
+			}
+		};
+		BackgroundInputStream in = new BackgroundInputStream(failing, 16, 2);
+		int read = 0;
+		String failure = null;
+		try {
+			while (in.read() >= 0) {
+				read++;
+			}
+		} catch (IllegalStateException ex) {
+			failure = ex.getMessage();
+		}
+		assertTrue(read == 96 && "corrupt".equals(failure));
+		in.close();
+	}
+
+	@Test
+	void testJournaledConsolidatedOutput() throws IOException {
+		File input = File.createTempFile("journaled", ".txt");
+		new WorkloadGenerator(20180305L).writeFile(input.getPath(), 20000);
+		for (String suffix : new String[] { ".results", ".results.gz" }) {
+			String expected = input.getPath() + ".expected" + suffix;
+			String actual = input.getPath() + suffix;
+			ExpressionEvaluator.evalExpressionsToFile(input.getPath(), expected, false, null);
+			// The run dies after its first checkpoint, at line 16384 or earlier.
+			ResultCache crashing = new ResultCache(16) {
+				int lines;
+
+				@Override
+				public ExpressionScorer.ExpressionVal evalExpression(String expression, boolean useCachedValue,
+						Deadline deadline) {
+					if (++lines > 18000) {
+						throw new IllegalStateException("crash");
+					}
+					return super.evalExpression(expression, useCachedValue, deadline);
+				}
+			};
+			String failure = null;
+			try {
+				ExpressionEvaluator.evalExpressionsToFile(input.getPath(), actual, false, crashing, 0, Deadline.NONE,
+						ProgressJournal.open(input.getPath()));
+			} catch (IllegalStateException ex) {
+				failure = ex.getMessage();
+			}
+			assertTrue("crash".equals(failure));
+			ProgressJournal journal = ProgressJournal.open(input.getPath());
+			assertTrue(journal.resumeLine() > 0 && journal.resumeLine() <= 16384 && journal.resumeOutputBytes() > 0);
+			assertTrue(ExpressionEvaluator.evalExpressionsToFile(input.getPath(), actual, false, null, 0,
+					Deadline.NONE, journal) == 20000);
+			assertTrue(!new File(input.getPath() + ".journal").exists());
+			BufferedReader expectedReader = InputHandler.openReader(expected);
+			BufferedReader actualReader = InputHandler.openReader(actual);
+			String line;
+			while ((line = expectedReader.readLine()) != null) {
+				assertTrue(line.equals(actualReader.readLine()));
+			}
+			assertTrue(actualReader.readLine() == null);
+			expectedReader.close();
+			actualReader.close();
+			new File(expected).delete();
+			new File(actual).delete();
+		}
+		input.delete();
+	}
+
+	@Test
+	void testEvaluationProcessorRejected() {
+		// Runs the tasks inline, and rejects them all once |rejectAll| is set or
+		// only the next one if |rejectNext| is set.
+		boolean[] rejectAll = { false };
+		boolean[] rejectNext = { false };
+		Executor executor = command -> {
+			if (rejectAll[0] || rejectNext[0]) {
+				rejectNext[0] = false;
+				throw new RejectedExecutionException();
+			}
+			command.run();
+		};
+		for (boolean all : new boolean[] { false, true }) {
+			EvaluationProcessor processor = new EvaluationProcessor(executor, 4, true, false);
+			boolean[] upstreamCancelled = { false };
+			processor.onSubscribe(new ExpressionFlow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+					upstreamCancelled[0] = true;
+				}
+			});
+			List<ExpressionScorer.ExpressionVal> results = new ArrayList<ExpressionScorer.ExpressionVal>();
+			List<Throwable> errors = new ArrayList<Throwable>();
+			processor.subscribe(new ExpressionFlow.Subscriber<ExpressionScorer.ExpressionVal>() {
+				@Override
+				public void onSubscribe(ExpressionFlow.Subscription subscription) {
+					subscription.request(Long.MAX_VALUE);
+				}
+
+				@Override
+				public void onNext(ExpressionScorer.ExpressionVal item) {
+					results.add(item);
+				}
+
+				@Override
+				public void onError(Throwable throwable) {
+					errors.add(throwable);
+				}
+
+				@Override
+				public void onComplete() {
+					errors.add(null);
+				}
+			});
+			processor.onNext("1 + 2");
+			rejectAll[0] = all;
+			rejectNext[0] = !all;
+			processor.onNext("3 * 4");
+			rejectAll[0] = false;
+			// The delivered result is readable outside the package.
+			assertTrue(results.size() == 1 && results.get(0).value() == 3 && !results.get(0).hasError());
+			assertTrue(errors.size() == 1 && errors.get(0) instanceof RejectedExecutionException);
+			assertTrue(upstreamCancelled[0]);
+		}
+	}
+
+	@Test
+	void testShardCoordinatorFailure() throws IOException, InterruptedException {
+		File dir = Files.createTempDirectory("shards").toFile();
+		File input = new File(dir, "input.txt");
+		new WorkloadGenerator(20180305L).writeFile(input.getPath(), 80 * ShardCoordinator.PROGRESS_LINES);
+		String results = new File(dir, "input.results").getPath();
+		CountDownLatch killed = new CountDownLatch(1);
+		List<Process> survivors = new CopyOnWriteArrayList<Process>();
+		// Range 0 fails for good, while range 1 is still running.
+		ShardCoordinator coordinator = new ShardCoordinator(2, 1, new ArrayList<String>()) {
+			@Override
+			void onProgress(ShardCoordinator.Range range, int attempt, Process process) {
+				if (range.index == 0 && killed.getCount() > 0) {
+					process.destroyForcibly();
+					killed.countDown();
+				} else if (range.index == 1 && survivors.isEmpty()) {
+					survivors.add(process);
+					try {
+						killed.await();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		};
+		String failure = null;
+		try {
+			coordinator.evalFile(input.getPath(), false, results);
+		} catch (IOException ex) {
+			failure = ex.getMessage();
+		}
+		assertTrue(failure != null && failure.contains("failed"));
+		for (Process process : survivors) {
+			assertTrue(!process.isAlive());
+		}
+		// Only the input and the partial results are left, no parts.
+		for (File file : dir.listFiles()) {
+			assertTrue(!file.getName().contains(".part"));
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	void testBatchEvaluatorSpecialized() {
+		BatchEvaluator generic = new BatchEvaluator(false);
+		BatchEvaluator specialized = new BatchEvaluator(true, 0, true);
+		String[] expressions = { "1.5 ^ 7 - 3", "log(2, 1024) * 2", "log(10, 0.001) + 2 ^ -3", "2 ^ 0.5", "3 ^" };
+		double[] expected = new double[5];
+		double[] results = new double[5];
+		int[] errorCodes = new int[5];
+		assertTrue(generic.evaluate(expressions, expected, errorCodes, null) == 1);
+		assertTrue(specialized.evaluate(expressions, results, errorCodes, null) == 1);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(errorCodes[i] == 0 && Math.abs(results[i] - expected[i]) <= 8 * Math.ulp(expected[i]));
+		}
+		assertTrue(results[1] == 20 && results[3] == expected[3] && Double.isNaN(results[4]));
+		assertTrue(errorCodes[4] == ExpressionCommon.ErrorCode.MISSING_OPERAND.code);
+	}
+
+	@Test
+	void testBudgets() throws IOException {
+		File input = File.createTempFile("budget", ".txt");
+		Files.write(input.toPath(), "1 + 2\n3 * 4\nlog(2, 8)\n".getBytes());
+		Deadline cancelled = Deadline.after(0);
+		cancelled.cancel();
+		List<List<String>> runs = new ArrayList<List<String>>();
+		runs.add(ExpressionEvaluator.evalExpressionsFromFile(input.getPath(), false, null, null, 0, cancelled, null));
+		BatchScheduler scheduler = new BatchScheduler(2, 2, null, false, false, 0, 1);
+		runs.add(scheduler.evalFiles(Arrays.asList(input.getPath()), false, null).get(0));
+		scheduler.shutdown();
+		VirtualThreadScheduler virtual = new VirtualThreadScheduler(2, null, 0, 1);
+		runs.add(virtual.evalFiles(Arrays.asList(input.getPath()), false, null).get(0));
+		virtual.shutdown();
+		for (List<String> outputs : runs) {
+			assertTrue(outputs.size() == 3);
+			for (String output : outputs) {
+				assertTrue(new String(Files.readAllBytes(Paths.get(output))).startsWith("Error TIMEOUT"));
+			}
+		}
+		List<String> outputs = ExpressionEvaluator.evalExpressionsFromFile(input.getPath(), false, null, null,
+				1000000000L, Deadline.NONE, null);
+		assertTrue(new String(Files.readAllBytes(Paths.get(outputs.get(1)))).startsWith("12"));
+		for (String output : outputs) {
+			new File(output).delete();
+		}
+		input.delete();
+
+		EvaluationProcessor processor = new EvaluationProcessor(Runnable::run, 1, true, false, 1000000000L,
+				cancelled);
+		List<ExpressionScorer.ExpressionVal> results = new ArrayList<ExpressionScorer.ExpressionVal>();
+		processor.subscribe(new ExpressionFlow.Subscriber<ExpressionScorer.ExpressionVal>() {
+			@Override
+			public void onSubscribe(ExpressionFlow.Subscription subscription) {
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(ExpressionScorer.ExpressionVal item) {
+				results.add(item);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		});
+		processor.onNext("1 + 2");
+		assertTrue(results.size() == 1 && results.get(0).error.code == ExpressionCommon.ErrorCode.TIMEOUT);
+	}
+
+	@Test
+	void testParallelExpression() {
+		StringBuilder formula = new StringBuilder("0.5");
+		while (formula.length() < 4 * ExpressionEvaluator.PARALLEL_MIN_TOKENS) {
+			formula.append(" + 1.5 * 3 - 2 ^ 0.5");
+		}
+		List<ExpressionCommon.Token> tokens = InputHandler.tokenize(formula.toString());
+		assertTrue(tokens.size() >= ExpressionEvaluator.PARALLEL_MIN_TOKENS);
+		ExpressionScorer.ExpressionVal expected = ExpressionScorer.evalTokens(tokens, false);
+		ExpressionScorer.ExpressionVal result = ExpressionEvaluator.evalExpression(formula.toString(), false);
+		assertTrue(Double.doubleToRawLongBits(result.value) == Double.doubleToRawLongBits(expected.value));
+		assertTrue(result.expressionTree.val.equals(expected.expressionTree.val) && result.tokenCount == tokens.size());
+		Deadline cancelled = Deadline.after(0);
+		ExpressionCommon.ParseError error = new ExpressionCommon.ParseError();
+		cancelled.cancel();
+		assertTrue(new ParallelEvaluator(ForkJoinPool.commonPool(), 16).evalTokens(tokens, false, error,
+				cancelled) == null && error.code() == ExpressionCommon.ErrorCode.TIMEOUT);
+	}
 }
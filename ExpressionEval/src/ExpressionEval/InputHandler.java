@@ -2,6 +2,7 @@ package ExpressionEval;
 
 import java.io.*;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 
 import ExpressionEval.ExpressionCommon;
 
@@ -45,23 +46,65 @@ public class InputHandler {
 	public static List<String> readFile(String filename) throws FileNotFoundException, IOException {
 		List<String> rtn = new ArrayList<String>();
 		// Open the file
+		BufferedReader br = openReader(filename);
 		try {
-			FileInputStream fstream = new FileInputStream(filename);
-			BufferedReader br = new BufferedReader(new InputStreamReader(fstream));
 			String strLine;
 			// Read File Line By Line
 			while ((strLine = br.readLine()) != null) {
-				// Print the content on the console
 				rtn.add(strLine);
 			}
+		} finally {
 			// Close the input stream
-			fstream.close();
-		} catch (Exception ex) {
-			throw ex;
+			br.close();
 		}
 		return rtn;
 	}
 
+	/**
+	 * Open a file of expressions for reading line by line. A gzip compressed file,
+	 * detected by its magic bytes, is decoded while streaming on a background
+	 * thread, so the decoding overlaps with the tokenization of the caller.
+	 * 
+	 * @param filename
+	 *            Absolute path of the file on disk.
+	 * @return Reader of the decoded content.
+	 */
+	public static BufferedReader openReader(String filename) throws FileNotFoundException, IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(filename), 64 * 1024);
+		try {
+			if (isGzip(in)) {
+				in = new BackgroundInputStream(new GZIPInputStream(in, 64 * 1024), 64 * 1024, 16);
+			}
+		} catch (IOException ex) {
+			in.close();
+			throw ex;
+		}
+		return new BufferedReader(new InputStreamReader(in));
+	}
+
+	/**
+	 * @return Whether the file is gzip compressed.
+	 */
+	public static boolean isGzip(String filename) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(filename), 2);
+		try {
+			return isGzip(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Helper function to check the gzip magic bytes without consuming them.
+	 */
+	private static boolean isGzip(InputStream in) throws IOException {
+		in.mark(2);
+		int b1 = in.read();
+		int b2 = in.read();
+		in.reset();
+		return b1 == (GZIPInputStream.GZIP_MAGIC & 0xFF) && b2 == (GZIPInputStream.GZIP_MAGIC >>> 8);
+	}
+
 	/**
 	 * Given a math expression, tokenize and validate the expression. NOTE: The left
 	 * and right parenthesis for log operator would be replaced with [ and ].
@@ -71,86 +114,168 @@ public class InputHandler {
 	 * @return A list of the parsed token.
 	 */
 	public static List<ExpressionCommon.Token> tokenize(String formula) {
+		ExpressionCommon.ParseError error = new ExpressionCommon.ParseError();
+		List<ExpressionCommon.Token> rtn = tokenize(formula, error);
+		if (rtn == null) {
+			throw new IllegalArgumentException(error.reason);
+		}
+		return rtn;
+	}
+
+	/**
+	 * Same as tokenize(formula), but reports an invalid expression through |error|
+	 * instead of throwing an exception.
+	 * 
+	 * @param formula
+	 *            Expression in string.
+	 * @param error
+	 *            Filled with the error code, position and reason if the expression
+	 *            is invalid.
+	 * @return A list of the parsed token, or null if the expression is invalid.
+	 */
+	public static List<ExpressionCommon.Token> tokenize(String formula, ExpressionCommon.ParseError error) {
+		return tokenize(formula, error, Deadline.NONE);
+	}
+
+	/**
+	 * Same as tokenize(formula, error), but fails with the TIMEOUT error once the
+	 * deadline expires.
+	 *
+	 * @param formula
+	 *            Expression in string.
+	 * @param error
+	 *            Filled with the error code, position and reason if the expression
+	 *            is invalid or the deadline expired.
+	 * @param deadline
+	 *            Deadline of the expression.
+	 * @return A list of the parsed token, or null if the expression is invalid.
+	 */
+	public static List<ExpressionCommon.Token> tokenize(String formula, ExpressionCommon.ParseError error,
+			Deadline deadline) {
+		try {
+			return tokenizeUntil(formula, error, deadline);
+		} catch (Deadline.Exceeded ex) {
+			return ex.fail(error);
+		}
+	}
+
+	private static List<ExpressionCommon.Token> tokenizeUntil(String formula, ExpressionCommon.ParseError error,
+			Deadline deadline) {
 		if (formula == null) {
-			throw new IllegalArgumentException("Formula is null");
+			return fail(error, ExpressionCommon.ErrorCode.NULL_FORMULA, 0, "Formula is null");
 		}
 		List<ExpressionCommon.Token> rtn = new ArrayList<ExpressionCommon.Token>();
 		char[] chars = formula.toCharArray();
 		Deque<LeftParenthesis> parathesisStack = new ArrayDeque<LeftParenthesis>();
 		int i = 0;
+		int step = 0;
 		while (i < chars.length) {
+			deadline.check(step++, i);
 			char currChar = chars[i];
 			if (currChar == ' ') {
 				i++;
 				continue;
 			}
+			ExpressionCommon.Token token;
 			if (ExpressionCommon.BINARY_OPERATOR.contains(currChar)) {
 				// This case handles operators (*, /, ^)
 				if (i == 0 || i == chars.length - 1) {
-					throw new IllegalArgumentException("Binary operator needs two operands");
+					return fail(error, ExpressionCommon.ErrorCode.MISSING_OPERAND, i,
+							"Binary operator needs two operands");
 				}
-				ExpressionCommon.Token token = parseBinaryOperator(currChar, rtn);
+				token = parseBinaryOperator(i, currChar, rtn, error);
 				i++;
-				rtn.add(token);
 			} else if (ExpressionCommon.UNARY_BINARY_OPERATOR.contains(currChar)) {
 				// This case handles operators could be binary and unary (+, -)
-				ExpressionCommon.Token token = parsePlusMinus(currChar, rtn);
+				token = parsePlusMinus(i, currChar, rtn, error);
 				i++;
-				rtn.add(token);
 			} else if (currChar == ExpressionCommon.LEFT_PAREN) {
 				// This case handles the parenthesis not belonging to "log" operator.
-				ExpressionCommon.Token leftPren = parseLeftParenthesis(i, currChar, parathesisStack, rtn);
+				token = parseLeftParenthesis(i, currChar, parathesisStack, rtn, error);
 				i++;
-				rtn.add(leftPren);
 			} else if (currChar == ExpressionCommon.RIGHT_PAREN) {
 				// This case handles )
-				ExpressionCommon.Token token = parseRightParenthesis(i, parathesisStack, rtn);
+				token = parseRightParenthesis(i, parathesisStack, rtn, error);
 				i++;
-				rtn.add(token);
 			} else if (currChar == ExpressionCommon.COMMA) {
 				// This case handles ,
-				ExpressionCommon.Token token = parseComma(parathesisStack);
+				token = parseComma(i, parathesisStack, error);
 				i++;
-				rtn.add(token);
 			} else if (isDigit(currChar)) {
 				// This case handles number
 				int[] endIdx = new int[1];
-				ExpressionCommon.Token num = parseNumber(chars, i, endIdx);
+				token = parseNumber(chars, i, endIdx, error);
+				if (token != null) {
+					token.position = i;
+				}
 				i = endIdx[0];
-				rtn.add(num);
 			} else if (currChar == 'l') {
 				// This case handles log
 				if (i + 3 > chars.length - 1) {
-					throw new IllegalArgumentException("Invalid operator");
+					return fail(error, ExpressionCommon.ErrorCode.INVALID_OPERATOR, i, "Invalid operator");
 				}
 				if (chars[i + 1] != 'o' || chars[i + 2] != 'g' || chars[i + 3] != ExpressionCommon.LEFT_PAREN) {
-					throw new IllegalArgumentException("Invalid operator");
+					return fail(error, ExpressionCommon.ErrorCode.INVALID_OPERATOR, i, "Invalid operator");
 				}
 				parathesisStack.offerFirst(new LeftParenthesis(ExpressionCommon.LEFT_LOG_PAREN, i + 3));
+				ExpressionCommon.Token log = new ExpressionCommon.Token(ExpressionCommon.LOG);
+				log.position = i;
+				rtn.add(log);
+				token = new ExpressionCommon.Token(Character.toString(ExpressionCommon.LEFT_LOG_PAREN));
+				token.position = i + 3;
 				i += 4;
-				rtn.add(new ExpressionCommon.Token(ExpressionCommon.LOG));
-				rtn.add(new ExpressionCommon.Token(Character.toString(ExpressionCommon.LEFT_LOG_PAREN)));
 			} else {
-				throw new IllegalArgumentException("Invalid input");
+				return fail(error, ExpressionCommon.ErrorCode.INVALID_CHARACTER, i, "Invalid input");
+			}
+			if (token == null) {
+				return null;
+			}
+			if (token.position < 0) {
+				token.position = i - 1;
 			}
+			rtn.add(token);
 		}
 		if (!parathesisStack.isEmpty()) {
-			throw new IllegalArgumentException("Unblanaced parenthesis");
+			return fail(error, ExpressionCommon.ErrorCode.UNBALANCED_PARENTHESIS, parathesisStack.peekFirst().idx,
+					"Unblanaced parenthesis");
+		}
+		if (rtn.isEmpty()) {
+			return fail(error, ExpressionCommon.ErrorCode.EMPTY_EXPRESSION, 0, "Empty expression");
+		}
+		ExpressionCommon.Token last = rtn.get(rtn.size() - 1);
+		if (last.operator != null && last.operator.length() == 1
+				&& ExpressionCommon.UNARY_BINARY_OPERATOR.contains(last.operator.charAt(0))) {
+			return fail(error, ExpressionCommon.ErrorCode.MISSING_OPERAND, last.position,
+					last.isUnary ? "Unary operator needs an operand" : "Binary operator needs two operands");
 		}
 		return rtn;
 	}
 
+	/**
+	 * Helper to fill |error| and return null to the caller.
+	 */
+	private static <T> T fail(ExpressionCommon.ParseError error, ExpressionCommon.ErrorCode code, int position,
+			String reason) {
+		error.set(code, position, reason);
+		return null;
+	}
+
 	/**
 	 * Helper to parse operator could be both unary and binary +, -. If there are
-	 * two consecutive unary operators, exception will be thrown.
+	 * two consecutive unary operators, the error will be reported.
 	 * 
+	 * @param startIdx
+	 *            The index of currChar in the original expression.
 	 * @param currChar
 	 *            The char needs to be parsed.
 	 * @param currTokens
 	 *            All the tokens parsed before currChar.
-	 * @return Parsed token.
+	 * @param error
+	 *            Filled if the operator is invalid.
+	 * @return Parsed token, or null if the operator is invalid.
 	 */
-	private static ExpressionCommon.Token parsePlusMinus(char currChar, List<ExpressionCommon.Token> currTokens) {
+	private static ExpressionCommon.Token parsePlusMinus(int startIdx, char currChar,
+			List<ExpressionCommon.Token> currTokens, ExpressionCommon.ParseError error) {
 		boolean isUnary = false;
 		if (currTokens.size() > 0) {
 			ExpressionCommon.Token prev = currTokens.get(currTokens.size() - 1);
@@ -163,7 +288,8 @@ public class InputHandler {
 					isUnary = true;
 				}
 				if (prev.isUnary && isUnary) {
-					throw new IllegalArgumentException("Cannot have two consecutive unary operator");
+					return fail(error, ExpressionCommon.ErrorCode.CONSECUTIVE_UNARY, startIdx,
+							"Cannot have two consecutive unary operator");
 				}
 			}
 		} else {
@@ -174,28 +300,36 @@ public class InputHandler {
 
 	/**
 	 * Helper to parse operator /, *, ^. If the operator does not have two operands,
-	 * this function would throw IllegalArgumentException.
+	 * the error will be reported.
 	 * 
+	 * @param startIdx
+	 *            The index of currChar in the original expression.
 	 * @param currChar
 	 *            The char needs to be parsed.
 	 * @param currTokens
 	 *            All the tokens parsed before currChar.
-	 * @return Parsed token.
+	 * @param error
+	 *            Filled if the operator is invalid.
+	 * @return Parsed token, or null if the operator is invalid.
 	 */
-	private static ExpressionCommon.Token parseBinaryOperator(char currChar, List<ExpressionCommon.Token> currTokens) {
+	private static ExpressionCommon.Token parseBinaryOperator(int startIdx, char currChar,
+			List<ExpressionCommon.Token> currTokens, ExpressionCommon.ParseError error) {
 		if (currTokens.size() == 0) {
-			throw new IllegalArgumentException("Binary operator needs two operands");
+			return fail(error, ExpressionCommon.ErrorCode.MISSING_OPERAND, startIdx,
+					"Binary operator needs two operands");
 		}
 		ExpressionCommon.Token prev = currTokens.get(currTokens.size() - 1);
 		if (prev.operator != null) {
 			if (prev.operator.length() != 1) {
-				throw new IllegalArgumentException("Binary operator needs two operands");
+				return fail(error, ExpressionCommon.ErrorCode.MISSING_OPERAND, startIdx,
+						"Binary operator needs two operands");
 			}
 			char prevChar = prev.operator.charAt(0);
 			if (ExpressionCommon.UNARY_BINARY_OPERATOR.contains(prevChar)
 					|| ExpressionCommon.BINARY_OPERATOR.contains(prevChar) || prevChar == ExpressionCommon.LEFT_PAREN
 					|| prevChar == ExpressionCommon.LEFT_LOG_PAREN || prevChar == ExpressionCommon.DOT) {
-				throw new IllegalArgumentException("Binary operator needs two operands");
+				return fail(error, ExpressionCommon.ErrorCode.MISSING_OPERAND, startIdx,
+						"Binary operator needs two operands");
 			}
 		}
 		return new ExpressionCommon.Token(Character.toString(currChar));
@@ -203,7 +337,7 @@ public class InputHandler {
 
 	/**
 	 * Helper to parse (. If there are implicit multiply (i.e. 2(3+4), (3+4)(5+6)),
-	 * this function would throw IllegalArgumentException.
+	 * the error will be reported.
 	 * 
 	 * @param startIdx
 	 *            The index of currChar in the original expression.
@@ -213,17 +347,22 @@ public class InputHandler {
 	 *            The stack keeps track of the current opening parenthesis.
 	 * @param currTokens
 	 *            All the tokens parsed before currChar.
-	 * @return Parsed token.
+	 * @param error
+	 *            Filled if the parenthesis is invalid.
+	 * @return Parsed token, or null if the parenthesis is invalid.
 	 */
 	private static ExpressionCommon.Token parseLeftParenthesis(int startIdx, char currChar,
-			Deque<LeftParenthesis> parathesisStack, List<ExpressionCommon.Token> currTokens) {
+			Deque<LeftParenthesis> parathesisStack, List<ExpressionCommon.Token> currTokens,
+			ExpressionCommon.ParseError error) {
 		if (currTokens.size() > 0) {
 			ExpressionCommon.Token lastToken = currTokens.get(currTokens.size() - 1);
 			if (lastToken.number != null) {
-				throw new IllegalArgumentException("Does not support implicit multiply. Please add * explicitly");
+				return fail(error, ExpressionCommon.ErrorCode.IMPLICIT_MULTIPLY, startIdx,
+						"Does not support implicit multiply. Please add * explicitly");
 			}
 			if (lastToken.operator != null && lastToken.operator.equals(")")) {
-				throw new IllegalArgumentException("Does not support implicit multiply. Please add * explicitly");
+				return fail(error, ExpressionCommon.ErrorCode.IMPLICIT_MULTIPLY, startIdx,
+						"Does not support implicit multiply. Please add * explicitly");
 			}
 		}
 		parathesisStack.offerFirst(new LeftParenthesis(ExpressionCommon.LEFT_PAREN, startIdx));
@@ -232,7 +371,7 @@ public class InputHandler {
 
 	/**
 	 * Helper to parse ). If there are binary operator right before the right
-	 * parenthesis, this function would throw IllegalArgumentException.
+	 * parenthesis, the error will be reported.
 	 * 
 	 * @param startIdx
 	 *            The index of currChar in the original expression.
@@ -240,12 +379,14 @@ public class InputHandler {
 	 *            The stack keeps track of the current opening parenthesis.
 	 * @param currTokens
 	 *            All the tokens parsed before currChar.
-	 * @return Parsed token.
+	 * @param error
+	 *            Filled if the parenthesis is invalid.
+	 * @return Parsed token, or null if the parenthesis is invalid.
 	 */
 	private static ExpressionCommon.Token parseRightParenthesis(int startIdx, Deque<LeftParenthesis> parathesisStack,
-			List<ExpressionCommon.Token> currTokens) {
+			List<ExpressionCommon.Token> currTokens, ExpressionCommon.ParseError error) {
 		if (parathesisStack.isEmpty()) {
-			throw new IllegalArgumentException("Invalid parenthesis");
+			return fail(error, ExpressionCommon.ErrorCode.INVALID_PARENTHESIS, startIdx, "Invalid parenthesis");
 		}
 		ExpressionCommon.Token prev = currTokens.get(currTokens.size() - 1);
 		if (prev.operator != null) {
@@ -253,7 +394,8 @@ public class InputHandler {
 				char prevChar = prev.operator.charAt(0);
 				if (ExpressionCommon.BINARY_OPERATOR.contains(prevChar)
 						|| ExpressionCommon.UNARY_BINARY_OPERATOR.contains(prevChar)) {
-					throw new IllegalArgumentException("Invalid operators before )");
+					return fail(error, ExpressionCommon.ErrorCode.MISSING_OPERAND, startIdx,
+							"Invalid operators before )");
 				}
 			}
 		}
@@ -261,11 +403,11 @@ public class InputHandler {
 		ExpressionCommon.Token token;
 		LeftParenthesis left = parathesisStack.peekFirst();
 		if (left.idx == startIdx - 1) {
-			throw new IllegalArgumentException("Invalid parenthesis");
+			return fail(error, ExpressionCommon.ErrorCode.INVALID_PARENTHESIS, startIdx, "Invalid parenthesis");
 		}
 		if (left.parenthesis == ExpressionCommon.LEFT_LOG_PAREN) {
 			if (!left.hasComma) {
-				throw new IllegalArgumentException("Invalid log statement");
+				return fail(error, ExpressionCommon.ErrorCode.INVALID_LOG, startIdx, "Invalid log statement");
 			} else {
 				parathesisStack.pollFirst();
 				token = new ExpressionCommon.Token(Character.toString(ExpressionCommon.RIGHT_LOG_PAREN));
@@ -287,15 +429,37 @@ public class InputHandler {
 	 * @return Parsed token.
 	 */
 	public static ExpressionCommon.Token parseComma(Deque<LeftParenthesis> parathesisStack) {
+		ExpressionCommon.ParseError error = new ExpressionCommon.ParseError();
+		ExpressionCommon.Token rtn = parseComma(-1, parathesisStack, error);
+		if (rtn == null) {
+			throw new IllegalArgumentException(error.reason);
+		}
+		return rtn;
+	}
+
+	/**
+	 * Helper to parse ,. If there are no matching log operator or the log operator
+	 * already has a comma, the error will be reported.
+	 * 
+	 * @param startIdx
+	 *            The index of the comma in the original expression.
+	 * @param parathesisStack
+	 *            The stack keeps track of the current opening parenthesis.
+	 * @param error
+	 *            Filled if the comma is invalid.
+	 * @return Parsed token, or null if the comma is invalid.
+	 */
+	private static ExpressionCommon.Token parseComma(int startIdx, Deque<LeftParenthesis> parathesisStack,
+			ExpressionCommon.ParseError error) {
 		if (parathesisStack.isEmpty()) {
-			throw new IllegalArgumentException("Invalid comma for the log statement");
+			return fail(error, ExpressionCommon.ErrorCode.INVALID_LOG, startIdx, "Invalid comma for the log statement");
 		}
 		LeftParenthesis left = parathesisStack.peekFirst();
 		if (left.parenthesis == ExpressionCommon.LEFT_PAREN) {
-			throw new IllegalArgumentException("Invalid comma for the log statement");
+			return fail(error, ExpressionCommon.ErrorCode.INVALID_LOG, startIdx, "Invalid comma for the log statement");
 		}
 		if (left.hasComma) {
-			throw new IllegalArgumentException("Invalid comma for the log statement");
+			return fail(error, ExpressionCommon.ErrorCode.INVALID_LOG, startIdx, "Invalid comma for the log statement");
 		}
 		// Left parenthesis is '['
 		left.hasComma = true;
@@ -315,6 +479,29 @@ public class InputHandler {
 	 *         array |endIndex| passed in.
 	 */
 	public static ExpressionCommon.Token parseNumber(char[] chars, int startIndex, int[] endIndex) {
+		ExpressionCommon.ParseError error = new ExpressionCommon.ParseError();
+		ExpressionCommon.Token rtn = parseNumber(chars, startIndex, endIndex, error);
+		if (rtn == null) {
+			throw new IllegalArgumentException(error.reason);
+		}
+		return rtn;
+	}
+
+	/**
+	 * Helper to parse number, reporting an invalid number through |error|.
+	 * 
+	 * @param chars
+	 *            Charr array of the original expression.
+	 * @param startIndex
+	 *            The start index of the number.
+	 * @param endIndex
+	 *            An array with size = 1 to store the (end index of the number + 1).
+	 * @param error
+	 *            Filled if the number is invalid.
+	 * @return Parsed number in double, or null if the number is invalid.
+	 */
+	private static ExpressionCommon.Token parseNumber(char[] chars, int startIndex, int[] endIndex,
+			ExpressionCommon.ParseError error) {
 		int currInt = 0;
 		double currDecimal = 0.0;
 		double currDecimalMultiplier = 0.1;
@@ -331,7 +518,8 @@ public class InputHandler {
 				}
 			} else if (currChar == ExpressionCommon.DOT) {
 				if (encountersDot) {
-					throw new IllegalArgumentException("Invalid floating point number");
+					return fail(error, ExpressionCommon.ErrorCode.INVALID_NUMBER, startIndex,
+							"Invalid floating point number");
 				}
 				encountersDot = true;
 			} else {
@@ -0,0 +1,210 @@
+package ExpressionEval;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * End to end benchmark of ExpressionEvaluator.evalExpressionsFromFile on files
+ * generated by WorkloadGenerator, writing the results as JSON so that they
+ * could be compared across commits.
+ *
+ * The throughput is measured over |repeat| runs after |warmup| runs. The
+ * latency percentiles, CPU time and allocated bytes per line are measured in
+ * one more run with an ExpressionProfiler, which costs a few microseconds per
+ * line and so is kept out of the throughput. The hit rate of the operation
+ * cache is the one of the timed runs. Every run gets a new ResultCache, so its
+ * hit rate counts only the duplicates within one run, not the lines cached by
+ * the warmup. The rates are null if nothing was timed, e.g. with repeat=0.
+ *
+ * Usage: MacroBenchmark <results.json> [option=value ...]
+ * Options: lines (per file), files, repeat, warmup, cache (use the operation
+ * cache), resultCache (capacity, 0 for none), seed, label (e.g. the commit),
+ * and the options of WorkloadGenerator.
+ *
+ */
+public class MacroBenchmark {
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: MacroBenchmark <results.json> [option=value ...]");
+			return;
+		}
+		long lines = 20000;
+		int files = 1;
+		int repeat = 3;
+		int warmup = 1;
+		boolean useCachedValue = true;
+		int resultCacheSize = 0;
+		long seed = 20180305L;
+		String label = "";
+		List<String> workloadOptions = new ArrayList<String>();
+		for (int i = 1; i < args.length; i++) {
+			int idx = args[i].indexOf('=');
+			String name = idx < 0 ? args[i] : args[i].substring(0, idx);
+			String value = idx < 0 ? "" : args[i].substring(idx + 1);
+			switch (name) {
+			case "lines":
+				lines = Long.parseLong(value);
+				break;
+			case "files":
+				files = Integer.parseInt(value);
+				break;
+			case "repeat":
+				repeat = Integer.parseInt(value);
+				break;
+			case "warmup":
+				warmup = Integer.parseInt(value);
+				break;
+			case "cache":
+				useCachedValue = Boolean.parseBoolean(value);
+				break;
+			case "resultCache":
+				resultCacheSize = Integer.parseInt(value);
+				break;
+			case "seed":
+				seed = Long.parseLong(value);
+				break;
+			case "label":
+				label = value;
+				break;
+			default:
+				workloadOptions.add(args[i]);
+			}
+		}
+
+		WorkloadGenerator generator = new WorkloadGenerator(seed);
+		for (String option : workloadOptions) {
+			generator.configure(option);
+		}
+		File dir = Files.createTempDirectory("macro").toFile();
+		List<String> filenames = new ArrayList<String>();
+		long bytes = 0;
+		for (int i = 0; i < files; i++) {
+			String filename = new File(dir, "workload" + i + ".txt").getPath();
+			generator.writeFile(filename, lines);
+			filenames.add(filename);
+			bytes += new File(filename).length();
+		}
+
+		try {
+			for (int i = 0; i < warmup; i++) {
+				run(filenames, useCachedValue, newResultCache(resultCacheSize), null);
+			}
+			OperationCache operationCache = ExpressionScorer.operationCache();
+			long lookupsBefore = operationCache.lookupCount();
+			long hitsBefore = operationCache.hitCount();
+			long resultHits = 0;
+			long resultLookups = 0;
+			long nanos = 0;
+			for (int i = 0; i < repeat; i++) {
+				ResultCache resultCache = newResultCache(resultCacheSize);
+				long before = System.nanoTime();
+				run(filenames, useCachedValue, resultCache, null);
+				nanos += System.nanoTime() - before;
+				if (resultCache != null) {
+					resultHits += resultCache.hitCount();
+					resultLookups += resultCache.hitCount() + resultCache.missCount();
+				}
+			}
+			double seconds = repeat == 0 ? 0 : nanos / 1e9 / repeat;
+			long lookups = operationCache.lookupCount() - lookupsBefore;
+			long hits = operationCache.hitCount() - hitsBefore;
+
+			ExpressionProfiler profiler = new ExpressionProfiler(1);
+			run(filenames, useCachedValue, newResultCache(resultCacheSize), profiler);
+			long totalLines = lines * files;
+
+			StringBuilder json = new StringBuilder();
+			json.append("{\n");
+			json.append("  \"label\": ").append(quote(label)).append(",\n");
+			json.append("  \"java\": ").append(quote(System.getProperty("java.version"))).append(",\n");
+			json.append("  \"cores\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+			json.append("  \"workload\": {\"seed\": ").append(seed).append(", \"files\": ").append(files)
+					.append(", \"linesPerFile\": ").append(lines).append(", \"bytes\": ").append(bytes)
+					.append(", \"options\": [");
+			for (int i = 0; i < workloadOptions.size(); i++) {
+				json.append(i == 0 ? "" : ", ").append(quote(workloadOptions.get(i)));
+			}
+			json.append("]},\n");
+			json.append("  \"useCachedValue\": ").append(useCachedValue).append(",\n");
+			json.append("  \"repeat\": ").append(repeat).append(",\n");
+			json.append("  \"secondsPerRun\": ").append(seconds).append(",\n");
+			json.append("  \"linesPerSecond\": ")
+					.append(seconds == 0 ? "null" : String.valueOf(totalLines / seconds)).append(",\n");
+			json.append("  \"megabytesPerSecond\": ")
+					.append(seconds == 0 ? "null" : String.valueOf(bytes / 1e6 / seconds)).append(",\n");
+			json.append("  \"latencyNanos\": {\"p50\": ").append(profiler.latencyPercentile(50))
+					.append(", \"p90\": ").append(profiler.latencyPercentile(90)).append(", \"p99\": ")
+					.append(profiler.latencyPercentile(99)).append(", \"p99.9\": ")
+					.append(profiler.latencyPercentile(99.9)).append(", \"max\": ")
+					.append(profiler.latencyPercentile(100)).append("},\n");
+			json.append("  \"cpuNanosPerLine\": ")
+					.append(totalLines == 0 ? "null" : String.valueOf(profiler.totalCpuNanos() / totalLines))
+					.append(",\n");
+			long allocated = profiler.totalAllocatedBytes();
+			json.append("  \"allocatedBytesPerLine\": ").append(allocated < 0 ? "-1"
+					: totalLines == 0 ? "null" : String.valueOf(allocated / totalLines)).append(",\n");
+			json.append("  \"operationCache\": {\"lookups\": ").append(lookups).append(", \"hits\": ")
+					.append(hits).append(", \"hitRate\": ").append(lookups == 0 ? 0 : (double) hits / lookups)
+					.append("},\n");
+			json.append("  \"resultCache\": ");
+			if (resultCacheSize <= 0) {
+				json.append("null\n");
+			} else {
+				json.append("{\"capacity\": ").append(resultCacheSize).append(", \"hitRate\": ")
+						.append(resultLookups == 0 ? 0 : (double) resultHits / resultLookups).append("}\n");
+			}
+			json.append("}\n");
+
+			BufferedWriter bw = new BufferedWriter(new FileWriter(args[0]));
+			try {
+				bw.write(json.toString());
+			} finally {
+				bw.close();
+			}
+			System.out.print(json);
+		} finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * @return A new ResultCache of |capacity| lines, or null if it is not
+	 *         positive.
+	 */
+	private static ResultCache newResultCache(int capacity) {
+		return capacity > 0 ? new ResultCache(capacity) : null;
+	}
+
+	/**
+	 * Helper function to evaluate every file once.
+	 */
+	private static void run(List<String> filenames, boolean useCachedValue, ResultCache resultCache,
+			ExpressionProfiler profiler) throws IOException {
+		for (String filename : filenames) {
+			ExpressionEvaluator.evalExpressionsFromFile(filename, useCachedValue, resultCache, profiler);
+		}
+	}
+
+	private static String quote(String value) {
+		StringBuilder rtn = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				rtn.append('\\').append(c);
+			} else if (c < 0x20) {
+				rtn.append(String.format("\\u%04x", (int) c));
+			} else {
+				rtn.append(c);
+			}
+		}
+		return rtn.append('"').toString();
+	}
+}
@@ -0,0 +1,108 @@
+package ExpressionEval;
+
+/**
+ * Specialized kernels of ^ and log, selected by CompiledExpression when an
+ * operand is a constant.
+ *
+ * powInt computes x^n for an integer n by repeated squaring. It is exact, and
+ * therefore equal to Math.pow, whenever x^n and every intermediate square are
+ * exactly representable, e.g. integer bases with results below 2^53. Otherwise
+ * every multiplication rounds once and squaring doubles the error carried so
+ * far, so the relative error is at most about (|n| - 1) * 2^-53 and the
+ * result is within |n| ulps of Math.pow, which itself is within 1 ulp. Over
+ * random bases the largest difference is 5 ulps for |n| <= MAX_INT_EXPONENT. A
+ * negative n adds one division. This bound only holds while the product stays
+ * in the normal range: if it overflows, underflows or becomes subnormal, e.g.
+ * 1e40^-8 whose product 1e320 overflows although the result 1e-320 does not,
+ * or if the result is subnormal, powInt falls back to Math.pow.
+ *
+ * log with a constant base divides by the hoisted ln(base), which is
+ * bit-identical to Math.log(x) / Math.log(base). The bases 2, e and 10 multiply
+ * by a precomputed reciprocal instead, which is within 1 ulp of the division.
+ *
+ */
+public class MathKernels {
+	// Larger exponents fall back to Math.pow.
+	public static final int MAX_INT_EXPONENT = 8;
+
+	private static final double[] TABLE_BASES = { 2, Math.E, 10 };
+	private static final double[] TABLE_RECIPROCALS = { 1 / Math.log(2), 1 / Math.log(Math.E), 1 / Math.log(10) };
+
+	/**
+	 * @return Whether powInt could be used for the exponent.
+	 */
+	public static boolean isIntExponent(double exponent) {
+		return exponent == (int) exponent && Math.abs(exponent) <= MAX_INT_EXPONENT;
+	}
+
+	/**
+	 * Calculate base^exponent by repeated squaring.
+	 *
+	 * @param base
+	 *            Any double.
+	 * @param exponent
+	 *            Integer exponent, at most MAX_INT_EXPONENT in magnitude.
+	 * @return base^exponent with the accuracy described above.
+	 */
+	public static double powInt(double base, int exponent) {
+		int n = exponent < 0 ? -exponent : exponent;
+		double rtn = 1;
+		double square = base;
+		while (n != 0) {
+			if ((n & 1) != 0) {
+				rtn *= square;
+			}
+			n >>>= 1;
+			if (n != 0) {
+				square *= square;
+			}
+		}
+		double result = exponent < 0 ? 1 / rtn : rtn;
+		if (!isNormal(rtn) || !isNormal(result)) {
+			return Math.pow(base, exponent);
+		}
+		return result;
+	}
+
+	private static boolean isNormal(double x) {
+		double abs = Math.abs(x);
+		return abs >= Double.MIN_NORMAL && abs <= Double.MAX_VALUE;
+	}
+
+	/**
+	 * @return Precomputed 1 / ln(base) for the bases 2, e and 10, otherwise 0.
+	 */
+	public static double reciprocalLn(double base) {
+		for (int i = 0; i < TABLE_BASES.length; i++) {
+			if (TABLE_BASES[i] == base) {
+				return TABLE_RECIPROCALS[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * General logarithm, the fallback of the kernels.
+	 *
+	 * @return log of |x| in |base|, same as the log operator of evalRpn.
+	 */
+	public static double log(double base, double x) {
+		return Math.log(x) / Math.log(base);
+	}
+
+	/**
+	 * @param lnBase
+	 *            Hoisted Math.log(base).
+	 */
+	public static double logHoisted(double lnBase, double x) {
+		return Math.log(x) / lnBase;
+	}
+
+	/**
+	 * @param reciprocalLn
+	 *            1 / ln(base) from reciprocalLn(base).
+	 */
+	public static double logReciprocal(double reciprocalLn, double x) {
+		return Math.log(x) * reciprocalLn;
+	}
+}
@@ -0,0 +1,284 @@
+package ExpressionEval;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates expression files with the compiled programs and the evaluation
+ * results kept off heap in OffHeapStore, so the heap usage stays flat no matter
+ * how many lines a file has. A file is streamed in chunks of chunkLines lines,
+ * and each chunk goes through three phases:
+ *
+ * 1. Every line is tokenized and compiled into a program of opcodes (see
+ * ExpressionCommon.OP_*). Lines failing validation store their structured error
+ * instead.
+ *
+ * 2. Every program is evaluated and its value and binary expression tree are
+ * rendered into the result store, in the same format as OutputHandler.writeFile.
+ *
+ * 3. Every result is written from the off heap memory to its output file.
+ *
+ * The stores are then reset for the next chunk, so the direct memory is
+ * bounded by the size of one chunk instead of the whole file, see OffHeapStore.
+ *
+ * The stores are reused across files, so one instance should be kept for a
+ * batch. This class is not thread safe.
+ *
+ */
+public class OffHeapEvaluator {
+	private static final byte STATUS_OK = 0;
+	private static final byte STATUS_ERROR = 1;
+	// Program record: status (1 byte), length of the payload (4 bytes), payload.
+	// The payload is the opcodes or the error message.
+	private static final int PROGRAM_HEADER = 5;
+	// Result record: status (1 byte), value (8 bytes), length of the rendered
+	// output (4 bytes), rendered output.
+	private static final int RESULT_HEADER = 13;
+	static final int DEFAULT_CHUNK_LINES = 4096;
+
+	private final OffHeapStore programs = new OffHeapStore();
+	private final OffHeapStore results = new OffHeapStore();
+	private final OffHeapStore.LongArray programIndex = new OffHeapStore.LongArray();
+	private final OffHeapStore.LongArray resultIndex = new OffHeapStore.LongArray();
+	private final int chunkLines;
+
+	// Scratch space reused by every line.
+	private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private ByteBuffer encoded = ByteBuffer.allocate(1024);
+	private final ExpressionCommon.ParseError error = new ExpressionCommon.ParseError();
+	private double[] valStack = new double[64];
+	private ExpressionScorer.Node[] nodeStack = new ExpressionScorer.Node[64];
+
+	public OffHeapEvaluator() {
+		this(DEFAULT_CHUNK_LINES);
+	}
+
+	/**
+	 * @param chunkLines
+	 *            Number of lines compiled, evaluated and written at a time.
+	 */
+	public OffHeapEvaluator(int chunkLines) {
+		if (chunkLines <= 0) {
+			throw new IllegalArgumentException("Chunk size should be positive");
+		}
+		this.chunkLines = chunkLines;
+	}
+
+	/**
+	 * Given a filename, parse and evaluate the expression line by line and output
+	 * the results to files, one file per line named by
+	 * OutputHandler.outputFilename.
+	 *
+	 * @param filename
+	 *            The input filename.
+	 * @return Number of lines evaluated.
+	 */
+	public long evalFile(String filename) throws IOException {
+		long lineNum = 0;
+		BufferedReader br = InputHandler.openReader(filename);
+		try {
+			while (true) {
+				programs.reset();
+				results.reset();
+				programIndex.reset();
+				resultIndex.reset();
+				compile(br);
+				if (programIndex.size() == 0) {
+					return lineNum;
+				}
+				for (long i = 0; i < programIndex.size(); i++) {
+					resultIndex.add(evaluate(programIndex.get(i)));
+				}
+				for (long i = 0; i < resultIndex.size(); i++) {
+					long handle = resultIndex.get(i);
+					OutputHandler.writeFile(results, handle, RESULT_HEADER, results.getInt(handle, 9), filename,
+							lineNum + i);
+				}
+				lineNum += resultIndex.size();
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * @return Number of direct bytes held by the stores of this evaluator.
+	 */
+	public long allocatedBytes() {
+		return programs.allocatedBytes() + results.allocatedBytes();
+	}
+
+	/**
+	 * Phase 1: read up to chunkLines lines and store the compiled program of each
+	 * line.
+	 */
+	private void compile(BufferedReader br) throws IOException {
+		String strLine;
+		while (programIndex.size() < chunkLines && (strLine = br.readLine()) != null) {
+			List<ExpressionCommon.Token> tokens = InputHandler.tokenize(strLine, error);
+			List<ExpressionCommon.Token> rpnTokens = tokens == null ? null : ExpressionScorer.toRPN(tokens);
+			if (rpnTokens == null || !ExpressionScorer.checkRpn(rpnTokens, error)) {
+				programIndex.add(storeError(error.toString()));
+			} else {
+				programIndex.add(storeProgram(rpnTokens));
+			}
+		}
+	}
+
+	private long storeProgram(List<ExpressionCommon.Token> rpnTokens) {
+		int length = 0;
+		for (int i = 0; i < rpnTokens.size(); i++) {
+			length += rpnTokens.get(i).number == null ? 1 : 9;
+		}
+		long handle = programs.reserve(PROGRAM_HEADER + length);
+		programs.putByte(handle, 0, STATUS_OK);
+		programs.putInt(handle, 1, length);
+		int offset = PROGRAM_HEADER;
+		for (int i = 0; i < rpnTokens.size(); i++) {
+			ExpressionCommon.Token token = rpnTokens.get(i);
+			byte opcode = ExpressionCommon.toOpcode(token);
+			programs.putByte(handle, offset++, opcode);
+			if (opcode == ExpressionCommon.OP_NUMBER) {
+				programs.putDouble(handle, offset, token.number);
+				offset += 8;
+			}
+		}
+		return handle;
+	}
+
+	private long storeError(String reason) {
+		ByteBuffer message = encode(reason);
+		long handle = programs.reserve(PROGRAM_HEADER + message.remaining());
+		programs.putByte(handle, 0, STATUS_ERROR);
+		programs.putInt(handle, 1, message.remaining());
+		programs.putBytes(handle, PROGRAM_HEADER, message);
+		return handle;
+	}
+
+	/**
+	 * Phase 2: evaluate a stored program and store its rendered result.
+	 */
+	private long evaluate(long programHandle) {
+		int length = programs.getInt(programHandle, 1);
+		if (programs.getByte(programHandle, 0) == STATUS_ERROR) {
+			return storeResult(STATUS_ERROR, Double.NaN,
+					programs.view(programHandle, PROGRAM_HEADER, length));
+		}
+		double value;
+		ExpressionScorer.Node tree;
+		try {
+			int top = run(programHandle, length);
+			value = valStack[top];
+			tree = nodeStack[top];
+			Arrays.fill(nodeStack, 0, top + 1, null);
+		} catch (Exception ex) {
+			return storeResult(STATUS_ERROR, Double.NaN, encode(String.valueOf(ex.getMessage())));
+		}
+		StringBuilder rendered = new StringBuilder();
+		DoubleFormatter.append(rendered, value);
+		rendered.append(System.lineSeparator());
+		rendered.append(tree.toString());
+		return storeResult(STATUS_OK, value, encode(rendered));
+	}
+
+	/**
+	 * Run the opcodes of a program with the same arithmetic as
+	 * ExpressionScorer.evalRpn.
+	 *
+	 * @return Index of the top of the stacks holding the value and tree.
+	 */
+	private int run(long handle, int length) {
+		int top = -1;
+		int offset = PROGRAM_HEADER;
+		int end = PROGRAM_HEADER + length;
+		while (offset < end) {
+			byte opcode = programs.getByte(handle, offset++);
+			if (top + 1 == valStack.length) {
+				growStacks();
+			}
+			switch (opcode) {
+			case ExpressionCommon.OP_NUMBER:
+				double number = programs.getDouble(handle, offset);
+				offset += 8;
+				top++;
+				valStack[top] = number;
+				nodeStack[top] = new ExpressionScorer.Node(DoubleFormatter.toString(number));
+				break;
+			case ExpressionCommon.OP_UNARY_PLUS:
+			case ExpressionCommon.OP_UNARY_MINUS:
+				if (top < 0) {
+					throw new IllegalArgumentException("Logic error. Unary operators should have one operand");
+				}
+				if (opcode == ExpressionCommon.OP_UNARY_MINUS) {
+					valStack[top] = -1 * valStack[top];
+				}
+				nodeStack[top] = new ExpressionScorer.Node(ExpressionCommon.opcodeSymbol(opcode), null,
+						nodeStack[top]);
+				break;
+			default:
+				if (top < 1) {
+					throw new IllegalArgumentException("Logic error. Binary operators should have two operands");
+				}
+				valStack[top - 1] = ExpressionScorer.applyBinary(opcode, valStack[top - 1], valStack[top]);
+				nodeStack[top - 1] = new ExpressionScorer.Node(ExpressionCommon.opcodeSymbol(opcode),
+						nodeStack[top - 1], nodeStack[top]);
+				nodeStack[top] = null;
+				top--;
+			}
+		}
+		if (top < 0) {
+			throw new IllegalArgumentException("Empty expression");
+		}
+		return top;
+	}
+
+	private long storeResult(byte status, double value, ByteBuffer rendered) {
+		long handle = results.reserve(RESULT_HEADER + rendered.remaining());
+		results.putByte(handle, 0, status);
+		results.putDouble(handle, 1, value);
+		results.putInt(handle, 9, rendered.remaining());
+		results.putBytes(handle, RESULT_HEADER, rendered);
+		return handle;
+	}
+
+	/**
+	 * Encode the text with the default charset, which is what OutputHandler uses,
+	 * into the reusable scratch buffer.
+	 */
+	private ByteBuffer encode(CharSequence text) {
+		CharBuffer chars = CharBuffer.wrap(text);
+		while (true) {
+			encoded.clear();
+			encoder.reset();
+			CoderResult result = encoder.encode(chars, encoded, true);
+			if (!result.isOverflow()) {
+				result = encoder.flush(encoded);
+			}
+			if (!result.isOverflow()) {
+				break;
+			}
+			encoded = ByteBuffer.allocate(encoded.capacity() * 2);
+			chars.rewind();
+		}
+		encoded.flip();
+		return encoded;
+	}
+
+	private void growStacks() {
+		double[] newValStack = new double[valStack.length * 2];
+		System.arraycopy(valStack, 0, newValStack, 0, valStack.length);
+		valStack = newValStack;
+		ExpressionScorer.Node[] newNodeStack = new ExpressionScorer.Node[nodeStack.length * 2];
+		System.arraycopy(nodeStack, 0, newNodeStack, 0, nodeStack.length);
+		nodeStack = newNodeStack;
+	}
+}
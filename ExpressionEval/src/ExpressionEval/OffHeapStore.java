@@ -0,0 +1,208 @@
+package ExpressionEval;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only byte storage backed by direct buffers, which live outside of the
+ * Java heap. Records are reserved with a fixed length and addressed by a handle.
+ * The high 32 bits of a handle are the chunk index and the low 32 bits are the
+ * offset inside the chunk, so a record never spans two chunks.
+ *
+ * The chunks are kept after reset() and reused by the next batch. Direct memory
+ * is only returned to the OS once the store itself is garbage collected.
+ *
+ * Direct buffers are still limited by -XX:MaxDirectMemorySize, which defaults
+ * to the maximum heap size, so the stores move the memory of a batch out of
+ * the heap but do not remove the limit; raise it for very large files.
+ *
+ */
+public class OffHeapStore {
+	private static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+	private final int chunkSize;
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	// Index of the chunk new records are appended to.
+	private int currentChunk = -1;
+
+	public OffHeapStore() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	public OffHeapStore(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size should be positive");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Reserve a record of |length| bytes at the end of the store.
+	 *
+	 * @param length
+	 *            Size of the record in bytes.
+	 * @return Handle of the record.
+	 */
+	public long reserve(int length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("Record length should not be negative");
+		}
+		ByteBuffer chunk = currentChunk < 0 ? null : chunks.get(currentChunk);
+		while (chunk == null || chunk.remaining() < length) {
+			currentChunk++;
+			if (currentChunk == chunks.size()) {
+				chunks.add(ByteBuffer.allocateDirect(Math.max(chunkSize, length)));
+			}
+			chunk = chunks.get(currentChunk);
+			if (chunk.capacity() < length) {
+				// A reused chunk which is too small for this record.
+				chunk = ByteBuffer.allocateDirect(length);
+				chunks.set(currentChunk, chunk);
+			}
+		}
+		long handle = ((long) currentChunk << 32) | chunk.position();
+		chunk.position(chunk.position() + length);
+		return handle;
+	}
+
+	/**
+	 * Forget all the records but keep the allocated chunks for reuse.
+	 */
+	public void reset() {
+		for (ByteBuffer chunk : chunks) {
+			chunk.clear();
+		}
+		currentChunk = -1;
+	}
+
+	/**
+	 * @return Number of direct bytes allocated by this store.
+	 */
+	public long allocatedBytes() {
+		long rtn = 0;
+		for (ByteBuffer chunk : chunks) {
+			rtn += chunk.capacity();
+		}
+		return rtn;
+	}
+
+	public void putByte(long handle, int offset, byte value) {
+		chunk(handle).put(position(handle, offset), value);
+	}
+
+	public void putInt(long handle, int offset, int value) {
+		chunk(handle).putInt(position(handle, offset), value);
+	}
+
+	public void putLong(long handle, int offset, long value) {
+		chunk(handle).putLong(position(handle, offset), value);
+	}
+
+	public void putDouble(long handle, int offset, double value) {
+		chunk(handle).putDouble(position(handle, offset), value);
+	}
+
+	/**
+	 * Copy the remaining bytes of |src| into the record starting from |offset|.
+	 */
+	public void putBytes(long handle, int offset, ByteBuffer src) {
+		ByteBuffer dst = chunk(handle).duplicate();
+		dst.position(position(handle, offset));
+		dst.put(src);
+	}
+
+	public byte getByte(long handle, int offset) {
+		return chunk(handle).get(position(handle, offset));
+	}
+
+	public int getInt(long handle, int offset) {
+		return chunk(handle).getInt(position(handle, offset));
+	}
+
+	public long getLong(long handle, int offset) {
+		return chunk(handle).getLong(position(handle, offset));
+	}
+
+	public double getDouble(long handle, int offset) {
+		return chunk(handle).getDouble(position(handle, offset));
+	}
+
+	/**
+	 * Write |length| bytes of the record starting from |offset| to the channel
+	 * without copying them onto the heap.
+	 */
+	public void writeTo(long handle, int offset, int length, WritableByteChannel channel) throws IOException {
+		ByteBuffer src = view(handle, offset, length);
+		while (src.hasRemaining()) {
+			channel.write(src);
+		}
+	}
+
+	/**
+	 * @return A read only buffer over |length| bytes of the record starting from
+	 *         |offset|. The buffer shares the off heap memory with the store.
+	 */
+	public ByteBuffer view(long handle, int offset, int length) {
+		ByteBuffer rtn = chunk(handle).asReadOnlyBuffer();
+		int start = position(handle, offset);
+		rtn.limit(start + length);
+		rtn.position(start);
+		return rtn;
+	}
+
+	private ByteBuffer chunk(long handle) {
+		return chunks.get((int) (handle >>> 32));
+	}
+
+	private static int position(long handle, int offset) {
+		return (int) handle + offset;
+	}
+
+	/**
+	 * A growable array of longs stored off heap, used to index the records of an
+	 * OffHeapStore by line number.
+	 */
+	public static class LongArray {
+		private static final int LONGS_PER_CHUNK = 1024 * 1024;
+
+		private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		private long size;
+
+		public void add(long value) {
+			int chunkIdx = (int) (size / LONGS_PER_CHUNK);
+			if (chunkIdx == chunks.size()) {
+				chunks.add(ByteBuffer.allocateDirect(LONGS_PER_CHUNK * 8));
+			}
+			chunks.get(chunkIdx).putLong((int) (size % LONGS_PER_CHUNK) * 8, value);
+			size++;
+		}
+
+		public long get(long idx) {
+			if (idx < 0 || idx >= size) {
+				throw new IndexOutOfBoundsException("Index " + idx + " out of " + size);
+			}
+			return chunks.get((int) (idx / LONGS_PER_CHUNK)).getLong((int) (idx % LONGS_PER_CHUNK) * 8);
+		}
+
+		public void set(long idx, long value) {
+			if (idx < 0 || idx >= size) {
+				throw new IndexOutOfBoundsException("Index " + idx + " out of " + size);
+			}
+			chunks.get((int) (idx / LONGS_PER_CHUNK)).putLong((int) (idx % LONGS_PER_CHUNK) * 8, value);
+		}
+
+		public long size() {
+			return size;
+		}
+
+		/**
+		 * Forget all the values but keep the allocated chunks for reuse.
+		 */
+		public void reset() {
+			size = 0;
+		}
+	}
+}
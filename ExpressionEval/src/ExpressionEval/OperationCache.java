@@ -0,0 +1,457 @@
+package ExpressionEval;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the values of the expensive binary operations (*, /, ^ and log)
+ * used by ExpressionScorer.evalRpn.
+ *
+ * Caching only pays off when the operands repeat and the operation costs more
+ * than the lookup, so the cache decides per operator:
+ *
+ * 1. Admission. Once a segment is full, a new value only replaces the least
+ * recently used one if its estimated frequency times the cost of its operator
+ * is higher than the victim's, in the style of TinyLFU. Frequencies come from
+ * a count-min sketch whose counters are halved periodically so old popularity
+ * fades out.
+ *
+ * 2. Bypass. Every window of lookups the operator's hit rate times its
+ * measured compute cost is compared with the measured lookup cost. If the
+ * expected saving is lower, the operator skips the cache entirely and is
+ * probed again after a while.
+ *
+ * Costs are sampled with System.nanoTime, and every sample includes the
+ * overhead of the timer. It does not cancel out: with a hit rate h the
+ * comparison h * (compute + overhead) < lookup + overhead is biased toward
+ * bypass, e.g. a 30% hit rate of a 200ns operation with a 50ns lookup saves
+ * 60ns but a 100ns overhead would make it look like a loss. So the overhead is
+ * calibrated once and subtracted from every sample. Counters are updated
+ * without locks and are approximate under contention, which is fine for the
+ * decisions made from them.
+ *
+ */
+public class OperationCache {
+	private static final int SEGMENTS = 16;
+	// Decisions are made once every WINDOW lookups of an operator.
+	static final int WINDOW = 4096;
+	// A bypassed operator is probed again after this many calls.
+	static final int PROBE_INTERVAL = 64 * 1024;
+	// One out of SAMPLE_RATE computations and lookups is timed.
+	private static final int SAMPLE_RATE = 64;
+	private static final int SKETCH_DEPTH = 4;
+	private static final long[] SKETCH_SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+			0xFF51AFD7ED558CCDL };
+	// Nanoseconds between two back-to-back System.nanoTime calls, subtracted
+	// from every timed sample.
+	static final long TIMER_OVERHEAD = timerOverhead();
+
+	private final Segment[] segments;
+	private final OpStats[] stats = new OpStats[ExpressionCommon.OP_UNARY_MINUS + 1];
+	// Hits of the calling thread, for the accounting of ExpressionProfiler.
+	private final ThreadLocal<long[]> threadHits = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+	private final int[][] sketch;
+	private final int sketchMask;
+	private final int sketchResetThreshold;
+	private int sketchAdditions;
+
+	/**
+	 * @param capacity
+	 *            Maximum number of cached operations.
+	 */
+	public OperationCache(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity should be positive");
+		}
+		// A power of two, so a segment is selected by masking the hash. The
+		// capacities of the segments add up to |capacity|.
+		int count = Math.min(SEGMENTS, Integer.highestOneBit(capacity));
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+		}
+		for (byte opcode : new byte[] { ExpressionCommon.OP_MULTIPLY, ExpressionCommon.OP_DIVIDE,
+				ExpressionCommon.OP_POWER, ExpressionCommon.OP_LOG }) {
+			stats[opcode] = new OpStats(opcode);
+		}
+		int width = Integer.highestOneBit(Math.max(16, capacity * 4 - 1)) << 1;
+		sketch = new int[SKETCH_DEPTH][width];
+		sketchMask = width - 1;
+		sketchResetThreshold = capacity * 10;
+	}
+
+	/**
+	 * Calculate a binary operation, serving it from the cache if the operator
+	 * currently benefits from caching.
+	 *
+	 * @param opcode
+	 *            One of OP_MULTIPLY, OP_DIVIDE, OP_POWER and OP_LOG.
+	 * @param val1
+	 *            Left operand. For log it is the base.
+	 * @param val2
+	 *            Right operand.
+	 * @return Value of the operation.
+	 */
+	public double apply(byte opcode, double val1, double val2) {
+		OpStats opStats = opcode < stats.length ? stats[opcode] : null;
+		if (opStats == null) {
+			throw new IllegalArgumentException("Operator is not cacheable");
+		}
+		if (opStats.bypassed) {
+			if (opStats.bypassedCalls.incrementAndGet() < PROBE_INTERVAL) {
+				return compute(opStats, val1, val2);
+			}
+			opStats.probe();
+		}
+		boolean sampled = (++opStats.sampleCounter & (SAMPLE_RATE - 1)) == 0;
+		long start = sampled ? System.nanoTime() : 0;
+		Key key = new Key(opcode, val1, val2);
+		recordAccess(key.hash);
+		Segment segment = segments[(key.hash >>> 28) & (segments.length - 1)];
+		Double cached;
+		synchronized (segment) {
+			cached = segment.get(key);
+		}
+		if (sampled) {
+			opStats.lookupNanos = ewma(opStats.lookupNanos, System.nanoTime() - start - TIMER_OVERHEAD);
+		}
+		opStats.onLookup(cached != null);
+		if (cached != null) {
+			threadHits.get()[0]++;
+			return cached;
+		}
+		double rtn = compute(opStats, val1, val2);
+		admit(segment, key, rtn);
+		return rtn;
+	}
+
+	/**
+	 * @return Whether the operator currently skips the cache.
+	 */
+	public boolean isBypassed(byte opcode) {
+		return stats[opcode].bypassed;
+	}
+
+	/**
+	 * @return Number of hits of the calling thread over all the operators.
+	 */
+	public long threadHitCount() {
+		return threadHits.get()[0];
+	}
+
+	/**
+	 * @return Number of the cached operations.
+	 */
+	public int size() {
+		int rtn = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				rtn += segment.size();
+			}
+		}
+		return rtn;
+	}
+
+	/**
+	 * @return Number of hits over all the operators and threads.
+	 */
+	public long hitCount() {
+		long rtn = 0;
+		for (OpStats opStats : stats) {
+			if (opStats != null) {
+				rtn += opStats.hits.sum();
+			}
+		}
+		return rtn;
+	}
+
+	/**
+	 * @return Number of lookups over all the operators and threads, without the
+	 *         calls of the bypassed operators.
+	 */
+	public long lookupCount() {
+		long rtn = 0;
+		for (OpStats opStats : stats) {
+			if (opStats != null) {
+				rtn += opStats.lookups.sum();
+			}
+		}
+		return rtn;
+	}
+
+	/**
+	 * @return Hit rate of the operator over all its lookups.
+	 */
+	public double hitRate(byte opcode) {
+		OpStats opStats = stats[opcode];
+		long lookups = opStats.lookups.sum();
+		return lookups == 0 ? 0 : (double) opStats.hits.sum() / lookups;
+	}
+
+	/**
+	 * @return One line per operator with its caching decision, hit rate and
+	 *         measured costs.
+	 */
+	public String report() {
+		StringBuilder rtn = new StringBuilder();
+		for (OpStats opStats : stats) {
+			if (opStats == null) {
+				continue;
+			}
+			rtn.append(ExpressionCommon.opcodeSymbol(opStats.opcode));
+			rtn.append(": ").append(opStats.bypassed ? "bypassed" : "cached");
+			rtn.append(", lookups=").append(opStats.lookups.sum());
+			rtn.append(", hits=").append(opStats.hits.sum());
+			rtn.append(", hitRate=").append(hitRate(opStats.opcode));
+			rtn.append(", admitted=").append(opStats.admitted.sum());
+			rtn.append(", rejected=").append(opStats.rejected.sum());
+			rtn.append(", bypassedCalls=").append(opStats.totalBypassedCalls.sum());
+			rtn.append(", computeNs=").append((long) opStats.computeNanos);
+			rtn.append(", lookupNs=").append((long) opStats.lookupNanos);
+			rtn.append(System.lineSeparator());
+		}
+		return rtn.toString();
+	}
+
+	@Override
+	public String toString() {
+		return report();
+	}
+
+	private double compute(OpStats opStats, double val1, double val2) {
+		if ((++opStats.computeCounter & (SAMPLE_RATE - 1)) != 0) {
+			return ExpressionScorer.applyBinary(opStats.opcode, val1, val2);
+		}
+		long start = System.nanoTime();
+		double rtn = ExpressionScorer.applyBinary(opStats.opcode, val1, val2);
+		opStats.computeNanos = ewma(opStats.computeNanos, System.nanoTime() - start - TIMER_OVERHEAD);
+		return rtn;
+	}
+
+	/**
+	 * Put a computed value into the segment, evicting the least recently used
+	 * value only if the new one is worth more.
+	 */
+	private void admit(Segment segment, Key key, double value) {
+		OpStats opStats = stats[key.opcode];
+		synchronized (segment) {
+			if (segment.size() >= segment.capacity) {
+				Iterator<Key> eldest = segment.keySet().iterator();
+				Key victim = eldest.next();
+				double candidateWorth = frequency(key.hash) * cost(key.opcode);
+				double victimWorth = frequency(victim.hash) * cost(victim.opcode);
+				if (candidateWorth <= victimWorth) {
+					opStats.rejected.increment();
+					return;
+				}
+				eldest.remove();
+			}
+			segment.put(key, value);
+		}
+		opStats.admitted.increment();
+	}
+
+	private double cost(byte opcode) {
+		double rtn = stats[opcode].computeNanos;
+		// Operators not sampled yet are treated as cheap.
+		return rtn > 0 ? rtn : 1;
+	}
+
+	private void recordAccess(int hash) {
+		for (int i = 0; i < SKETCH_DEPTH; i++) {
+			int idx = sketchIndex(hash, i);
+			if (sketch[i][idx] < Integer.MAX_VALUE) {
+				sketch[i][idx]++;
+			}
+		}
+		if (++sketchAdditions >= sketchResetThreshold) {
+			age();
+		}
+	}
+
+	private int frequency(int hash) {
+		int rtn = Integer.MAX_VALUE;
+		for (int i = 0; i < SKETCH_DEPTH; i++) {
+			rtn = Math.min(rtn, sketch[i][sketchIndex(hash, i)]);
+		}
+		return rtn;
+	}
+
+	private int sketchIndex(int hash, int row) {
+		long h = (hash & 0xFFFFFFFFL) * SKETCH_SEEDS[row];
+		return (int) (h >>> 32) & sketchMask;
+	}
+
+	/**
+	 * Halve every counter of the sketch so that the frequencies follow recent
+	 * popularity.
+	 */
+	private synchronized void age() {
+		if (sketchAdditions < sketchResetThreshold) {
+			return;
+		}
+		for (int[] row : sketch) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] >>>= 1;
+			}
+		}
+		sketchAdditions = 0;
+	}
+
+	/**
+	 * @return The smallest interval between two System.nanoTime calls, a lower
+	 *         bound of the overhead so that a sample is never corrected below its
+	 *         real cost.
+	 */
+	private static long timerOverhead() {
+		long rtn = Long.MAX_VALUE;
+		for (int i = 0; i < 10000; i++) {
+			long start = System.nanoTime();
+			rtn = Math.min(rtn, System.nanoTime() - start);
+		}
+		return rtn;
+	}
+
+	/**
+	 * Average of the samples, or the first sample if there is none yet. A sample
+	 * could be below 0 after the overhead is subtracted, since the overhead
+	 * varies, and is counted as 0.
+	 */
+	private static double ewma(double average, long sample) {
+		sample = Math.max(0, sample);
+		return average < 0 ? sample : average * 0.9 + sample * 0.1;
+	}
+
+	/**
+	 * Caching is a net loss if the expected saving of a lookup is lower than the
+	 * cost of the lookup itself.
+	 *
+	 * @param hitRate
+	 *            Hit rate of the operator over the last window.
+	 * @param computeNanos
+	 *            Cost of the operation without the timer overhead.
+	 * @param lookupNanos
+	 *            Cost of a lookup without the timer overhead.
+	 * @return Whether the operator should bypass the cache.
+	 */
+	static boolean shouldBypass(double hitRate, double computeNanos, double lookupNanos) {
+		return hitRate * computeNanos < lookupNanos;
+	}
+
+	/**
+	 * Counters and the caching decision of one operator.
+	 */
+	private static class OpStats {
+		final byte opcode;
+		final LongAdder lookups = new LongAdder();
+		final LongAdder hits = new LongAdder();
+		final LongAdder admitted = new LongAdder();
+		final LongAdder rejected = new LongAdder();
+		final LongAdder totalBypassedCalls = new LongAdder();
+		final AtomicInteger bypassedCalls = new AtomicInteger();
+		volatile boolean bypassed;
+		// Average nanoseconds of one computation and one lookup, -1 before the
+		// first sample.
+		volatile double computeNanos = -1;
+		volatile double lookupNanos = -1;
+		int sampleCounter;
+		int computeCounter;
+		int windowLookups;
+		int windowHits;
+
+		OpStats(byte opcode) {
+			this.opcode = opcode;
+		}
+
+		void onLookup(boolean hit) {
+			lookups.increment();
+			if (hit) {
+				hits.increment();
+				windowHits++;
+			}
+			if (++windowLookups < WINDOW) {
+				return;
+			}
+			double hitRate = (double) windowHits / windowLookups;
+			if (computeNanos >= 0 && lookupNanos >= 0 && shouldBypass(hitRate, computeNanos, lookupNanos)) {
+				bypassedCalls.set(0);
+				bypassed = true;
+			}
+			windowLookups = 0;
+			windowHits = 0;
+		}
+
+		/**
+		 * Give a bypassed operator one more window of lookups.
+		 */
+		void probe() {
+			totalBypassedCalls.add(bypassedCalls.getAndSet(0));
+			windowLookups = 0;
+			windowHits = 0;
+			bypassed = false;
+		}
+	}
+
+	/**
+	 * An operation identified by its operator and the exact bits of its
+	 * operands. The operands of * are ordered since it is commutative.
+	 */
+	private static class Key {
+		final byte opcode;
+		final long bits1;
+		final long bits2;
+		final int hash;
+
+		Key(byte opcode, double val1, double val2) {
+			long b1 = Double.doubleToLongBits(val1);
+			long b2 = Double.doubleToLongBits(val2);
+			if (opcode == ExpressionCommon.OP_MULTIPLY && b1 > b2) {
+				long tmp = b1;
+				b1 = b2;
+				b2 = tmp;
+			}
+			this.opcode = opcode;
+			this.bits1 = b1;
+			this.bits2 = b2;
+			long h = (b1 * 0x9E3779B97F4A7C15L) ^ Long.rotateLeft(b2 * 0xC2B2AE3D27D4EB4FL, 29) ^ opcode;
+			h ^= h >>> 32;
+			h *= 0xFF51AFD7ED558CCDL;
+			this.hash = (int) (h ^ (h >>> 32));
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return opcode == other.opcode && bits1 == other.bits1 && bits2 == other.bits2;
+		}
+	}
+
+	/**
+	 * An LRU map of a fixed capacity. Eviction is done by admit().
+	 */
+	private static class Segment extends LinkedHashMap<Key, Double> {
+		private static final long serialVersionUID = 1L;
+
+		final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+	}
+}
@@ -4,8 +4,17 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This class offers helper function to output evaluation result to files.
@@ -15,7 +24,8 @@ public class OutputHandler {
 	/**
 	 * Write evaluation result to a output file. If the evaluation succeeds, this
 	 * will write the value and binary expression tree; otherwise print the error
-	 * message to the file.
+	 * message to the file. Errors found by validation are written with their error
+	 * code and position.
 	 * 
 	 * @param result
 	 *            Expression evaluation result or exception.
@@ -25,26 +35,287 @@ public class OutputHandler {
 	 *            The line in the file where the expression presents.
 	 * @return The absolute filename of the output file.
 	 */
-	public static String writeFile(ExpressionScorer.ExpressionVal result, String originalFilename, int originalLineNum)
+	public static String writeFile(ExpressionScorer.ExpressionVal result, String originalFilename, long originalLineNum)
 			throws FileNotFoundException, IOException {
-		// Split filename from extension
-		String[] tokens = originalFilename.split("\\.(?=[^\\.]+$)");
-		StringBuilder fileNameBuilder = new StringBuilder(tokens[0]);
-		fileNameBuilder.append("_");
-		fileNameBuilder.append(originalLineNum);
-		String outputFilename = fileNameBuilder.toString();
+		return writeFile(result, originalFilename, originalLineNum, null);
+	}
+
+	/**
+	 * Same as writeFile(result, originalFilename, originalLineNum), but the line
+	 * is marked done in |journal| once written, which closes the output file, see
+	 * ProgressJournal.markDone. Could be null.
+	 */
+	public static String writeFile(ExpressionScorer.ExpressionVal result, String originalFilename, long originalLineNum,
+			ProgressJournal journal) throws FileNotFoundException, IOException {
+		return writeFile(result, originalFilename, originalLineNum, journal, Deadline.NONE);
+	}
+
+	/**
+	 * Same as writeFile(result, originalFilename, originalLineNum, journal), but
+	 * if the tree could not be rendered before the deadline, the TIMEOUT error is
+	 * written instead.
+	 */
+	public static String writeFile(ExpressionScorer.ExpressionVal result, String originalFilename, long originalLineNum,
+			ProgressJournal journal, Deadline deadline) throws FileNotFoundException, IOException {
+		String outputFilename = outputFilename(originalFilename, originalLineNum);
 		File fout = new File(outputFilename);
 		FileOutputStream fos = new FileOutputStream(fout);
 
 		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
-		if (result.exp == null) {
-			bw.write(String.valueOf(result.value));
-			bw.newLine();
-			bw.write(result.expressionTree.toString());
+		if (journal == null) {
+			write(bw, result, deadline);
+			bw.close();
+			return outputFilename;
+		}
+		try {
+			write(bw, result, deadline);
+			bw.flush();
+		} catch (IOException ex) {
+			fos.close();
+			throw ex;
+		}
+		journal.markDone(originalLineNum, fos);
+		return outputFilename;
+	}
+
+	/**
+	 * Write the content of the output file of an evaluation result.
+	 */
+	static void write(Writer writer, ExpressionScorer.ExpressionVal result) throws IOException {
+		write(writer, result, Deadline.NONE);
+	}
+
+	/**
+	 * Same as write(writer, result), but if the tree could not be rendered before
+	 * the deadline, the TIMEOUT error is written instead.
+	 */
+	static void write(Writer writer, ExpressionScorer.ExpressionVal result, Deadline deadline) throws IOException {
+		String tree = result.error == null && result.exp == null ? result.expressionTree.toString(deadline) : null;
+		if (result.error != null) {
+			writer.write(result.error.toString());
+		} else if (result.exp == null && tree == null) {
+			writer.write(new ExpressionCommon.ParseError(ExpressionCommon.ErrorCode.TIMEOUT, -1,
+					deadline.isCancelled() ? "Cancelled" : "Deadline exceeded").toString());
+		} else if (result.exp == null) {
+			DoubleFormatter.write(writer, result.value);
+			writer.write(System.lineSeparator());
+			writer.write(tree);
 		} else {
-			bw.write(result.exp.getMessage());
+			writer.write(String.valueOf(result.exp.getMessage()));
+		}
+	}
+
+	/**
+	 * Open a consolidated results file for writing, gzip compressed if its name
+	 * ends with ".gz".
+	 * 
+	 * @param filename
+	 *            The consolidated results filename.
+	 * @return Writer of the file, for writeRecord.
+	 */
+	public static BufferedWriter openWriter(String filename) throws FileNotFoundException, IOException {
+		OutputStream out = new FileOutputStream(filename);
+		if (filename.endsWith(".gz")) {
+			out = gzip(out);
+		}
+		return new BufferedWriter(new OutputStreamWriter(out), 64 * 1024);
+	}
+
+	/**
+	 * @return Gzip stream at the fastest compression level. The trees of the
+	 *         results repeat a lot, so the fastest level still compresses well
+	 *         and the default one would be slower than the evaluation.
+	 */
+	static GZIPOutputStream gzip(OutputStream out) throws IOException {
+		return new GZIPOutputStream(out, 64 * 1024) {
+			{
+				def.setLevel(Deflater.BEST_SPEED);
+			}
+		};
+	}
+
+	/**
+	 * Write an evaluation result as one record of a consolidated results file
+	 * instead of its own output file. A record is a header line "== " followed
+	 * by the output filename, then the content of the output file and a line
+	 * separator.
+	 * 
+	 * @param writer
+	 *            Writer of the consolidated results file.
+	 * @param result
+	 *            Expression evaluation result or exception.
+	 * @param originalFilename
+	 *            Absolute path of the original filename .
+	 * @param originalLineNum
+	 *            The line in the file where the expression presents.
+	 */
+	public static void writeRecord(Writer writer, ExpressionScorer.ExpressionVal result, String originalFilename,
+			long originalLineNum) throws IOException {
+		writeRecord(writer, result, originalFilename, originalLineNum, Deadline.NONE);
+	}
+
+	/**
+	 * Same as writeRecord(writer, result, originalFilename, originalLineNum), but
+	 * if the tree could not be rendered before the deadline, the TIMEOUT error is
+	 * written instead.
+	 */
+	public static void writeRecord(Writer writer, ExpressionScorer.ExpressionVal result, String originalFilename,
+			long originalLineNum, Deadline deadline) throws IOException {
+		writer.write("== ");
+		writer.write(outputFilename(originalFilename, originalLineNum));
+		writer.write(System.lineSeparator());
+		write(writer, result, deadline);
+		writer.write(System.lineSeparator());
+	}
+
+	/**
+	 * Write an evaluation result which is already rendered and stored off heap to
+	 * a output file. The bytes are written from the direct buffers to the file
+	 * channel without being copied onto the heap.
+	 * 
+	 * @param store
+	 *            The off heap store holding the rendered result.
+	 * @param handle
+	 *            Handle of the result record in |store|.
+	 * @param offset
+	 *            Offset of the rendered bytes inside the record.
+	 * @param length
+	 *            Number of the rendered bytes.
+	 * @param originalFilename
+	 *            Absolute path of the original filename.
+	 * @param originalLineNum
+	 *            The line in the file where the expression presents.
+	 * @return The absolute filename of the output file.
+	 */
+	public static String writeFile(OffHeapStore store, long handle, int offset, int length, String originalFilename,
+			long originalLineNum) throws FileNotFoundException, IOException {
+		String outputFilename = outputFilename(originalFilename, originalLineNum);
+		FileOutputStream fos = new FileOutputStream(new File(outputFilename));
+		try {
+			FileChannel channel = fos.getChannel();
+			store.writeTo(handle, offset, length, channel);
+		} finally {
+			fos.close();
 		}
-		bw.close();
 		return outputFilename;
 	}
+
+	/**
+	 * @return The output filename of the expression at line |originalLineNum| in
+	 *         file |originalFilename|. The suffix ".gz" of a compressed file is
+	 *         ignored.
+	 */
+	public static String outputFilename(String originalFilename, long originalLineNum) {
+		// A compressed input is named like its content, e.g. "data.txt.gz" -> "data_0"
+		if (originalFilename.endsWith(".gz")) {
+			originalFilename = originalFilename.substring(0, originalFilename.length() - 3);
+		}
+		// Split filename from extension
+		String[] tokens = originalFilename.split("\\.(?=[^\\.]+$)");
+		StringBuilder fileNameBuilder = new StringBuilder(tokens[0]);
+		fileNameBuilder.append("_");
+		fileNameBuilder.append(originalLineNum);
+		return fileNameBuilder.toString();
+	}
+
+	/**
+	 * A consolidated results file which could be checkpointed and continued from
+	 * a checkpoint. A compressed file ends a gzip member at every checkpoint, so
+	 * that it could be truncated there and the continued file is still a valid
+	 * multi-member gzip file.
+	 */
+	static class CheckpointedWriter {
+		final FileOutputStream stream;
+		final Path path;
+		final boolean compress;
+		GZIPOutputStream gzip;
+		BufferedWriter writer;
+		private boolean created;
+
+		/**
+		 * @param filename
+		 *            The results filename.
+		 * @param compress
+		 *            Whether to gzip compress the records.
+		 * @param length
+		 *            Number of bytes kept from a previous run, the length at its
+		 *            last checkpoint, or 0 to start over.
+		 */
+		CheckpointedWriter(String filename, boolean compress, long length) throws IOException {
+			if (length > 0) {
+				RandomAccessFile raf = new RandomAccessFile(filename, "rw");
+				try {
+					raf.setLength(length);
+				} finally {
+					raf.close();
+				}
+			}
+			this.stream = new FileOutputStream(filename, length > 0);
+			this.path = Paths.get(filename).toAbsolutePath();
+			this.compress = compress;
+			this.created = length == 0;
+			open();
+		}
+
+		private void open() throws IOException {
+			OutputStream out = stream;
+			if (compress) {
+				gzip = gzip(new NonClosingOutputStream(stream));
+				out = gzip;
+			}
+			writer = new BufferedWriter(new OutputStreamWriter(out), 1 << 16);
+		}
+
+		/**
+		 * End the records written so far.
+		 *
+		 * @return Number of bytes of the file up to the written records.
+		 */
+		long checkpoint() throws IOException {
+			writer.flush();
+			if (compress) {
+				gzip.finish();
+				long rtn = stream.getChannel().position();
+				open();
+				return rtn;
+			}
+			return stream.getChannel().position();
+		}
+
+		/**
+		 * Force the ended records to the disk, and the entry of the file in its
+		 * directory the first time if the file is new.
+		 */
+		void force() throws IOException {
+			stream.getChannel().force(false);
+			if (created) {
+				ProgressJournal.forceDirectory(path.getParent());
+				created = false;
+			}
+		}
+
+		void close() throws IOException {
+			writer.close();
+			stream.close();
+		}
+	}
+
+	/**
+	 * Keeps the file open when a gzip member is finished.
+	 */
+	private static class NonClosingOutputStream extends FilterOutputStream {
+		NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
 }
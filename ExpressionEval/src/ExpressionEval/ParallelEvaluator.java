@@ -0,0 +1,311 @@
+package ExpressionEval;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates one very large expression on a ForkJoinPool.
+ *
+ * The independent subtrees are found directly from the reverse polish
+ * notations: the subtree ending at token i spans the tokens [start[i], i].
+ * Every maximal subtree with fewer than |threshold| tokens is a segment, and
+ * the segments are evaluated in parallel. The remaining operators, whose
+ * subtrees are large, are then applied in order by one stack machine which
+ * reads the value of a segment where its tokens would be.
+ *
+ * For a huge sum of products, the products are evaluated in parallel and the
+ * additions are applied left to right afterwards. Every operator is applied to
+ * exactly the same operands as in ExpressionScorer.evalRpn and nothing is
+ * reassociated, so the result is bit-identical to the sequential evaluation.
+ *
+ * ExpressionEvaluator.evalExpression hands the lines of at least
+ * ExpressionEvaluator.PARALLEL_MIN_TOKENS tokens to an evaluator on the common
+ * pool. The segments and the upper operators check the deadline of the line
+ * like ExpressionScorer.evalRpn.
+ *
+ */
+public class ParallelEvaluator {
+	private static final int DEFAULT_THRESHOLD = 4096;
+
+	private final ForkJoinPool pool;
+	private final int threshold;
+
+	public ParallelEvaluator(ForkJoinPool pool) {
+		this(pool, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param pool
+	 *            Pool evaluating the segments.
+	 * @param threshold
+	 *            Subtrees with fewer tokens are evaluated by a single task.
+	 */
+	public ParallelEvaluator(ForkJoinPool pool, int threshold) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("Threshold should be positive");
+		}
+		this.pool = pool;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Evaluate the values and build binary expression tree given the expression
+	 * tokens, like ExpressionScorer.evalTokens.
+	 *
+	 * @param tokens
+	 *            Token parsed by the InputHandler
+	 * @param useCachedValue
+	 *            Whether to apply the cache optimization for the evaluation.
+	 * @return Value and binary expression tree of the tokens.
+	 */
+	public ExpressionScorer.ExpressionVal evalTokens(List<ExpressionCommon.Token> tokens, boolean useCachedValue) {
+		ExpressionCommon.ParseError error = new ExpressionCommon.ParseError();
+		ExpressionScorer.ExpressionVal rtn = evalTokens(tokens, useCachedValue, error, Deadline.NONE);
+		return rtn == null ? new ExpressionScorer.ExpressionVal(error) : rtn;
+	}
+
+	/**
+	 * Same as evalTokens(tokens, useCachedValue), but reports operators missing
+	 * their operands through |error| and fails with the TIMEOUT error once the
+	 * deadline expires, like ExpressionScorer.evalTokens(tokens, useCachedVal,
+	 * error, deadline).
+	 *
+	 * @param tokens
+	 *            Token parsed by the InputHandler
+	 * @param useCachedValue
+	 *            Whether to apply the cache optimization for the evaluation.
+	 * @param error
+	 *            Filled with the error code and position if the tokens could not
+	 *            be evaluated or the deadline expired.
+	 * @param deadline
+	 *            Deadline of the expression, checked by every segment.
+	 * @return Value and binary expression tree of the tokens, or null if the
+	 *         tokens could not be evaluated.
+	 */
+	public ExpressionScorer.ExpressionVal evalTokens(List<ExpressionCommon.Token> tokens, boolean useCachedValue,
+			ExpressionCommon.ParseError error, Deadline deadline) {
+		try {
+			List<ExpressionCommon.Token> rpnTokens = ExpressionScorer.toRPN(tokens, deadline);
+			if (!ExpressionScorer.checkRpn(rpnTokens, error)) {
+				return null;
+			}
+			Program program = new Program(rpnTokens, useCachedValue, deadline);
+			int[] segmentEnd = findSegments(program);
+			if (segmentEnd[0] == program.size() - 1) {
+				// The whole expression is small enough for a single task.
+				program.evalSegment(0);
+			} else {
+				pool.invoke(new SegmentTask(program, segmentEnd, 0, program.size()));
+			}
+			return program.evalUpper(segmentEnd);
+		} catch (Deadline.Exceeded ex) {
+			return ex.fail(error);
+		}
+	}
+
+	/**
+	 * Helper function to find the segments.
+	 *
+	 * @return For each token, the end of the segment starting at the token, or -1
+	 *         if no segment starts at the token.
+	 */
+	private int[] findSegments(Program program) {
+		int size = program.size();
+		int[] start = new int[size];
+		int[] stack = new int[size];
+		int top = -1;
+		for (int i = 0; i < size; i++) {
+			byte opcode = program.opcodes[i];
+			if (opcode == ExpressionCommon.OP_NUMBER) {
+				start[i] = i;
+			} else if (opcode == ExpressionCommon.OP_UNARY_PLUS || opcode == ExpressionCommon.OP_UNARY_MINUS) {
+				start[i] = start[stack[top--]];
+			} else {
+				top--;
+				start[i] = start[stack[top--]];
+			}
+			stack[++top] = i;
+		}
+		int[] segmentEnd = new int[size];
+		Arrays.fill(segmentEnd, -1);
+		for (int i = 0; i < size; i++) {
+			// Later tokens ending at the same start are ancestors, so the last one
+			// which is still small wins.
+			if (i - start[i] + 1 < threshold) {
+				segmentEnd[start[i]] = i;
+			}
+		}
+		// Only keep the segments which are not inside another segment.
+		for (int i = 0; i < size;) {
+			if (segmentEnd[i] < 0) {
+				i++;
+				continue;
+			}
+			int end = segmentEnd[i];
+			for (int j = i + 1; j <= end; j++) {
+				segmentEnd[j] = -1;
+			}
+			i = end + 1;
+		}
+		return segmentEnd;
+	}
+
+	/**
+	 * Evaluates the segments starting in [from, to), splitting the range until it
+	 * has fewer than |threshold| tokens.
+	 */
+	private class SegmentTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Program program;
+		final int[] segmentEnd;
+		final int from;
+		final int to;
+
+		SegmentTask(Program program, int[] segmentEnd, int from, int to) {
+			this.program = program;
+			this.segmentEnd = segmentEnd;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				for (int i = from; i < to; i++) {
+					if (segmentEnd[i] >= 0) {
+						program.evalSegment(i, segmentEnd[i]);
+					}
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new SegmentTask(program, segmentEnd, from, mid), new SegmentTask(program, segmentEnd, mid, to));
+		}
+	}
+
+	/**
+	 * The reverse polish notations as arrays, plus the value and tree of every
+	 * evaluated segment stored at the index of its last token.
+	 */
+	private static class Program {
+		final byte[] opcodes;
+		final double[] numbers;
+		final int[] positions;
+		final boolean useCachedValue;
+		final Deadline deadline;
+		final double[] values;
+		final ExpressionScorer.Node[] nodes;
+
+		Program(List<ExpressionCommon.Token> rpnTokens, boolean useCachedValue, Deadline deadline) {
+			int size = rpnTokens.size();
+			this.opcodes = new byte[size];
+			this.numbers = new double[size];
+			this.positions = new int[size];
+			for (int i = 0; i < size; i++) {
+				ExpressionCommon.Token token = rpnTokens.get(i);
+				opcodes[i] = ExpressionCommon.toOpcode(token);
+				positions[i] = token.position;
+				if (token.number != null) {
+					numbers[i] = token.number;
+				}
+			}
+			this.useCachedValue = useCachedValue;
+			this.deadline = deadline;
+			this.values = new double[size];
+			this.nodes = new ExpressionScorer.Node[size];
+		}
+
+		int size() {
+			return opcodes.length;
+		}
+
+		void evalSegment(int from) {
+			evalSegment(from, size() - 1);
+		}
+
+		/**
+		 * Evaluate the complete subtree [from, to] with a local stack.
+		 */
+		void evalSegment(int from, int to) {
+			double[] valStack = new double[Math.min(to - from + 1, 64)];
+			ExpressionScorer.Node[] nodeStack = new ExpressionScorer.Node[valStack.length];
+			int top = -1;
+			for (int i = from; i <= to; i++) {
+				if (top + 1 == valStack.length) {
+					valStack = Arrays.copyOf(valStack, valStack.length * 2);
+					nodeStack = Arrays.copyOf(nodeStack, nodeStack.length * 2);
+				}
+				top = step(i, valStack, nodeStack, top);
+			}
+			values[to] = valStack[top];
+			nodes[to] = nodeStack[top];
+		}
+
+		/**
+		 * Apply the operators outside of the segments in order.
+		 */
+		ExpressionScorer.ExpressionVal evalUpper(int[] segmentEnd) {
+			double[] valStack = new double[64];
+			ExpressionScorer.Node[] nodeStack = new ExpressionScorer.Node[64];
+			int top = -1;
+			int i = 0;
+			while (i < size()) {
+				if (top + 1 == valStack.length) {
+					valStack = Arrays.copyOf(valStack, valStack.length * 2);
+					nodeStack = Arrays.copyOf(nodeStack, nodeStack.length * 2);
+				}
+				if (segmentEnd[i] >= 0) {
+					top++;
+					valStack[top] = values[segmentEnd[i]];
+					nodeStack[top] = nodes[segmentEnd[i]];
+					i = segmentEnd[i] + 1;
+				} else {
+					top = step(i, valStack, nodeStack, top);
+					i++;
+				}
+			}
+			return new ExpressionScorer.ExpressionVal(valStack[top], nodeStack[top]);
+		}
+
+		/**
+		 * Execute token |i| on the stacks with the same arithmetic as
+		 * ExpressionScorer.evalRpn.
+		 *
+		 * @return The new top of the stacks.
+		 * @throws Deadline.Exceeded
+		 *             If the deadline expired.
+		 */
+		private int step(int i, double[] valStack, ExpressionScorer.Node[] nodeStack, int top) {
+			deadline.check(i, positions[i]);
+			byte opcode = opcodes[i];
+			switch (opcode) {
+			case ExpressionCommon.OP_NUMBER:
+				top++;
+				valStack[top] = numbers[i];
+				nodeStack[top] = new ExpressionScorer.Node(DoubleFormatter.toString(numbers[i]));
+				return top;
+			case ExpressionCommon.OP_UNARY_PLUS:
+				nodeStack[top] = new ExpressionScorer.Node("+", null, nodeStack[top]);
+				return top;
+			case ExpressionCommon.OP_UNARY_MINUS:
+				valStack[top] = -1 * valStack[top];
+				nodeStack[top] = new ExpressionScorer.Node("-", null, nodeStack[top]);
+				return top;
+			case ExpressionCommon.OP_ADD:
+			case ExpressionCommon.OP_SUBTRACT:
+				valStack[top - 1] = ExpressionScorer.applyBinary(opcode, valStack[top - 1], valStack[top]);
+				break;
+			default:
+				valStack[top - 1] = ExpressionScorer.applyCached(opcode, valStack[top - 1], valStack[top],
+						useCachedValue);
+			}
+			nodeStack[top - 1] = new ExpressionScorer.Node(ExpressionCommon.opcodeSymbol(opcode), nodeStack[top - 1],
+					nodeStack[top]);
+			nodeStack[top] = null;
+			return top - 1;
+		}
+	}
+}
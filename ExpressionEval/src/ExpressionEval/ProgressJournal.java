@@ -0,0 +1,320 @@
+package ExpressionEval;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the progress of evaluating one input file, so that a run which
+ * dies could resume instead of starting over from line 0.
+ *
+ * The journal records the watermark, i.e. every line below it is done and its
+ * output file is closed. Lines could complete out of order, e.g. on the
+ * threads of BatchScheduler; the completed lines above the watermark are kept
+ * in a bit set until the gap below them is filled.
+ *
+ * The journal is checkpointed every CHECKPOINT_LINES lines or CHECKPOINT_MILLIS
+ * milliseconds, whichever comes first, by writing a temporary file, forcing it
+ * to the disk and atomically renaming it over the journal, so a crash leaves
+ * either the old or the new checkpoint.
+ *
+ * With one output file per line, the checkpoint survives a crash of the JVM
+ * only: the closed output files are in the page cache of the OS and could be
+ * lost with it. Forcing them is opt-in, since it costs one fsync per line: the
+ * journal then holds the output file of each line open and forces it before
+ * the checkpoint covering it, at most MAX_PENDING_OUTPUTS at a time.
+ *
+ * With one consolidated results file, see attach, the checkpoint is a group
+ * commit: it ends the records written since the last one, forces the file
+ * once for the whole window and records its length, so a resumed run
+ * truncates the file there and appends. Such a checkpoint survives a crash of
+ * the OS too.
+ *
+ * The journal also records a fingerprint of the input file and is ignored if
+ * the input changed. It is deleted once the whole file is done, so a later run
+ * evaluates the file again.
+ *
+ */
+public class ProgressJournal {
+	private static final String HEADER = "ExpressionEval progress journal 1";
+	private static final int CHECKPOINT_LINES = 16 * 1024;
+	private static final long CHECKPOINT_MILLIS = 1000;
+	private static final int FINGERPRINT_BYTES = 64 * 1024;
+	static final int MAX_PENDING_OUTPUTS = 256;
+
+	private final Path journalPath;
+	private final Path tmpPath;
+	private final Path directoryPath;
+	private final String fingerprint;
+	private final boolean forceOutputs;
+	private final long resumeLine;
+	private long watermark;
+	// Bit i is set if line base + i is done.
+	private BitSet done = new BitSet();
+	private long base;
+	private long checkpointedWatermark;
+	private long lastCheckpointMillis = System.currentTimeMillis();
+	private final List<FileOutputStream> pendingOutputs = new ArrayList<FileOutputStream>();
+	private final long resumeOutputBytes;
+	private OutputHandler.CheckpointedWriter output;
+
+	private ProgressJournal(String inputFilename, boolean forceOutputs) throws IOException {
+		this.journalPath = Paths.get(inputFilename + ".journal");
+		this.tmpPath = Paths.get(inputFilename + ".journal.tmp");
+		this.directoryPath = journalPath.toAbsolutePath().getParent();
+		this.fingerprint = fingerprint(inputFilename);
+		this.forceOutputs = forceOutputs;
+		String[] checkpoint = readCheckpoint();
+		this.resumeLine = checkpoint == null ? 0 : Long.parseLong(checkpoint[0]);
+		this.resumeOutputBytes = checkpoint == null || checkpoint.length < 2 ? 0 : Long.parseLong(checkpoint[1]);
+		this.watermark = resumeLine;
+		this.base = resumeLine;
+		this.checkpointedWatermark = resumeLine;
+	}
+
+	/**
+	 * Open the journal of an input file, named after it with the suffix
+	 * ".journal". The output files are not forced to the disk.
+	 *
+	 * @param inputFilename
+	 *            The input filename.
+	 * @return The journal, resuming from the last checkpoint if the input file is
+	 *         the same.
+	 */
+	public static ProgressJournal open(String inputFilename) throws IOException {
+		return new ProgressJournal(inputFilename, false);
+	}
+
+	/**
+	 * Same as open(inputFilename), but the output files are forced only if
+	 * |forceOutputs| is true.
+	 *
+	 * @param inputFilename
+	 *            The input filename.
+	 * @param forceOutputs
+	 *            Whether to force the output files to the disk before a
+	 *            checkpoint covers them.
+	 * @return The journal, resuming from the last checkpoint if the input file is
+	 *         the same.
+	 */
+	public static ProgressJournal open(String inputFilename, boolean forceOutputs) throws IOException {
+		return new ProgressJournal(inputFilename, forceOutputs);
+	}
+
+	/**
+	 * @return The line to resume from. Every line below it is already done.
+	 */
+	public long resumeLine() {
+		return resumeLine;
+	}
+
+	/**
+	 * @return Length of the consolidated results file at the last checkpoint, see
+	 *         attach, or 0.
+	 */
+	public long resumeOutputBytes() {
+		return resumeOutputBytes;
+	}
+
+	/**
+	 * Attach the consolidated results file the lines are written to in order, so
+	 * that every checkpoint forces it once and records its length.
+	 */
+	synchronized void attach(OutputHandler.CheckpointedWriter output) {
+		this.output = output;
+	}
+
+	/**
+	 * Record that a line is done. The journal takes its output file: it is closed
+	 * at once, or held open until it is forced if the outputs are forced.
+	 *
+	 * @param line
+	 *            The line number, starting from 0.
+	 * @param output
+	 *            The written output file of the line. Could be null.
+	 */
+	public synchronized void markDone(long line, FileOutputStream output) throws IOException {
+		if (output != null) {
+			if (forceOutputs) {
+				pendingOutputs.add(output);
+				if (pendingOutputs.size() >= MAX_PENDING_OUTPUTS) {
+					forcePendingOutputs();
+				}
+			} else {
+				output.close();
+			}
+		}
+		if (line < watermark) {
+			return;
+		}
+		done.set((int) (line - base));
+		if (line == watermark) {
+			int next = done.nextClearBit((int) (watermark - base));
+			watermark = base + next;
+			if (next > 64 * 1024) {
+				// Drop the bits below the watermark.
+				done = done.get(next, Math.max(next, done.length()));
+				base = watermark;
+			}
+		}
+		if (watermark - checkpointedWatermark >= CHECKPOINT_LINES
+				|| (watermark > checkpointedWatermark
+						&& System.currentTimeMillis() - lastCheckpointMillis >= CHECKPOINT_MILLIS)) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * @return Every line below the watermark is done.
+	 */
+	public synchronized long watermark() {
+		return watermark;
+	}
+
+	/**
+	 * Write the watermark to the journal now.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		forcePendingOutputs();
+		String content = HEADER + "\n" + fingerprint + "\n" + watermark + "\n";
+		if (output != null) {
+			long outputBytes = output.checkpoint();
+			output.force();
+			content += outputBytes + "\n";
+		}
+		FileOutputStream fos = new FileOutputStream(tmpPath.toFile());
+		try {
+			fos.write(content.getBytes(StandardCharsets.UTF_8));
+			fos.getChannel().force(true);
+		} finally {
+			fos.close();
+		}
+		Files.move(tmpPath, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		if (forceOutputs || output != null) {
+			forceDirectory(directoryPath);
+		}
+		checkpointedWatermark = watermark;
+		lastCheckpointMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Finish the journal. If all |lines| lines are done, the journal is deleted,
+	 * otherwise the last watermark is checkpointed. The held output files are
+	 * closed either way.
+	 */
+	public synchronized void close(long lines) throws IOException {
+		if (watermark >= lines) {
+			forcePendingOutputs();
+			Files.deleteIfExists(journalPath);
+		} else if (watermark > checkpointedWatermark) {
+			checkpoint();
+		} else {
+			forcePendingOutputs();
+		}
+	}
+
+	/**
+	 * Helper function to force the data of the pending output files and close
+	 * them, without forcing their directory entries yet.
+	 */
+	private void forcePendingOutputs() throws IOException {
+		IOException failure = null;
+		for (FileOutputStream output : pendingOutputs) {
+			try {
+				try {
+					output.getChannel().force(false);
+				} finally {
+					output.close();
+				}
+			} catch (IOException ex) {
+				if (failure == null) {
+					failure = ex;
+				}
+			}
+		}
+		pendingOutputs.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Helper function to force the entries of a directory, e.g. the one of the
+	 * input where the output files and the journal are. Some platforms, e.g.
+	 * Windows, could not open a directory and do not need it.
+	 */
+	static void forceDirectory(Path directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException ex) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Helper function to read the watermark and, if any, the length of the
+	 * consolidated results file of the last checkpoint.
+	 *
+	 * @return The fields, or null if there is no valid checkpoint of this input.
+	 */
+	private String[] readCheckpoint() throws IOException {
+		if (!Files.exists(journalPath)) {
+			return null;
+		}
+		List<String> lines = Files.readAllLines(journalPath, StandardCharsets.UTF_8);
+		if (lines.size() < 3 || !lines.get(0).equals(HEADER) || !lines.get(1).equals(fingerprint)) {
+			return null;
+		}
+		String[] rtn = lines.subList(2, Math.min(lines.size(), 4)).toArray(new String[0]);
+		try {
+			for (String field : rtn) {
+				Long.parseLong(field);
+			}
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+		return rtn;
+	}
+
+	/**
+	 * Helper function to fingerprint the input file by its size, last modified
+	 * time and the CRC of its first and last bytes, without reading all of it.
+	 */
+	private static String fingerprint(String filename) throws IOException {
+		File file = new File(filename);
+		CRC32 crc = new CRC32();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			byte[] buffer = new byte[(int) Math.min(size, FINGERPRINT_BYTES)];
+			raf.readFully(buffer);
+			crc.update(buffer);
+			if (size > FINGERPRINT_BYTES) {
+				raf.seek(Math.max(FINGERPRINT_BYTES, size - FINGERPRINT_BYTES));
+				int length = raf.read(buffer);
+				crc.update(buffer, 0, Math.max(0, length));
+			}
+			return size + " " + file.lastModified() + " " + Long.toHexString(crc.getValue());
+		} finally {
+			raf.close();
+		}
+	}
+}
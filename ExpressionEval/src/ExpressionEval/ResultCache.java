@@ -0,0 +1,209 @@
+package ExpressionEval;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of whole-expression results, checked before an expression is
+ * tokenized. The key is a 128 bit hash of the expression exactly as given.
+ * Spaces are kept in the key since they separate tokens, e.g. "1 2" is not
+ * "12", so lines differing only in their spaces are cached separately.
+ *
+ * The cached ExpressionVal, including its binary expression tree, is shared by
+ * every line with the same expression, so callers must not modify it. Invalid
+ * expressions are not cached because the position of their error depends on
+ * the spaces.
+ *
+ * The cache is split into segments, each one an LRU map guarded by its own
+ * lock, so that the threads of BatchScheduler could share one instance. The
+ * capacities of the segments add up to the capacity of the cache, and a small
+ * cache has fewer segments so that each one holds at least one expression.
+ *
+ */
+public class ResultCache {
+	private static final int SEGMENTS = 16;
+	private static final long SEED_1 = 0x9E3779B97F4A7C15L;
+	private static final long SEED_2 = 0xC2B2AE3D27D4EB4FL;
+
+	private final Segment[] segments;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            Maximum number of cached expressions.
+	 */
+	public ResultCache(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity should be positive");
+		}
+		// A power of two, so a segment is selected by masking the hash.
+		int count = Math.min(SEGMENTS, Integer.highestOneBit(capacity));
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Evaluate the expression, or return the cached result if the same
+	 * expression has been evaluated before.
+	 *
+	 * @param expression
+	 *            Expression in string.
+	 * @param useCachedValue
+	 *            If applying the cache optimization of ExpressionScorer.
+	 * @return Value and binary expression tree, or the error of the expression.
+	 */
+	public ExpressionScorer.ExpressionVal evalExpression(String expression, boolean useCachedValue) {
+		return evalExpression(expression, useCachedValue, Deadline.NONE);
+	}
+
+	/**
+	 * Same as evalExpression(expression, useCachedValue), but a missed expression
+	 * is evaluated with a deadline. Like other errors, the TIMEOUT error is not
+	 * cached.
+	 *
+	 * @param expression
+	 *            Expression in string.
+	 * @param useCachedValue
+	 *            If applying the cache optimization of ExpressionScorer.
+	 * @param deadline
+	 *            Deadline of the expression.
+	 * @return Value and binary expression tree, or the error of the expression.
+	 */
+	public ExpressionScorer.ExpressionVal evalExpression(String expression, boolean useCachedValue,
+			Deadline deadline) {
+		if (expression == null) {
+			return ExpressionEvaluator.evalExpression(null, useCachedValue);
+		}
+		Key key = new Key(expression);
+		Segment segment = segments[(int) (key.hash2 >>> 32) & (segments.length - 1)];
+		ExpressionScorer.ExpressionVal rtn;
+		synchronized (segment) {
+			rtn = segment.get(key);
+		}
+		if (rtn != null) {
+			hits.increment();
+			return rtn;
+		}
+		misses.increment();
+		rtn = ExpressionEvaluator.evalExpression(expression, useCachedValue, deadline);
+		if (!rtn.hasError()) {
+			synchronized (segment) {
+				segment.put(key, rtn);
+			}
+		}
+		return rtn;
+	}
+
+	public long hitCount() {
+		return hits.sum();
+	}
+
+	public long missCount() {
+		return misses.sum();
+	}
+
+	public long evictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return Ratio of lookups served by the cache, or 0 if there are none.
+	 */
+	public double hitRate() {
+		long hit = hits.sum();
+		long total = hit + misses.sum();
+		return total == 0 ? 0 : (double) hit / total;
+	}
+
+	/**
+	 * @return Number of the cached expressions.
+	 */
+	public int size() {
+		int rtn = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				rtn += segment.size();
+			}
+		}
+		return rtn;
+	}
+
+	@Override
+	public String toString() {
+		return "ResultCache{size=" + size() + ", hits=" + hitCount() + ", misses=" + missCount() + ", evictions="
+				+ evictionCount() + ", hitRate=" + hitRate() + "}";
+	}
+
+	/**
+	 * An LRU map of a fixed capacity.
+	 */
+	private class Segment extends LinkedHashMap<Key, ExpressionScorer.ExpressionVal> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, ExpressionScorer.ExpressionVal> eldest) {
+			if (size() > capacity) {
+				evictions.increment();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Two independent 64 bit hashes of the expression. The expression itself is
+	 * not kept, so the memory of a cache entry does not depend on the length of
+	 * the expression.
+	 */
+	private static class Key {
+		final long hash1;
+		final long hash2;
+
+		Key(String expression) {
+			long h1 = SEED_1;
+			long h2 = SEED_2;
+			for (int i = 0; i < expression.length(); i++) {
+				char c = expression.charAt(i);
+				h1 = (h1 ^ c) * 0x100000001B3L;
+				h2 = Long.rotateLeft(h2 ^ (c * 0xFF51AFD7ED558CCDL), 31) * 0x9E3779B97F4A7C15L;
+			}
+			this.hash1 = mix(h1);
+			this.hash2 = mix(h2);
+		}
+
+		private static long mix(long h) {
+			h ^= h >>> 33;
+			h *= 0xFF51AFD7ED558CCDL;
+			h ^= h >>> 33;
+			h *= 0xC4CEB9FE1A85EC53L;
+			h ^= h >>> 33;
+			return h;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (hash1 ^ (hash1 >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash1 == other.hash1 && hash2 == other.hash2;
+		}
+	}
+}
@@ -0,0 +1,462 @@
+package ExpressionEval;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates one huge input file with several local worker JVMs, so that the
+ * evaluation is not limited by a single heap and a single GC.
+ *
+ * The coordinator scans the file once to split it into line-aligned byte
+ * ranges and to count the lines before each range, so the line numbers and
+ * the output filenames stay global. Each worker evaluates its range with
+ * ExpressionEvaluator.evalExpression and writes either the usual output files
+ * or the records of its range into a part of the consolidated results file,
+ * which the coordinator concatenates in order at the end.
+ *
+ * A worker reports its progress every PROGRESS_LINES lines after flushing its
+ * output. If it crashes, the range is reassigned to a new worker starting from
+ * the last reported line, and the records written after that report are
+ * truncated from the part.
+ *
+ * The input file must not be compressed, since a gzip stream could not be
+ * split at byte offsets. The consolidated results file could be.
+ *
+ * Lines are split like BufferedReader.readLine, at \n, \r or \r\n, and decoded
+ * with the default charset, which must be a charset where these bytes do not
+ * occur inside other characters, e.g. UTF-8 or ISO-8859-1.
+ *
+ */
+public class ShardCoordinator {
+	static final int PROGRESS_LINES = 4096;
+	private static final String PROGRESS = "progress";
+	private static final String GZIP = "gzip";
+
+	private final int workers;
+	private final int maxAttempts;
+	private final List<String> jvmOptions;
+
+	public ShardCoordinator(int workers) {
+		this(workers, 3, new ArrayList<String>());
+	}
+
+	/**
+	 * @param workers
+	 *            Number of the worker JVMs, and of the ranges.
+	 * @param maxAttempts
+	 *            Number of times a range is started before the file fails.
+	 * @param jvmOptions
+	 *            Options of the worker JVMs, e.g. "-Xmx1g".
+	 */
+	public ShardCoordinator(int workers, int maxAttempts, List<String> jvmOptions) {
+		if (workers <= 0 || maxAttempts <= 0) {
+			throw new IllegalArgumentException("Workers and attempts should be positive");
+		}
+		this.workers = workers;
+		this.maxAttempts = maxAttempts;
+		this.jvmOptions = jvmOptions;
+	}
+
+	/**
+	 * Evaluate a file with the worker JVMs and wait until all of them are done.
+	 *
+	 * @param filename
+	 *            The input filename.
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @param consolidatedFilename
+	 *            If not null, all the results are written into this file, see
+	 *            OutputHandler.writeRecord, instead of one file per line. It is
+	 *            gzip compressed if its name ends with ".gz".
+	 * @return Number of the evaluated lines.
+	 */
+	public long evalFile(String filename, boolean useCachedValue, String consolidatedFilename)
+			throws IOException, InterruptedException {
+		if (InputHandler.isGzip(filename)) {
+			throw new IOException("A compressed file could not be split into byte ranges: " + filename);
+		}
+		List<Range> ranges = split(filename, workers);
+		Workers running = new Workers();
+		ExecutorService executor = Executors.newFixedThreadPool(ranges.size());
+		boolean done = false;
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (final Range range : ranges) {
+				futures.add(executor.submit(() -> {
+					runRange(filename, useCachedValue, consolidatedFilename, range, running);
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+				}
+			}
+			if (consolidatedFilename != null) {
+				concatenate(ranges, consolidatedFilename);
+			}
+			done = true;
+		} finally {
+			List<Process> destroyed = new ArrayList<Process>();
+			if (!done) {
+				// The threads of the other ranges block reading the output of their
+				// worker or waiting for it, which an interrupt does not stop.
+				destroyed = running.stop();
+			}
+			executor.shutdownNow();
+			if (!done) {
+				try {
+					for (Process process : destroyed) {
+						process.waitFor(1, TimeUnit.MINUTES);
+					}
+					executor.awaitTermination(1, TimeUnit.MINUTES);
+				} finally {
+					for (Range range : ranges) {
+						for (String partFilename : range.parts) {
+							new File(partFilename).delete();
+						}
+					}
+				}
+			}
+		}
+		long rtn = 0;
+		for (Range range : ranges) {
+			rtn += range.lines;
+		}
+		return rtn;
+	}
+
+	/**
+	 * Helper function to split the file into line-aligned byte ranges and count
+	 * the lines before each of them.
+	 */
+	static List<Range> split(String filename, int count) throws IOException {
+		List<Range> rtn = new ArrayList<Range>();
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+			long offset = 0;
+			long lines = 0;
+			long rangeStart = 0;
+			long rangeFirstLine = 0;
+			long nextCut = size / count;
+			boolean lastWasCr = false;
+			while (channel.read(buffer) > 0) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					byte b = buffer.get();
+					offset++;
+					boolean newLine = b == '\n';
+					if (b == '\r' || (newLine && !lastWasCr)) {
+						lines++;
+					}
+					lastWasCr = b == '\r';
+					// Only cut after \n so that \r\n is never split.
+					if (newLine && offset >= nextCut && rtn.size() < count - 1 && offset < size) {
+						rtn.add(new Range(rtn.size(), rangeStart, offset, rangeFirstLine));
+						rangeStart = offset;
+						rangeFirstLine = lines;
+						nextCut = Math.max(offset + 1, size * (rtn.size() + 1) / count);
+					}
+				}
+				buffer.clear();
+			}
+			rtn.add(new Range(rtn.size(), rangeStart, size, rangeFirstLine));
+		} finally {
+			file.close();
+		}
+		return rtn;
+	}
+
+	/**
+	 * Run workers for the range until it is done, restarting from the last
+	 * reported progress after a crash.
+	 */
+	private void runRange(String filename, boolean useCachedValue, String consolidatedFilename, Range range,
+			Workers running) throws IOException, InterruptedException {
+		long start = range.start;
+		long nextLine = range.firstLine;
+		for (int attempt = 0;; attempt++) {
+			String partFilename = null;
+			if (consolidatedFilename != null) {
+				partFilename = consolidatedFilename + ".part" + range.index + "_" + attempt;
+				range.parts.add(partFilename);
+			}
+			List<String> command = new ArrayList<String>();
+			command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			command.addAll(jvmOptions);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(ShardCoordinator.class.getName());
+			command.add(filename);
+			command.add(String.valueOf(start));
+			command.add(String.valueOf(range.end));
+			command.add(String.valueOf(nextLine));
+			command.add(String.valueOf(useCachedValue));
+			if (partFilename != null) {
+				command.add(partFilename);
+				if (consolidatedFilename.endsWith(".gz")) {
+					command.add(GZIP);
+				}
+			}
+			Process process = running
+					.start(new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT));
+			long reportedStart = start;
+			long reportedLine = nextLine;
+			long reportedPartBytes = 0;
+			BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					String[] fields = line.split(" ");
+					if (fields.length == 4 && fields[0].equals(PROGRESS)) {
+						reportedStart = Long.parseLong(fields[1]);
+						reportedLine = Long.parseLong(fields[2]);
+						reportedPartBytes = Long.parseLong(fields[3]);
+						onProgress(range, attempt, process);
+					}
+				}
+			} catch (IOException e) {
+				// The output is closed by destroying the worker, count it as a failure.
+				process.destroyForcibly();
+			} finally {
+				br.close();
+			}
+			int exitValue = process.waitFor();
+			running.exited(process);
+			if (exitValue == 0 && reportedStart == range.end) {
+				range.lines = reportedLine - range.firstLine;
+				return;
+			}
+			if (attempt + 1 >= maxAttempts) {
+				throw new IOException("Worker of range " + range.index + " of " + filename + " failed " + maxAttempts
+						+ " times");
+			}
+			// Keep the records up to the last progress and continue from there.
+			if (partFilename != null) {
+				RandomAccessFile part = new RandomAccessFile(partFilename, "rw");
+				try {
+					part.setLength(reportedPartBytes);
+				} finally {
+					part.close();
+				}
+			}
+			start = reportedStart;
+			nextLine = reportedLine;
+		}
+	}
+
+	/**
+	 * Called on the thread of the range whenever its worker reports progress.
+	 * Does nothing; the tests override it to kill a worker in the middle of its
+	 * range.
+	 */
+	void onProgress(Range range, int attempt, Process process) {
+	}
+
+	/**
+	 * The live worker processes of a file, so that they could be destroyed once
+	 * the file fails.
+	 */
+	private static class Workers {
+		private final Set<Process> processes = new HashSet<Process>();
+		private boolean stopped;
+
+		synchronized Process start(ProcessBuilder builder) throws IOException {
+			if (stopped) {
+				throw new IOException("The file failed");
+			}
+			Process rtn = builder.start();
+			processes.add(rtn);
+			return rtn;
+		}
+
+		synchronized void exited(Process process) {
+			processes.remove(process);
+		}
+
+		/**
+		 * Destroy the live workers and start no more.
+		 *
+		 * @return The destroyed workers, which could still be exiting.
+		 */
+		synchronized List<Process> stop() {
+			stopped = true;
+			List<Process> rtn = new ArrayList<Process>(processes);
+			for (Process process : rtn) {
+				process.destroyForcibly();
+			}
+			processes.clear();
+			return rtn;
+		}
+	}
+
+	/**
+	 * Helper function to concatenate the parts of the ranges in order and delete
+	 * them.
+	 */
+	private static void concatenate(List<Range> ranges, String consolidatedFilename) throws IOException {
+		FileOutputStream fos = new FileOutputStream(consolidatedFilename);
+		try {
+			FileChannel out = fos.getChannel();
+			for (Range range : ranges) {
+				for (String partFilename : range.parts) {
+					FileInputStream fis = new FileInputStream(partFilename);
+					try {
+						FileChannel in = fis.getChannel();
+						long position = 0;
+						long size = in.size();
+						while (position < size) {
+							position += in.transferTo(position, size - position, out);
+						}
+					} finally {
+						fis.close();
+					}
+					new File(partFilename).delete();
+				}
+			}
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Entry point of a worker JVM.
+	 *
+	 * Usage: ShardCoordinator <filename> <start> <end> <first line>
+	 * <useCachedValue> [part filename [gzip]]
+	 */
+	public static void main(String[] args) throws IOException {
+		String filename = args[0];
+		long start = Long.parseLong(args[1]);
+		long end = Long.parseLong(args[2]);
+		long lineNum = Long.parseLong(args[3]);
+		boolean useCachedValue = Boolean.parseBoolean(args[4]);
+		String partFilename = args.length > 5 ? args[5] : null;
+		boolean compress = args.length > 6 && args[6].equals(GZIP);
+
+		FileInputStream fis = new FileInputStream(filename);
+		OutputHandler.CheckpointedWriter part = partFilename == null ? null
+				: new OutputHandler.CheckpointedWriter(partFilename, compress, 0);
+		try {
+			fis.getChannel().position(start);
+			LineReader reader = new LineReader(new BufferedInputStream(fis, 1 << 16), start, end);
+			long evaluated = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				ExpressionScorer.ExpressionVal rtn = ExpressionEvaluator.evalExpression(line, useCachedValue);
+				if (part == null) {
+					OutputHandler.writeFile(rtn, filename, lineNum);
+				} else {
+					OutputHandler.writeRecord(part.writer, rtn, filename, lineNum);
+				}
+				lineNum++;
+				if (++evaluated % PROGRESS_LINES == 0) {
+					reportProgress(reader.offset, lineNum, part);
+				}
+			}
+			reportProgress(end, lineNum, part);
+		} finally {
+			fis.close();
+			if (part != null) {
+				part.close();
+			}
+		}
+	}
+
+	private static void reportProgress(long offset, long lineNum, OutputHandler.CheckpointedWriter part) throws IOException {
+		long partBytes = part == null ? 0 : part.checkpoint();
+		System.out.println(PROGRESS + " " + offset + " " + lineNum + " " + partBytes);
+		System.out.flush();
+	}
+
+	/**
+	 * A line-aligned byte range of the input file.
+	 */
+	static class Range {
+		final int index;
+		final long start;
+		final long end;
+		final long firstLine;
+		// Parts of the consolidated results file, one per attempt.
+		final List<String> parts = new ArrayList<String>();
+		long lines;
+
+		Range(int index, long start, long end, long firstLine) {
+			this.index = index;
+			this.start = start;
+			this.end = end;
+			this.firstLine = firstLine;
+		}
+	}
+
+	/**
+	 * Reads the lines of a byte range and tracks the offset of the next line.
+	 */
+	private static class LineReader {
+		final InputStream in;
+		final long end;
+		long offset;
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		LineReader(InputStream in, long start, long end) {
+			this.in = in;
+			this.offset = start;
+			this.end = end;
+		}
+
+		String readLine() throws IOException {
+			if (offset >= end) {
+				return null;
+			}
+			line.reset();
+			while (offset < end) {
+				int b = in.read();
+				if (b < 0) {
+					break;
+				}
+				offset++;
+				if (b == '\n') {
+					break;
+				}
+				if (b == '\r') {
+					if (offset < end) {
+						in.mark(1);
+						if (in.read() == '\n') {
+							offset++;
+						} else {
+							in.reset();
+						}
+					}
+					break;
+				}
+				line.write(b);
+			}
+			return line.toString();
+		}
+	}
+}
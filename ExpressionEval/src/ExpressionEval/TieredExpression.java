@@ -0,0 +1,86 @@
+package ExpressionEval;
+
+import java.util.List;
+
+/**
+ * A compiled expression evaluated by the interpreter of CompiledExpression
+ * until it is hot, then by a class generated by BytecodeCompiler, so that only
+ * the expressions evaluated many times pay for generating a class.
+ *
+ * The expression is promoted on its threshold-th evaluation. Its value is the
+ * same before and after the promotion, bit for bit. An expression which could
+ * not be generated, e.g. a too large one, stays interpreted.
+ *
+ * It could be shared by threads, the invocation count is approximate then.
+ *
+ */
+public class TieredExpression {
+	/**
+	 * Number of evaluations before the promotion by default.
+	 */
+	public static final int DEFAULT_THRESHOLD = 10000;
+
+	private final CompiledExpression compiled;
+	private final int threshold;
+	private final BytecodeCompiler compiler;
+	private int invocations;
+	private volatile BytecodeCompiler.Kernel kernel;
+
+	/**
+	 * @param compiled
+	 *            The compiled expression.
+	 */
+	public TieredExpression(CompiledExpression compiled) {
+		this(compiled, DEFAULT_THRESHOLD, BytecodeCompiler.shared());
+	}
+
+	/**
+	 * @param compiled
+	 *            The compiled expression.
+	 * @param threshold
+	 *            Number of evaluations before the promotion.
+	 * @param compiler
+	 *            Generator and cache of the generated classes.
+	 */
+	public TieredExpression(CompiledExpression compiled, int threshold, BytecodeCompiler compiler) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("Threshold should be positive");
+		}
+		this.compiled = compiled;
+		this.threshold = threshold;
+		this.compiler = compiler;
+	}
+
+	/**
+	 * Compile the tokens of an expression, see CompiledExpression.compile.
+	 */
+	public static TieredExpression compile(List<ExpressionCommon.Token> tokens, boolean specialize) {
+		return new TieredExpression(CompiledExpression.compile(tokens, specialize));
+	}
+
+	/**
+	 * @return Value of the expression.
+	 */
+	public double eval() {
+		BytecodeCompiler.Kernel rtn = kernel;
+		if (rtn != null) {
+			return rtn.eval();
+		}
+		// Stop counting at the threshold, so the promotion is tried once.
+		if (invocations < threshold && ++invocations == threshold) {
+			rtn = compiler.compile(compiled);
+			if (rtn != null) {
+				kernel = rtn;
+				return rtn.eval();
+			}
+		}
+		return compiled.eval();
+	}
+
+	/**
+	 * @return Whether the expression is evaluated by a generated class.
+	 */
+	public boolean isPromoted() {
+		return kernel != null;
+	}
+}
@@ -0,0 +1,297 @@
+package ExpressionEval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates many expression files with one thread per file and one thread per
+ * output write, so that the blocking reads of the input files and the writes
+ * of the output files never hold a core. On Java 21 or later the threads are
+ * virtual threads; on older JVMs they come from a cached pool of platform
+ * threads, which works the same but costs more per thread.
+ *
+ * The CPU-bound evaluation is bounded separately by a semaphore with one
+ * permit per core, taken for a batch of EVAL_BATCH lines at a time, so the
+ * evaluations never oversubscribe the cores however many files are blocked on
+ * I/O. The evaluated lines waiting for their writes are bounded too, so a fast
+ * reader does not fill the heap.
+ *
+ * The result is the same as BatchScheduler.evalFiles: the ordered output
+ * filenames of each file, or null for a failed file. So are the time budgets
+ * of the lines and files; the budget of a line covers its evaluation, its
+ * wait for a write thread and its rendering.
+ *
+ */
+public class VirtualThreadScheduler {
+	static final int EVAL_BATCH = 64;
+
+	private final ExecutorService executor;
+	private final boolean virtual;
+	private final Semaphore cpuPermits;
+	private final Semaphore pendingWrites;
+	private final ResultCache resultCache;
+	private final long expressionBudgetNanos;
+	private final long fileBudgetNanos;
+
+	public VirtualThreadScheduler() {
+		this(Runtime.getRuntime().availableProcessors(), null);
+	}
+
+	/**
+	 * @param cpuPermits
+	 *            Maximum number of threads evaluating at the same time.
+	 * @param resultCache
+	 *            Cache of whole-expression results shared by the threads. Could
+	 *            be null.
+	 */
+	public VirtualThreadScheduler(int cpuPermits, ResultCache resultCache) {
+		this(cpuPermits, resultCache, 0, 0);
+	}
+
+	/**
+	 * @param cpuPermits
+	 *            Maximum number of threads evaluating at the same time.
+	 * @param resultCache
+	 *            Cache of whole-expression results shared by the threads. Could
+	 *            be null.
+	 * @param expressionBudgetNanos
+	 *            Budget of each line in nanoseconds, or 0 for no time limit.
+	 * @param fileBudgetNanos
+	 *            Budget of each file in nanoseconds from the start of its
+	 *            evaluation, or 0 for no time limit.
+	 */
+	public VirtualThreadScheduler(int cpuPermits, ResultCache resultCache, long expressionBudgetNanos,
+			long fileBudgetNanos) {
+		if (cpuPermits <= 0) {
+			throw new IllegalArgumentException("CPU permits should be positive");
+		}
+		ExecutorService virtualExecutor = newVirtualThreadPerTaskExecutor();
+		this.virtual = virtualExecutor != null;
+		this.executor = virtual ? virtualExecutor : Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread rtn = new Thread(r, "VirtualThreadScheduler-" + count.incrementAndGet());
+				rtn.setDaemon(true);
+				return rtn;
+			}
+		});
+		this.cpuPermits = new Semaphore(cpuPermits);
+		// Platform threads are expensive, so fewer writes are in flight without
+		// virtual threads.
+		this.pendingWrites = new Semaphore(virtual ? 4096 : 64 * cpuPermits);
+		this.resultCache = resultCache;
+		this.expressionBudgetNanos = expressionBudgetNanos;
+		this.fileBudgetNanos = fileBudgetNanos;
+	}
+
+	/**
+	 * @return Executors.newVirtualThreadPerTaskExecutor() if the JVM has virtual
+	 *         threads, otherwise null.
+	 */
+	static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Whether the threads are virtual threads.
+	 */
+	public boolean usesVirtualThreads() {
+		return virtual;
+	}
+
+	/**
+	 * Evaluate all the files and wait until all of them are done.
+	 *
+	 * @param filenames
+	 *            The input filenames.
+	 * @param useCachedValue
+	 *            If applying the cache optimization to improve performance.
+	 * @param listener
+	 *            Notified when each file is done. Could be null.
+	 * @return Output filenames of each file in the order of |filenames|. The entry
+	 *         of a failed file is null.
+	 */
+	public List<List<String>> evalFiles(List<String> filenames, boolean useCachedValue,
+			BatchScheduler.FileCompletionListener listener) {
+		List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+		for (String filename : filenames) {
+			futures.add(executor.submit(() -> evalFile(filename, useCachedValue, listener)));
+		}
+		List<List<String>> rtn = new ArrayList<List<String>>();
+		boolean interrupted = false;
+		for (Future<List<String>> future : futures) {
+			while (true) {
+				try {
+					rtn.add(future.get());
+					break;
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				} catch (ExecutionException ex) {
+					rtn.add(null);
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return rtn;
+	}
+
+	/**
+	 * Stop the threads once the submitted files are done.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Helper function to evaluate one file on its own thread.
+	 *
+	 * @return The output filenames, or null if the file failed.
+	 */
+	private List<String> evalFile(String filename, boolean useCachedValue,
+			BatchScheduler.FileCompletionListener listener) {
+		Deadline fileDeadline = Deadline.after(fileBudgetNanos);
+		List<String> lines;
+		try {
+			lines = InputHandler.readFile(filename);
+		} catch (Exception ex) {
+			if (listener != null) {
+				listener.onFileFailed(filename, ex);
+			}
+			return null;
+		}
+		FileWrites writes = new FileWrites(lines.size());
+		boolean interrupted = false;
+		try {
+			ExpressionScorer.ExpressionVal[] batch = new ExpressionScorer.ExpressionVal[EVAL_BATCH];
+			Deadline[] deadlines = new Deadline[EVAL_BATCH];
+			for (int start = 0; start < lines.size() && writes.failure == null; start += EVAL_BATCH) {
+				int end = Math.min(start + EVAL_BATCH, lines.size());
+				cpuPermits.acquire();
+				try {
+					for (int i = start; i < end; i++) {
+						Deadline deadline = fileDeadline.within(expressionBudgetNanos);
+						deadlines[i - start] = deadline;
+						batch[i - start] = resultCache == null
+								? ExpressionEvaluator.evalExpression(lines.get(i), useCachedValue, deadline)
+								: resultCache.evalExpression(lines.get(i), useCachedValue, deadline);
+					}
+				} finally {
+					cpuPermits.release();
+				}
+				for (int i = start; i < end; i++) {
+					pendingWrites.acquire();
+					writes.submit(filename, i, batch[i - start], deadlines[i - start]);
+				}
+			}
+		} catch (InterruptedException ex) {
+			interrupted = true;
+			writes.fail(ex);
+		} catch (Exception ex) {
+			writes.fail(ex);
+		} finally {
+			// The listener must not see the file before its writes are done.
+			if (writes.await()) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (writes.failure != null) {
+			if (listener != null) {
+				listener.onFileFailed(filename, writes.failure);
+			}
+			return null;
+		}
+		List<String> rtn = Arrays.asList(writes.outputFilenames);
+		if (listener != null) {
+			listener.onFileComplete(filename, rtn);
+		}
+		return rtn;
+	}
+
+	/**
+	 * The output writes of one file, each on its own thread.
+	 */
+	private class FileWrites {
+		final String[] outputFilenames;
+		// The writes in flight, plus one for the reader until it calls await.
+		final AtomicInteger pending = new AtomicInteger(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Exception failure;
+
+		FileWrites(int lines) {
+			this.outputFilenames = new String[lines];
+		}
+
+		void submit(String filename, int line, ExpressionScorer.ExpressionVal result, Deadline deadline) {
+			pending.incrementAndGet();
+			try {
+				executor.execute(() -> {
+					try {
+						if (failure == null) {
+							outputFilenames[line] = OutputHandler.writeFile(result, filename, line, null, deadline);
+						}
+					} catch (Exception ex) {
+						fail(ex);
+					} finally {
+						pendingWrites.release();
+						onWriteDone();
+					}
+				});
+			} catch (RuntimeException ex) {
+				pendingWrites.release();
+				onWriteDone();
+				throw ex;
+			}
+		}
+
+		void fail(Exception ex) {
+			if (failure == null) {
+				failure = ex;
+			}
+		}
+
+		void onWriteDone() {
+			if (pending.decrementAndGet() == 0) {
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Wait for the submitted writes, even if interrupted.
+		 *
+		 * @return Whether the thread was interrupted while waiting.
+		 */
+		boolean await() {
+			onWriteDone();
+			boolean interrupted = false;
+			while (true) {
+				try {
+					done.await();
+					return interrupted;
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package ExpressionEval;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Seeded generator of expression files, so that the evaluator could be
+ * benchmarked on workloads of a controlled shape instead of the few lines of
+ * example/testdata.txt. The same seed and options always generate the same
+ * lines.
+ *
+ * The options, given as "name=value":
+ * tokens: approximate number of tokens per line.
+ * depth: maximum nesting of parentheses and log(,).
+ * ops: weights of the operators, like "+:4,-:2,*:3,/:2,^:1,log:1". A ^ could
+ * be a right associative chain like "2 ^ 3 ^ 0.5".
+ * duplicateLines: fraction of the lines repeating an earlier line.
+ * duplicateOperands: fraction of the numbers drawn from a pool of 16 numbers.
+ * invalid: fraction of the lines made invalid, e.g. missing an operand or with
+ * an invalid character.
+ *
+ */
+public class WorkloadGenerator {
+	private static final String[] OPERATORS = { "+", "-", "*", "/", "^", "log" };
+	private static final int RECENT_LINES = 1024;
+	private static final int OPERAND_POOL = 16;
+
+	private final Random random;
+	private int tokensPerLine = 16;
+	private int maxDepth = 4;
+	private double[] operatorWeights = { 4, 2, 3, 2, 1, 1 };
+	private double duplicateLineRate;
+	private double duplicateOperandRate;
+	private double invalidFraction;
+	private final List<String> recentLines = new ArrayList<String>();
+	private final String[] operandPool = new String[OPERAND_POOL];
+	private long generatedLines;
+
+	/**
+	 * @param seed
+	 *            Seed of the generated lines.
+	 */
+	public WorkloadGenerator(long seed) {
+		this.random = new Random(seed);
+		for (int i = 0; i < OPERAND_POOL; i++) {
+			operandPool[i] = newOperand();
+		}
+	}
+
+	/**
+	 * Set one option, see the class comment.
+	 *
+	 * @param option
+	 *            Option like "tokens=32".
+	 * @return This generator.
+	 */
+	public WorkloadGenerator configure(String option) {
+		int idx = option.indexOf('=');
+		if (idx < 0) {
+			throw new IllegalArgumentException("Option should be name=value: " + option);
+		}
+		String name = option.substring(0, idx);
+		String value = option.substring(idx + 1);
+		switch (name) {
+		case "tokens":
+			tokensPerLine = Math.max(1, Integer.parseInt(value));
+			break;
+		case "depth":
+			maxDepth = Math.max(0, Integer.parseInt(value));
+			break;
+		case "ops":
+			double[] weights = new double[OPERATORS.length];
+			for (String weight : value.split(",")) {
+				int colon = weight.lastIndexOf(':');
+				int op = colon < 0 ? -1 : indexOf(weight.substring(0, colon).trim());
+				if (op < 0) {
+					throw new IllegalArgumentException("Invalid operator weight: " + weight);
+				}
+				weights[op] = Double.parseDouble(weight.substring(colon + 1));
+			}
+			operatorWeights = weights;
+			break;
+		case "duplicateLines":
+			duplicateLineRate = fraction(value);
+			break;
+		case "duplicateOperands":
+			duplicateOperandRate = fraction(value);
+			break;
+		case "invalid":
+			invalidFraction = fraction(value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option: " + name);
+		}
+		return this;
+	}
+
+	private static int indexOf(String operator) {
+		for (int i = 0; i < OPERATORS.length; i++) {
+			if (OPERATORS[i].equals(operator)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static double fraction(String value) {
+		double rtn = Double.parseDouble(value);
+		if (rtn < 0 || rtn > 1) {
+			throw new IllegalArgumentException("Fraction should be between 0 and 1: " + value);
+		}
+		return rtn;
+	}
+
+	/**
+	 * @return The next line, without the line separator.
+	 */
+	public String nextLine() {
+		String rtn;
+		if (!recentLines.isEmpty() && random.nextDouble() < duplicateLineRate) {
+			rtn = recentLines.get(random.nextInt(recentLines.size()));
+		} else {
+			StringBuilder builder = new StringBuilder();
+			expression(builder, tokensPerLine, 0, true);
+			if (random.nextDouble() < invalidFraction) {
+				corrupt(builder);
+			}
+			rtn = builder.toString();
+		}
+		// Keep the last RECENT_LINES lines as the candidates of the duplicates.
+		if (recentLines.size() < RECENT_LINES) {
+			recentLines.add(rtn);
+		} else {
+			recentLines.set((int) (generatedLines % RECENT_LINES), rtn);
+		}
+		generatedLines++;
+		return rtn;
+	}
+
+	/**
+	 * Write a file of generated lines.
+	 *
+	 * @param filename
+	 *            The output filename.
+	 * @param lines
+	 *            Number of the lines.
+	 */
+	public void writeFile(String filename, long lines) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(filename));
+		try {
+			for (long i = 0; i < lines; i++) {
+				bw.write(nextLine());
+				bw.newLine();
+			}
+		} finally {
+			bw.close();
+		}
+	}
+
+	/**
+	 * Helper function to append an expression of about |tokens| tokens.
+	 *
+	 * @param depth
+	 *            Nesting of the expression.
+	 * @param leading
+	 *            Whether the expression starts the line or a parenthesis, where
+	 *            a unary minus is allowed.
+	 */
+	private void expression(StringBuilder builder, int tokens, int depth, boolean leading) {
+		if (tokens <= 2) {
+			if (leading && tokens == 2) {
+				builder.append('-');
+			}
+			builder.append(operand());
+			return;
+		}
+		int op = pickOperator();
+		if (OPERATORS[op].equals("log") && depth >= maxDepth) {
+			// No room for the parentheses of log(,).
+			op = 0;
+		}
+		if (OPERATORS[op].equals("log")) {
+			// log ( base , x ) takes 5 tokens with single number operands.
+			int argTokens = Math.max(1, tokens - 5);
+			builder.append("log(").append(2 + random.nextInt(9)).append(", ");
+			expression(builder, argTokens, depth + 1, false);
+			builder.append(')');
+			return;
+		}
+		if (OPERATORS[op].equals("^")) {
+			// A base to a small exponent, or a right associative chain of them.
+			int baseTokens = Math.max(1, tokens - (random.nextInt(4) == 0 ? 4 : 2));
+			subexpression(builder, baseTokens, depth, leading);
+			builder.append(" ^ ").append(exponent());
+			if (baseTokens + 2 < tokens) {
+				builder.append(" ^ ").append(exponent());
+			}
+			return;
+		}
+		int leftTokens = 1 + random.nextInt(tokens - 1);
+		int rightTokens = Math.max(1, tokens - 1 - leftTokens);
+		subexpression(builder, leftTokens, depth, leading);
+		builder.append(' ').append(OPERATORS[op]).append(' ');
+		subexpression(builder, rightTokens, depth, false);
+	}
+
+	/**
+	 * Helper function to append an operand of a binary operator, in parentheses
+	 * half of the time if the depth allows.
+	 */
+	private void subexpression(StringBuilder builder, int tokens, int depth, boolean leading) {
+		if (tokens > 3 && depth < maxDepth && random.nextBoolean()) {
+			builder.append('(');
+			expression(builder, tokens - 2, depth + 1, true);
+			builder.append(')');
+		} else {
+			expression(builder, tokens, depth, leading);
+		}
+	}
+
+	private int pickOperator() {
+		double total = 0;
+		for (double weight : operatorWeights) {
+			total += weight;
+		}
+		double r = random.nextDouble() * total;
+		for (int i = 0; i < operatorWeights.length; i++) {
+			r -= operatorWeights[i];
+			if (r < 0) {
+				return i;
+			}
+		}
+		// All the weights are 0, fall back to +.
+		return 0;
+	}
+
+	private String operand() {
+		if (random.nextDouble() < duplicateOperandRate) {
+			return operandPool[random.nextInt(OPERAND_POOL)];
+		}
+		return newOperand();
+	}
+
+	private String newOperand() {
+		if (random.nextBoolean()) {
+			return Integer.toString(1 + random.nextInt(999));
+		}
+		return (1 + random.nextInt(9999)) / 10.0 + "";
+	}
+
+	private String exponent() {
+		return random.nextBoolean() ? Integer.toString(random.nextInt(4)) : "0." + (1 + random.nextInt(9));
+	}
+
+	/**
+	 * Helper function to make a valid line invalid in one of a few common ways.
+	 */
+	private void corrupt(StringBuilder builder) {
+		switch (random.nextInt(5)) {
+		case 0:
+			builder.append(" +");
+			break;
+		case 1:
+			builder.insert(random.nextInt(builder.length() + 1), '#');
+			break;
+		case 2:
+			builder.insert(0, '(');
+			break;
+		case 3:
+			builder.append(" * 1..5");
+			break;
+		default:
+			builder.append(" + log(2 3)");
+		}
+	}
+
+	/**
+	 * Generate an expression file.
+	 *
+	 * Usage: WorkloadGenerator <filename> <lines> [seed=n] [option=value ...]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: WorkloadGenerator <filename> <lines> [seed=n] [option=value ...]");
+			return;
+		}
+		long seed = 20180305L;
+		List<String> options = new ArrayList<String>();
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].startsWith("seed=")) {
+				seed = Long.parseLong(args[i].substring("seed=".length()));
+			} else {
+				options.add(args[i]);
+			}
+		}
+		WorkloadGenerator generator = new WorkloadGenerator(seed);
+		for (String option : options) {
+			generator.configure(option);
+		}
+		generator.writeFile(args[0], Long.parseLong(args[1]));
+	}
+}